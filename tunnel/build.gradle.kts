@@ -96,7 +96,6 @@ dependencies {
     implementation(libs.relinker)
 
     //dns
-    implementation(libs.okhttp.dnsoverhttps)
     implementation(libs.okhttp)
 }
 
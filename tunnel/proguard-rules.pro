@@ -1,2 +1,3 @@
 -keep class org.amnezia.awg.backend.AbstractBackend$VpnService { *; }
 -keep interface org.amnezia.awg.backend.SocketProtector { *; }
+-keep interface org.amnezia.awg.backend.TunnelEventSink { *; }
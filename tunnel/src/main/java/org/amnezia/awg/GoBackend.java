@@ -1,11 +1,14 @@
 package org.amnezia.awg;
 
 import androidx.annotation.Nullable;
+import org.amnezia.awg.backend.TunnelEventSink;
 
 public class GoBackend {
     @Nullable
     public static native String awgGetConfig(int handle);
 
+    public static native int awgGetStats(int handle, long[] stats);
+
     public static native int awgGetSocketV4(int handle);
 
     public static native int awgGetSocketV6(int handle);
@@ -14,7 +17,21 @@ public class GoBackend {
 
     public static native int awgTurnOn(String ifName, int tunFd, String settings, String uapiPath);
 
+    public static native int awgTurnOnUapi(String ifName, int tunFd, String settings, boolean domainBlocking, String uapiPath);
+
+    public static native int awgSetTunnelUapi(int handle, String settings);
+
     public static native int awgUpdateTunnelPeers(int handle, String settings);
 
+    public static native int awgRebindTunnel(int handle);
+
+    public static native int awgAttachTunnel(int ownerHandle, String ifName, String settings, boolean domainBlocking, String uapiPath, String routes);
+
+    public static native int awgReplaceTun(int handle, int tunFd);
+
+    public static native int awgGetStartupTimes(int handle, long[] times);
+
     public static native String awgVersion();
+
+    public static native void awgSetEventSink(@Nullable TunnelEventSink sink);
 }
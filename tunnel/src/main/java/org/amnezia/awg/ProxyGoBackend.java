@@ -2,18 +2,27 @@ package org.amnezia.awg;
 
 import androidx.annotation.Nullable;
 import org.amnezia.awg.backend.SocketProtector;
+import org.amnezia.awg.backend.TunnelEventSink;
 
 public class ProxyGoBackend {
     public static native int awgStartProxy(String ifName, String config, String uapiPath, int bypass);
 
     public static native int awgUpdateProxyTunnelPeers(int handle, String settings);
 
+    public static native int awgSetProxyUapi(int handle, String settings);
+
+    public static native int awgRebindProxy(int handle);
+
     public static native void awgStopProxy();
 
     @Nullable
     public static native String awgGetProxyConfig(int handle);
 
+    public static native int awgGetProxyStats(int handle, long[] stats);
+
     public static native void awgSetSocketProtector(SocketProtector sp);
 
     public static native void awgResetJNIGlobals();
+
+    public static native void awgSetEventSink(@Nullable TunnelEventSink sink);
 }
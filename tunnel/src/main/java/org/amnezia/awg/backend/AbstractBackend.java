@@ -9,17 +9,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.Log;
 import androidx.annotation.Nullable;
 import com.getkeepsafe.relinker.ReLinker;
 import okhttp3.internal.platform.PlatformRegistry;
 import org.amnezia.awg.config.Config;
+import org.amnezia.awg.config.ConfigDiff;
 import org.amnezia.awg.config.DnsSettings;
 import org.amnezia.awg.config.InetEndpoint;
+import org.amnezia.awg.config.InetNetwork;
 import org.amnezia.awg.config.Peer;
 import org.amnezia.awg.crypto.Key;
-import org.amnezia.awg.crypto.KeyFormatException;
 import org.amnezia.awg.hevtunnel.TProxyService;
 import org.amnezia.awg.util.NonNullForAll;
 
@@ -32,8 +34,17 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.amnezia.awg.GoBackend.awgTurnOff;
@@ -46,7 +57,11 @@ public abstract class AbstractBackend implements Backend {
 
     private static final int DNS_RESOLUTION_RETRIES = 5;
     private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long DNS_RESOLUTION_DEADLINE_MS = 15_000;
+    private static final int DNS_RESOLUTION_THREADS = 4;
+    private static final ExecutorService RESOLVER_EXECUTOR = newResolverExecutor();
     private static final int MTU = 1280;
+    private static final String RESOLUTION_CACHE_FILE_NAME = "endpoint-resolutions";
 
     //kill switch defaults
     protected static final String USERNAME = "local";
@@ -58,17 +73,58 @@ public abstract class AbstractBackend implements Backend {
     protected final Context context;
     protected final TunnelActionHandler tunnelActionHandler;
 
+    // The state being changed by the holder of tunnelLock. Other readers use the snapshot, which
+    // is published from these fields once they are consistent again.
     @Nullable protected Config currentConfig;
     @Nullable protected Tunnel currentTunnel;
 
     protected int currentTunnelHandle = -1;
 
+    // Tunnels brought up with setStateAlongside, running on the interface of currentTunnel.
+    protected final Map<Tunnel, AttachedTunnel> attachedTunnels = new ConcurrentHashMap<>();
+
+    private final Object statsLock = new Object();
+    private final PeerKeyCache statsKeys = new PeerKeyCache();
+    private final UapiStatisticsParser uapiParser = new UapiStatisticsParser(statsKeys);
+    private long[] statsBuffer = new long[Statistics.RECORD_STRIDE * 4];
+    private boolean statsRecordsSupported = true;
+    protected final ThroughputTrackers throughput = new ThroughputTrackers();
+    private final StatisticsSampler statisticsSampler = new StatisticsSampler(this::collectStatistics,
+            StatisticsSampler.DEFAULT_INTERVAL_MILLIS, SystemClock::elapsedRealtime);
+
+    private final TunnelEventDispatcher tunnelEvents = new TunnelEventDispatcher();
+    private final TunnelEventSink tunnelEventSink = this::onNativeTunnelEvent;
+    // The tunnel whose device is coming up, for its events raised before its handle is published.
+    @Nullable private volatile EventTarget startingEvents;
+    private final InetEndpoint.ResolutionListener resolutionListener = this::onResolutionChanged;
+    // Endpoint hosts whose addresses changed, applied when tunnelLock is released.
+    private final Set<String> pendingResolutions = ConcurrentHashMap.newKeySet();
+    private final DdnsWatcher ddnsWatcher;
+    private final HandshakeWatchdog handshakeWatchdog = new HandshakeWatchdog(this);
+    private final Map<Tunnel, TunnelStartupTrace> startupTraces = Collections.synchronizedMap(new WeakHashMap<>());
+    private final List<TunnelStartupTrace.Listener> startupTraceListeners = new CopyOnWriteArrayList<>();
+    private final OperationQueue operations = new OperationQueue();
+    private final AtomicReference<BackendSnapshot> snapshot = new AtomicReference<>(BackendSnapshot.EMPTY);
+    // Set while a tunnel is being brought up, under tunnelLock.
+    @Nullable protected TunnelStartupTrace.Recorder startupTrace;
+
     protected final ReentrantLock tunnelLock = new ReentrantLock();
 
     protected static CompletableFuture<VpnService> vpnService = new CompletableFuture<>();
 
     @Nullable private static VpnService.AlwaysOnCallback alwaysOnCallback;
 
+    private static ExecutorService newResolverExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(DNS_RESOLUTION_THREADS, DNS_RESOLUTION_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "AmneziaWG-Resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public static void setAlwaysOnCallback(final VpnService.AlwaysOnCallback cb) {
         alwaysOnCallback = cb;
     }
@@ -80,26 +136,74 @@ public abstract class AbstractBackend implements Backend {
         PlatformRegistry.INSTANCE.setApplicationContext(context);
         this.context = context;
         this.tunnelActionHandler = tunnelActionHandler;
+        InetEndpoint.setCacheFile(new File(context.getNoBackupFilesDir(), RESOLUTION_CACHE_FILE_NAME));
+        ddnsWatcher = new DdnsWatcher(this, context);
     }
 
     @Override
     public Set<String> getRunningTunnelNames() {
-        if (currentTunnel != null) {
-            final Set<String> runningTunnels = new ArraySet<>();
-            runningTunnels.add(currentTunnel.getName());
-            return runningTunnels;
-        }
-        return Collections.emptySet();
+        final Set<Tunnel> running = snapshot.get().getRunningTunnels();
+        if (running.isEmpty())
+            return Collections.emptySet();
+        final Set<String> runningTunnels = new ArraySet<>();
+        for (final Tunnel tunnel : running)
+            runningTunnels.add(tunnel.getName());
+        return runningTunnels;
     }
 
     @Override
     public Tunnel.State getState(final Tunnel tunnel) {
-        return currentTunnel == tunnel ? Tunnel.State.UP : Tunnel.State.DOWN;
+        return snapshot.get().getState(tunnel);
     }
 
     @Override
     public BackendMode getBackendMode() {
-        return backendMode;
+        return snapshot.get().getBackendMode();
+    }
+
+    @Override
+    public BackendSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Publish the state in the current fields as the next snapshot, if it changed. Called by the
+     * holder of tunnelLock whenever a state change is complete, or has stopped a device.
+     */
+    protected final void publishState() {
+        final Map<Tunnel, AttachedTunnel> attached = new LinkedHashMap<>(attachedTunnels);
+        final BackendSnapshot previous = snapshot.getAndUpdate(state -> state.next(currentTunnel, currentConfig,
+                currentTunnelHandle, attached, backendMode));
+        final BackendSnapshot published = snapshot.get();
+        if (published == previous)
+            return;
+        for (final Tunnel tunnel : previous.getRunningTunnels()) {
+            if (published.getState(tunnel) == Tunnel.State.DOWN)
+                statisticsSampler.forget(tunnel);
+        }
+    }
+
+    /**
+     * Release tunnelLock, publishing the state changed under it and applying the endpoint changes
+     * queued meanwhile when the outermost hold ends.
+     */
+    private void unlockTunnel() {
+        try {
+            if (tunnelLock.getHoldCount() == 1) {
+                applyResolutionChanges();
+                publishState();
+            }
+        } finally {
+            tunnelLock.unlock();
+        }
+        // A change queued after the check above found the lock held, and would be lost.
+        if (!tunnelLock.isHeldByCurrentThread() && !pendingResolutions.isEmpty() && tunnelLock.tryLock())
+            unlockTunnel();
+    }
+
+    // The state as changed so far by the holder of tunnelLock.
+    private Tunnel.State currentState(final Tunnel tunnel) {
+        return currentTunnel == tunnel || attachedTunnels.containsKey(tunnel) ? Tunnel.State.UP : Tunnel.State.DOWN;
     }
 
     @Override
@@ -111,32 +215,278 @@ public abstract class AbstractBackend implements Backend {
     public Tunnel.State setState(final Tunnel tunnel, Tunnel.State state, @Nullable final Config config) throws Exception {
         tunnelLock.lock();
         try {
-            final Tunnel.State originalState = getState(tunnel);
+            final Tunnel.State originalState = currentState(tunnel);
             if (state == originalState && tunnel == currentTunnel && config == currentConfig) {
                 return originalState;
             }
             if (state == Tunnel.State.UP) {
                 final Config originalConfig = currentConfig;
                 final Tunnel originalTunnel = currentTunnel;
-                if (currentTunnel != null) {
-                    setStateInternal(currentTunnel, null, Tunnel.State.DOWN);
-                }
+                startupTrace = new TunnelStartupTrace.Recorder(tunnel.getName());
                 try {
-                    handleResolverConfiguration(config);
-                    setStateInternal(tunnel, config, state);
-                } catch (final Exception e) {
-                    if (originalTunnel != null) {
-                        setStateInternal(originalTunnel, originalConfig, Tunnel.State.UP);
+                    if (config != null && switchTunnelInternal(tunnel, config)) {
+                        finishStartupTrace(tunnel, true);
+                        return currentState(tunnel);
                     }
-                    throw e;
+                    if (currentTunnel != null) {
+                        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.STOP_PREVIOUS)) {
+                            setStateInternal(currentTunnel, null, Tunnel.State.DOWN);
+                        }
+                    }
+                    try {
+                        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.RESOLVER_CONFIG)) {
+                            handleResolverConfiguration(config);
+                        }
+                        setStateInternal(tunnel, config, state);
+                        finishStartupTrace(tunnel, true);
+                    } catch (final Exception e) {
+                        // Bringing the original tunnel back is not part of this bring-up.
+                        finishStartupTrace(tunnel, false);
+                        if (originalTunnel != null) {
+                            // A cancelled bring-up still restores the original tunnel.
+                            final boolean interrupted = Thread.interrupted();
+                            try {
+                                setStateInternal(originalTunnel, originalConfig, Tunnel.State.UP);
+                            } finally {
+                                if (interrupted)
+                                    Thread.currentThread().interrupt();
+                            }
+                        }
+                        throw e;
+                    }
+                } finally {
+                    finishStartupTrace(tunnel, false);
                 }
             } else if (state == Tunnel.State.DOWN && tunnel == currentTunnel) {
                 setStateInternal(tunnel, null, Tunnel.State.DOWN);
             }
-            return getState(tunnel);
+            return currentState(tunnel);
         } finally {
-            tunnelLock.unlock();
+            unlockTunnel();
+        }
+    }
+
+    @Override
+    public Tunnel.State setStateAlongside(final Tunnel tunnel, final Tunnel.State state, @Nullable final Config config)
+            throws Exception {
+        tunnelLock.lock();
+        try {
+            if (currentTunnel == null || currentTunnelHandle == -1 || tunnel == currentTunnel)
+                return setState(tunnel, state, config);
+            final AttachedTunnel running = attachedTunnels.get(tunnel);
+            if (state == Tunnel.State.DOWN) {
+                if (running != null)
+                    detach(tunnel, running, true);
+                return currentState(tunnel);
+            }
+            if (config == null)
+                throw new BackendException(BackendException.Reason.TUNNEL_MISSING_CONFIG);
+            if (!supportsAttachedTunnels())
+                throw new BackendException(BackendException.Reason.ALONGSIDE_UNSUPPORTED);
+            if (running != null && running.config() == config)
+                return Tunnel.State.UP;
+            final Set<InetNetwork> routes = routes(config);
+            if (overlaps(routes, routes(currentConfig)))
+                throw new BackendException(BackendException.Reason.ROUTES_OVERLAP, currentTunnel.getName());
+            for (final Map.Entry<Tunnel, AttachedTunnel> other : attachedTunnels.entrySet()) {
+                if (other.getKey() != tunnel && overlaps(routes, routes(other.getValue().config())))
+                    throw new BackendException(BackendException.Reason.ROUTES_OVERLAP, other.getKey().getName());
+            }
+            Log.i(TAG, "Bringing tunnel " + tunnel.getName() + " UP alongside " + currentTunnel.getName());
+            if (running != null)
+                detach(tunnel, running, false);
+            startupTrace = new TunnelStartupTrace.Recorder(tunnel.getName());
+            try {
+                try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.RESOLVER_CONFIG)) {
+                    handleResolverConfiguration(config);
+                }
+                prepareTunnelEvents(tunnel, config);
+                attachedTunnels.put(tunnel, new AttachedTunnel(attachTunnel(tunnel, config), config));
+                publishState();
+                restartDdnsWatcher();
+                finishStartupTrace(tunnel, true);
+            } catch (final Exception e) {
+                if (running != null)
+                    tunnel.onStateChange(Tunnel.State.DOWN);
+                throw e;
+            } finally {
+                finishStartupTrace(tunnel, false);
+            }
+            tunnel.onStateChange(Tunnel.State.UP);
+            return Tunnel.State.UP;
+        } finally {
+            unlockTunnel();
+        }
+    }
+
+    @Override
+    public boolean updateTunnelPeers(final Tunnel tunnel, final Config config) throws Exception {
+        tunnelLock.lock();
+        try {
+            if (tunnel == currentTunnel)
+                return updateActiveTunnelPeers(config);
+            final AttachedTunnel attached = attachedTunnels.get(tunnel);
+            if (attached == null)
+                throw new BackendException(BackendException.Reason.SERVICE_NOT_RUNNING);
+            // New routes have to be added to the interface, which takes bringing the tunnel up again.
+            if (!routes(attached.config()).equals(routes(config)))
+                return setStateAlongside(tunnel, Tunnel.State.UP, config) == Tunnel.State.UP;
+            final String settings = ConfigDiff.between(attached.config(), config).withEndpoints(config)
+                    .toAwgUserspaceString(tunnel.isIpv4ResolutionPreferred(), context);
+            if (!settings.isEmpty() && setTunnelUapi(attached.handle(), settings) != 0)
+                return false;
+            attachedTunnels.put(tunnel, new AttachedTunnel(attached.handle(), withPeersOf(tunnel, attached.config(), config)));
+            return true;
+        } finally {
+            unlockTunnel();
+        }
+    }
+
+    // The kinds of queued operations, for collapsing superseded ones.
+    private enum Operation {
+        SET_STATE,
+        UPDATE_PEERS,
+        SET_BACKEND_MODE
+    }
+
+    @Override
+    public CompletableFuture<Tunnel.State> setStateAsync(final Tunnel tunnel, final Tunnel.State state,
+                                                         @Nullable final Config config) {
+        return operations.submit(Operation.SET_STATE, tunnel, EnumSet.of(Operation.SET_STATE, Operation.UPDATE_PEERS),
+                () -> setState(tunnel, state, config));
+    }
+
+    @Override
+    public CompletableFuture<Tunnel.State> setStateAlongsideAsync(final Tunnel tunnel, final Tunnel.State state,
+                                                                  @Nullable final Config config) {
+        return operations.submit(Operation.SET_STATE, tunnel, EnumSet.of(Operation.SET_STATE, Operation.UPDATE_PEERS),
+                () -> setStateAlongside(tunnel, state, config));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> updatePeersAsync(final Tunnel tunnel, final Config config) {
+        return operations.submit(Operation.UPDATE_PEERS, tunnel, EnumSet.of(Operation.UPDATE_PEERS),
+                () -> updateTunnelPeers(tunnel, config));
+    }
+
+    @Override
+    public CompletableFuture<BackendMode> setBackendModeAsync(final BackendMode backendMode) {
+        return operations.submit(Operation.SET_BACKEND_MODE, null, EnumSet.of(Operation.SET_BACKEND_MODE),
+                () -> setBackendMode(backendMode));
+    }
+
+    private void detach(final Tunnel tunnel, final AttachedTunnel attached, final boolean notify) throws Exception {
+        Log.i(TAG, "Bringing tunnel " + tunnel.getName() + " DOWN");
+        attachedTunnels.remove(tunnel);
+        throughput.remove(attached.handle());
+        final EventTarget starting = startingEvents;
+        if (starting != null && starting.tunnel() == tunnel)
+            startingEvents = null;
+        publishState();
+        restartDdnsWatcher();
+        try {
+            detachTunnel(tunnel, attached, true);
+        } finally {
+            if (notify)
+                tunnel.onStateChange(Tunnel.State.DOWN);
+        }
+    }
+
+    /**
+     * Stop the tunnels running alongside the current one, which is about to go down.
+     *
+     * @return the stopped tunnels
+     */
+    private Map<Tunnel, AttachedTunnel> detachAll(final boolean notify) {
+        final Map<Tunnel, AttachedTunnel> detached = new HashMap<>(attachedTunnels);
+        attachedTunnels.clear();
+        publishState();
+        for (final Map.Entry<Tunnel, AttachedTunnel> entry : detached.entrySet()) {
+            throughput.remove(entry.getValue().handle());
+            try {
+                detachTunnel(entry.getKey(), entry.getValue(), false);
+            } catch (final Exception e) {
+                Log.e(TAG, "Failed to stop tunnel " + entry.getKey().getName(), e);
+            }
+            if (notify)
+                entry.getKey().onStateChange(Tunnel.State.DOWN);
         }
+        return detached;
+    }
+
+    /**
+     * Get the routes of a configuration, which are the allowed IPs of all its peers.
+     */
+    protected static Set<InetNetwork> routes(@Nullable final Config config) {
+        final Set<InetNetwork> routes = new LinkedHashSet<>();
+        if (config != null) {
+            for (final Peer peer : config.getPeers())
+                routes.addAll(peer.getAllowedIps());
+        }
+        return routes;
+    }
+
+    /**
+     * Check whether any network of one set shares addresses with a network of the other.
+     */
+    static boolean overlaps(final Collection<InetNetwork> a, final Collection<InetNetwork> b) {
+        for (final InetNetwork x : a) {
+            for (final InetNetwork y : b) {
+                final byte[] first = x.getAddress().getAddress();
+                final byte[] second = y.getAddress().getAddress();
+                if (first.length != second.length)
+                    continue;
+                // Two prefixes overlap exactly when they agree on the bits of the shorter one.
+                final int bits = Math.min(x.getMask(), y.getMask());
+                boolean same = true;
+                for (int i = 0; i < bits && same; ++i) {
+                    final int mask = 0x80 >>> (i & 7);
+                    same = (first[i >>> 3] & mask) == (second[i >>> 3] & mask);
+                }
+                if (same)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the running tunnel over to another tunnel or configuration without taking it down
+     * first, if the backend supports it.
+     *
+     * @return false if nothing is running or the backend could not switch, in which case the
+     * running tunnel is still up but no longer watched
+     */
+    private boolean switchTunnelInternal(final Tunnel tunnel, final Config config) {
+        final Tunnel from = currentTunnel;
+        final Config fromConfig = currentConfig;
+        // The tunnels running alongside are tied to the current interface.
+        if (from == null || fromConfig == null || currentTunnelHandle == -1 || !attachedTunnels.isEmpty())
+            return false;
+        Log.i(TAG, "Switching from " + from.getName() + " to " + tunnel.getName());
+        ddnsWatcher.stop();
+        handshakeWatchdog.stop();
+        try {
+            try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.RESOLVER_CONFIG)) {
+                handleResolverConfiguration(config);
+            }
+            prepareTunnelEvents(tunnel, config);
+            if (!switchTunnel(from, fromConfig, tunnel, config))
+                return false;
+        } catch (final Exception e) {
+            Log.w(TAG, "Unable to switch tunnels, restarting instead", e);
+            return false;
+        }
+        throughput.clear();
+        currentTunnel = tunnel;
+        currentConfig = config;
+        publishState();
+        restartDdnsWatcher();
+        handshakeWatchdog.start(tunnel);
+        if (from != tunnel)
+            from.onStateChange(Tunnel.State.DOWN);
+        tunnel.onStateChange(Tunnel.State.UP);
+        return true;
     }
 
     private void handleResolverConfiguration(@Nullable Config config) {
@@ -144,7 +494,7 @@ public abstract class AbstractBackend implements Backend {
         SocketFactory socketFactory = null;
         if (needsBypass) {
             try {
-                socketFactory = vpnService.get(5, TimeUnit.SECONDS).new ProtectedSocketFactory();
+                socketFactory = vpnService.get(5, TimeUnit.SECONDS).getProtectedSocketFactory();
                 Log.d(TAG, "ProtectedSocketFactory created successfully");
             } catch (TimeoutException e) {
                 Log.e(TAG, "VpnService timeout; falling back to non-bypassed resolver to avoid blocks", e);
@@ -155,9 +505,17 @@ public abstract class AbstractBackend implements Backend {
             }
         }
         DnsSettings dnsSettings = (config != null && config.getDnsSettings() != null) ? config.getDnsSettings() : new DnsSettings(false, Optional.empty());
-        InetEndpoint.setResolver(dnsSettings.dohEnabled() || needsBypass
-                ? new InetEndpoint.DoHResolver(dnsSettings.dohUrl(), Optional.ofNullable(socketFactory))
-                : new InetEndpoint.SystemResolver());
+        final Optional<SocketFactory> bypass = Optional.ofNullable(socketFactory);
+        final List<InetEndpoint.Resolver> strategies = new ArrayList<>(3);
+        dnsSettings.dotServer().ifPresent(server -> strategies.add(new InetEndpoint.DoTResolver(server, bypass)));
+        if (dnsSettings.dohEnabled() || (needsBypass && strategies.isEmpty()))
+            strategies.add(new InetEndpoint.DoHResolver(dnsSettings.dohUrl(), bypass));
+        // Encrypted DNS chosen by the user must not fall back to plaintext DNS, but DoH that is
+        // only used to bypass the tunnel can race the system resolver.
+        if (!dnsSettings.dohEnabled() && dnsSettings.dotServer().isEmpty())
+            strategies.add(new InetEndpoint.SystemResolver());
+        InetEndpoint.setResolver(strategies.size() == 1 ? strategies.get(0)
+                : new InetEndpoint.RacingResolver(strategies, InetEndpoint.RacingResolver.DEFAULT_STAGGER_MILLIS));
     }
 
     @Override
@@ -167,33 +525,308 @@ public abstract class AbstractBackend implements Backend {
             this.backendMode = setBackendModeInternal(backendMode);
             return this.backendMode;
         } finally {
-            tunnelLock.unlock();
+            unlockTunnel();
         }
     }
 
     protected void setStateInternal(final Tunnel tunnel, @Nullable final Config config, final Tunnel.State state)
             throws Exception {
         Log.i(TAG, "Bringing tunnel " + tunnel.getName() + ' ' + state);
+        throughput.clear();
         if (state == Tunnel.State.UP) {
             if (config == null) {
                 throw new BackendException(BackendException.Reason.TUNNEL_MISSING_CONFIG);
             }
+            prepareTunnelEvents(tunnel, config);
             configureAndStartTunnel(tunnel, config);
             currentTunnel = tunnel;
             currentConfig = config;
+            InetEndpoint.addResolutionListener(resolutionListener);
+            restartDdnsWatcher();
+            handshakeWatchdog.start(tunnel);
         } else {
             if (currentTunnelHandle == -1) {
                 Log.w(TAG, "Tunnel already down");
                 return;
             }
+            InetEndpoint.removeResolutionListener(resolutionListener);
+            ddnsWatcher.stop();
+            handshakeWatchdog.stop();
+            detachAll(true);
             stopTunnel(tunnel, currentConfig);
+            startingEvents = null;
             currentTunnel = null;
             currentTunnelHandle = -1;
             currentConfig = null;
         }
+        publishState();
         tunnel.onStateChange(state);
     }
 
+    @Override
+    public void addTunnelEventListener(final TunnelEventListener listener) {
+        tunnelEvents.addListener(listener);
+    }
+
+    @Override
+    public void removeTunnelEventListener(final TunnelEventListener listener) {
+        tunnelEvents.removeListener(listener);
+    }
+
+    @Override
+    @Nullable
+    public TunnelStartupTrace getStartupTrace(final Tunnel tunnel) {
+        return startupTraces.get(tunnel);
+    }
+
+    @Override
+    public void addStartupTraceListener(final TunnelStartupTrace.Listener listener) {
+        startupTraceListeners.add(listener);
+    }
+
+    @Override
+    public void removeStartupTraceListener(final TunnelStartupTrace.Listener listener) {
+        startupTraceListeners.remove(listener);
+    }
+
+    /**
+     * Begin a phase of the bring-up in progress, if any.
+     */
+    protected TunnelStartupTrace.Section traceStartup(final String phase) {
+        final TunnelStartupTrace.Recorder recorder = startupTrace;
+        return recorder == null ? TunnelStartupTrace.Section.NONE : recorder.begin(phase);
+    }
+
+    /**
+     * End the bring-up in progress, if it was not ended yet, and hand its trace to the listeners.
+     */
+    private void finishStartupTrace(final Tunnel tunnel, final boolean successful) {
+        final TunnelStartupTrace.Recorder recorder = startupTrace;
+        if (recorder == null)
+            return;
+        startupTrace = null;
+        final TunnelStartupTrace trace = recorder.finish(successful);
+        Log.i(TAG, trace.toString());
+        startupTraces.put(tunnel, trace);
+        for (final TunnelStartupTrace.Listener listener : startupTraceListeners) {
+            try {
+                listener.onTunnelStartup(tunnel, trace);
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Startup trace listener failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void setHandshakeWatchdogEnabled(final boolean enabled) {
+        if (!handshakeWatchdog.setEnabled(enabled) || !enabled)
+            return;
+        tunnelLock.lock();
+        try {
+            if (currentTunnel != null && currentTunnelHandle != -1)
+                handshakeWatchdog.start(currentTunnel);
+        } finally {
+            unlockTunnel();
+        }
+    }
+
+    @Override
+    public void addRecoveryListener(final HandshakeWatchdog.Listener listener) {
+        handshakeWatchdog.addListener(listener);
+    }
+
+    @Override
+    public void removeRecoveryListener(final HandshakeWatchdog.Listener listener) {
+        handshakeWatchdog.removeListener(listener);
+    }
+
+    /**
+     * Take a recovery step for the {@link HandshakeWatchdog}.
+     *
+     * @param stalePeers the peers that stopped answering
+     * @return false if the step does not apply, e.g. re-resolving peers with numeric endpoints
+     */
+    boolean recover(final HandshakeWatchdog.Step step, final List<Key> stalePeers) throws Exception {
+        switch (step) {
+            case RE_RESOLVE: {
+                final Config config = currentConfig;
+                if (config == null)
+                    return false;
+                final Set<String> hosts = new LinkedHashSet<>();
+                for (final Peer peer : config.getPeers()) {
+                    if (stalePeers.contains(peer.getPublicKey()))
+                        peer.getEndpoint().filter(ep -> !DdnsWatcher.isNumeric(ep.getHost()))
+                                .ifPresent(ep -> hosts.add(ep.getHost()));
+                }
+                for (final String host : hosts)
+                    checkEndpointHost(host);
+                return !hosts.isEmpty();
+            }
+            case REBIND: {
+                tunnelLock.lock();
+                try {
+                    if (currentTunnelHandle == -1)
+                        return false;
+                    if (rebindTunnel(currentTunnelHandle) != 0)
+                        throw new BackendException(BackendException.Reason.UAPI_UPDATE_FAILED);
+                    return true;
+                } finally {
+                    unlockTunnel();
+                }
+            }
+            case RESTART:
+                return restartTunnel();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Stop and start the device of the running tunnel, keeping the tunnel up as far as callers
+     * and listeners are concerned. If the device cannot be started again, the tunnel goes down.
+     */
+    private boolean restartTunnel() throws Exception {
+        tunnelLock.lock();
+        try {
+            final Tunnel tunnel = currentTunnel;
+            final Config config = currentConfig;
+            if (tunnel == null || config == null || currentTunnelHandle == -1)
+                return false;
+            Log.i(TAG, "Restarting tunnel " + tunnel.getName());
+            final Map<Tunnel, AttachedTunnel> detached = detachAll(false);
+            stopTunnel(tunnel, config);
+            currentTunnelHandle = -1;
+            publishState();
+            throughput.clear();
+            startupTrace = new TunnelStartupTrace.Recorder(tunnel.getName());
+            try {
+                configureAndStartTunnel(tunnel, config);
+                finishStartupTrace(tunnel, true);
+            } catch (final Exception e) {
+                finishStartupTrace(tunnel, false);
+                for (final Tunnel other : detached.keySet())
+                    other.onStateChange(Tunnel.State.DOWN);
+                InetEndpoint.removeResolutionListener(resolutionListener);
+                ddnsWatcher.stop();
+                handshakeWatchdog.stop();
+                startingEvents = null;
+                currentTunnel = null;
+                currentTunnelHandle = -1;
+                currentConfig = null;
+                publishState();
+                tunnel.onStateChange(Tunnel.State.DOWN);
+                throw e;
+            }
+            for (final Map.Entry<Tunnel, AttachedTunnel> entry : detached.entrySet()) {
+                final Config attachedConfig = entry.getValue().config();
+                try {
+                    attachedTunnels.put(entry.getKey(), new AttachedTunnel(attachTunnel(entry.getKey(), attachedConfig),
+                            attachedConfig));
+                } catch (final Exception e) {
+                    Log.e(TAG, "Failed to restart tunnel " + entry.getKey().getName(), e);
+                    entry.getKey().onStateChange(Tunnel.State.DOWN);
+                }
+            }
+            restartDdnsWatcher();
+            return true;
+        } finally {
+            unlockTunnel();
+        }
+    }
+
+    private record EventTarget(Tunnel tunnel, Config config) {}
+
+    private void prepareTunnelEvents(final Tunnel tunnel, final Config config) {
+        startingEvents = new EventTarget(tunnel, config);
+        try {
+            setTunnelEventSink(tunnelEventSink);
+        } catch (final LinkageError e) {
+            Log.w(TAG, "Native tunnel events unavailable", e);
+        }
+    }
+
+    private void onNativeTunnelEvent(final int handle, final int type, final String peer, final String detail) {
+        final BackendSnapshot state = snapshot.get();
+        Tunnel tunnel = state.tunnelOf(handle);
+        Config config = tunnel != null ? state.getConfig(tunnel) : null;
+        if (tunnel == null || config == null) {
+            // Events raised while a device comes up arrive before its handle is published. Once
+            // the starting tunnel has a handle, events for other handles are from stopped devices.
+            final EventTarget starting = startingEvents;
+            if (starting == null || (handle >= 0 && state.handleOf(starting.tunnel()) >= 0))
+                return;
+            tunnel = starting.tunnel();
+            config = starting.config();
+        }
+        final Tunnel target = tunnel;
+        final Optional<Key> peerKey = config.getPeers().stream().map(Peer::getPublicKey)
+                .filter(key -> TunnelEvent.abbreviate(key).equals(peer)).findFirst();
+        TunnelEvent.Type.fromNative(type).ifPresent(eventType -> tunnelEvents.post(new TunnelEvent(target, eventType,
+                peerKey, detail, System.currentTimeMillis())));
+    }
+
+    /**
+     * Push the new address of an endpoint host that was served stale while the tunnel came up or
+     * roamed, to the peers that use it.
+     */
+    private void onResolutionChanged(final String host) {
+        // A state change in progress may have serialized the endpoints before the cache was
+        // refreshed, so the change is queued for whoever releases the lock last.
+        pendingResolutions.add(host);
+        if (tunnelLock.tryLock())
+            unlockTunnel();
+    }
+
+    private void applyResolutionChanges() {
+        for (final Iterator<String> it = pendingResolutions.iterator(); it.hasNext(); ) {
+            final String host = it.next();
+            it.remove();
+            for (final Map.Entry<Tunnel, AttachedTunnel> running : runningTunnels().entrySet()) {
+                final Tunnel tunnel = running.getKey();
+                final Config config = running.getValue().config();
+                final List<Key> peers = DdnsWatcher.peersOfHost(config, host);
+                if (peers.isEmpty())
+                    continue;
+                Log.i(TAG, "Endpoint host " + host + " moved, updating " + peers.size() + " peer(s) of tunnel "
+                        + tunnel.getName());
+                try {
+                    final String settings = ConfigDiff.endpoints(config, peers)
+                            .toAwgUserspaceString(tunnel.isIpv4ResolutionPreferred(), context);
+                    if (setTunnelUapi(running.getValue().handle(), settings) != 0)
+                        Log.e(TAG, "Failed to update the endpoints of host " + host);
+                } catch (final Exception e) {
+                    Log.e(TAG, "Failed to update the endpoints of host " + host, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the handles and configurations of the running tunnels, starting with the current one.
+     * Must be called with tunnelLock held.
+     */
+    private Map<Tunnel, AttachedTunnel> runningTunnels() {
+        final Map<Tunnel, AttachedTunnel> running = new LinkedHashMap<>();
+        if (currentTunnel == null || currentConfig == null || currentTunnelHandle == -1)
+            return running;
+        running.put(currentTunnel, new AttachedTunnel(currentTunnelHandle, currentConfig));
+        running.putAll(attachedTunnels);
+        return running;
+    }
+
+    /**
+     * Watch the endpoint hosts of all running tunnels. Must be called with tunnelLock held.
+     */
+    private void restartDdnsWatcher() {
+        final List<Config> configs = new ArrayList<>();
+        for (final AttachedTunnel running : runningTunnels().values())
+            configs.add(running.config());
+        if (configs.isEmpty())
+            ddnsWatcher.stop();
+        else
+            ddnsWatcher.start(configs);
+    }
+
     protected VpnService startVpnService(AbstractBackend owner) throws Exception {
         if (!vpnService.isDone()) {
             Log.d(TAG, "Requesting to start VpnService");
@@ -216,89 +849,122 @@ public abstract class AbstractBackend implements Backend {
 
     protected abstract void stopTunnel(Tunnel tunnel, @Nullable Config config) throws Exception;
 
+    /**
+     * @return whether this backend implements {@link #attachTunnel} and {@link #detachTunnel}
+     */
+    protected boolean supportsAttachedTunnels() {
+        return false;
+    }
+
+    /**
+     * Start a tunnel on the interface of the running one, adding its addresses and routes to it.
+     *
+     * @return the handle of the new device
+     */
+    protected int attachTunnel(final Tunnel tunnel, final Config config) throws Exception {
+        throw new BackendException(BackendException.Reason.ALONGSIDE_UNSUPPORTED);
+    }
+
+    /**
+     * Stop a tunnel started with {@link #attachTunnel}, which was already removed from
+     * {@link #attachedTunnels}.
+     *
+     * @param updateInterface whether to take its addresses and routes off the interface, which is
+     *                        not needed when the running tunnel goes down too
+     */
+    protected void detachTunnel(final Tunnel tunnel, final AttachedTunnel attached, final boolean updateInterface)
+            throws Exception {
+        throw new BackendException(BackendException.Reason.ALONGSIDE_UNSUPPORTED);
+    }
+
+    /**
+     * A tunnel running on the interface of {@link #currentTunnel}.
+     *
+     * @param handle The handle of its device.
+     * @param config The configuration it runs with.
+     */
+    protected record AttachedTunnel(int handle, Config config) {}
+
+    /**
+     * Replace the running tunnel with another one without interrupting traffic, e.g. by keeping
+     * its interface. On success, {@link #currentTunnelHandle} must refer to the device now
+     * running {@code to}.
+     *
+     * @return false if the backend cannot switch, in which case the old tunnel is taken down and
+     * the new one brought up as usual
+     */
+    protected boolean switchTunnel(final Tunnel from, final Config fromConfig, final Tunnel to, final Config toConfig)
+            throws Exception {
+        return false;
+    }
+
+    /**
+     * Register the callback the native library posts device events to.
+     */
+    protected abstract void setTunnelEventSink(TunnelEventSink sink);
+
     protected abstract BackendMode setBackendModeInternal(BackendMode backendMode) throws Exception;
 
     @Override
     public Statistics getStatistics(final Tunnel tunnel) throws Exception {
+        return collectStatistics(tunnel, false);
+    }
+
+    /**
+     * Take a snapshot of a running tunnel. Only the periodic samples of the {@link
+     * StatisticsSampler} feed the throughput trackers, so that their intervals stay regular; other
+     * snapshots get the rates last recorded.
+     */
+    private Statistics collectStatistics(final Tunnel tunnel, final boolean periodic) throws Exception {
         final Statistics stats = new Statistics();
-        if (tunnel != currentTunnel || currentTunnelHandle == -1) {
+        final int handle = snapshot.get().handleOf(tunnel);
+        if (handle == -1) {
             return stats;
         }
-        final String config = getTunnelConfig(currentTunnelHandle);
-        if (config == null) {
-            return stats;
-        }
-        Key key = null;
-        long rx = 0;
-        long tx = 0;
-        String endpoint = "";
-        long latestHandshakeMSec = 0;
-        for (final String line : config.split("\\n")) {
-            if (line.startsWith("public_key=")) {
-                if (key != null) {
-                    stats.add(key, endpoint, rx, tx, latestHandshakeMSec);
-                }
-                rx = 0;
-                tx = 0;
-                latestHandshakeMSec = 0;
+        synchronized (statsLock) {
+            if (statsRecordsSupported) {
                 try {
-                    key = Key.fromHex(line.substring(11));
-                } catch (final KeyFormatException ignored) {
-                    key = null;
-                }
-            } else if (line.startsWith("rx_bytes=")) {
-                if (key == null) {
-                    continue;
-                }
-                try {
-                    rx = Long.parseLong(line.substring(9));
-                } catch (final NumberFormatException ignored) {
-                    rx = 0;
-                }
-            } else if (line.startsWith("endpoint=")) {
-                if (key == null) {
-                    continue;
-                }
-                try {
-                    endpoint = line.substring(9);
-                } catch (final Exception ignored) {
-                    endpoint = "";
-                }
-            } else if (line.startsWith("tx_bytes=")) {
-                if (key == null) {
-                    continue;
-                }
-                try {
-                    tx = Long.parseLong(line.substring(9));
-                } catch (final NumberFormatException ignored) {
-                    tx = 0;
-                }
-            } else if (line.startsWith("last_handshake_time_sec=")) {
-                if (key == null) {
-                    continue;
-                }
-                try {
-                    latestHandshakeMSec += Long.parseLong(line.substring(24)) * 1000;
-                } catch (final NumberFormatException ignored) {
-                    latestHandshakeMSec = 0;
-                }
-            } else if (line.startsWith("last_handshake_time_nsec=")) {
-                if (key == null) {
-                    continue;
-                }
-                try {
-                    latestHandshakeMSec += Long.parseLong(line.substring(25)) / 1000000;
-                } catch (final NumberFormatException ignored) {
-                    latestHandshakeMSec = 0;
+                    int peers = getTunnelStatistics(handle, statsBuffer);
+                    if (peers * Statistics.RECORD_STRIDE > statsBuffer.length) {
+                        statsBuffer = new long[peers * Statistics.RECORD_STRIDE];
+                        peers = getTunnelStatistics(handle, statsBuffer);
+                    }
+                    // The text below comes from the same device dump, so it would fail the same way.
+                    if (peers < 0)
+                        return stats;
+                    stats.addRecords(statsBuffer, Math.min(peers, statsBuffer.length / Statistics.RECORD_STRIDE), statsKeys);
+                    stats.setDataPath(getDataPathStatistics());
+                    trackThroughput(handle, stats, periodic);
+                    return stats;
+                } catch (final UnsatisfiedLinkError e) {
+                    // Apps embedding this module may load a native library built from an older
+                    // tree, which lacks the records call but still serves the UAPI text.
+                    Log.w(TAG, "Native statistics records unavailable, falling back to UAPI text", e);
+                    statsRecordsSupported = false;
                 }
             }
-        }
-        if (key != null) {
-            stats.add(key, endpoint, rx, tx, latestHandshakeMSec);
+            final String config = getTunnelConfig(handle);
+            if (config != null) {
+                uapiParser.parse(config, stats);
+                stats.setDataPath(getDataPathStatistics());
+                trackThroughput(handle, stats, periodic);
+            }
         }
         return stats;
     }
 
+    private void trackThroughput(final int handle, final Statistics stats, final boolean periodic) {
+        if (periodic)
+            throughput.record(handle, stats, stats.timestamp());
+        else
+            throughput.attach(handle, stats);
+    }
+
+    @Override
+    public StatisticsSampler getStatisticsSampler() {
+        return statisticsSampler;
+    }
+
     @Override
     public boolean resolveDDNS(Config config, boolean isIpv4Preferred) throws Exception {
         if(currentTunnelHandle == -1 || currentTunnel == null) throw new BackendException(BackendException.Reason.SERVICE_NOT_RUNNING);
@@ -306,7 +972,7 @@ public abstract class AbstractBackend implements Backend {
         Log.d(TAG, "Re-resolving endpoints");
         resolvePeerEndpoints(config, isIpv4Preferred, false);
         Statistics stats = getStatistics(currentTunnel);
-        boolean hasUpdate = false;
+        final List<Key> changedPeers = new ArrayList<>();
         for (final Peer peer : config.getPeers()) {
             Optional<InetEndpoint> epOpt = peer.getEndpoint();
             if (epOpt.isEmpty()) continue;
@@ -326,19 +992,17 @@ public abstract class AbstractBackend implements Backend {
                 Log.d(TAG, "No stats match for peer pubkey: " + peer.getPublicKey().toBase64());
                 continue;
             }
-            String resolvedHost = resolved.getHost();
-            Log.d(TAG, "Running endpoint: " + activeEndpoint + " resolved host: " + resolvedHost);
+            Log.d(TAG, "Running endpoint: " + activeEndpoint + " resolved endpoint: " + resolved);
 
-            if (!activeEndpoint.contains(resolvedHost)) {
-                hasUpdate = true;
-                break;
+            if (!DdnsWatcher.isSameEndpoint(activeEndpoint, resolved)) {
+                changedPeers.add(peer.getPublicKey());
             }
         }
-        if (hasUpdate) {
-            Log.d(TAG, "D-DNS has a new IP, updating the tunnel..");
+        if (!changedPeers.isEmpty()) {
+            Log.d(TAG, "D-DNS has a new IP for " + changedPeers.size() + " peer(s), updating the tunnel..");
 
-            boolean result = updateActiveTunnelPeers(config);
-            if (!result) {
+            final String settings = ConfigDiff.endpoints(config, changedPeers).toAwgUserspaceString(isIpv4Preferred, context);
+            if (setTunnelUapi(currentTunnelHandle, settings) != 0) {
                 throw new BackendException(BackendException.Reason.UAPI_UPDATE_FAILED);
             }
             return true;
@@ -348,42 +1012,207 @@ public abstract class AbstractBackend implements Backend {
 
 
 
+    @Override
+    public void setDdnsWatcherEnabled(final boolean enabled) {
+        if (!ddnsWatcher.setEnabled(enabled) || !enabled)
+            return;
+        tunnelLock.lock();
+        try {
+            restartDdnsWatcher();
+        } finally {
+            unlockTunnel();
+        }
+    }
+
+    /**
+     * Re-resolve an endpoint host for the {@link DdnsWatcher} and move the peers using it whose
+     * running endpoint is no longer one of its addresses.
+     *
+     * @return how long the new resolution stays valid, or -1 if unknown
+     */
+    long checkEndpointHost(final String host) throws Exception {
+        final BackendSnapshot state = snapshot.get();
+        for (final Tunnel tunnel : state.getRunningTunnels()) {
+            final Config config = state.getConfig(tunnel);
+            final Optional<InetEndpoint> endpoint = config != null ? DdnsWatcher.endpointOfHost(config, host)
+                    : Optional.empty();
+            if (endpoint.isEmpty())
+                continue;
+            endpoint.get().clearCache();
+            if (endpoint.get().getResolved(tunnel.isIpv4ResolutionPreferred(), context).isEmpty())
+                return -1;
+            tunnelLock.lock();
+            try {
+                for (final Map.Entry<Tunnel, AttachedTunnel> running : runningTunnels().entrySet())
+                    moveEndpoints(running.getKey(), running.getValue(), host);
+            } finally {
+                unlockTunnel();
+            }
+            return endpoint.get().getRemainingTtlMillis();
+        }
+        return -1;
+    }
+
+    /**
+     * Point the peers of a running tunnel that use an endpoint host at the address it resolves to
+     * now, unless they already use it.
+     */
+    private void moveEndpoints(final Tunnel tunnel, final AttachedTunnel running, final String host) throws Exception {
+        final Config config = running.config();
+        final List<Key> peers = DdnsWatcher.peersOfHost(config, host);
+        if (peers.isEmpty())
+            return;
+        final boolean isIpv4Preferred = tunnel.isIpv4ResolutionPreferred();
+        final Optional<InetEndpoint> resolved = DdnsWatcher.endpointOfHost(config, host)
+                .flatMap(endpoint -> endpoint.getResolved(isIpv4Preferred, context));
+        if (resolved.isEmpty())
+            return;
+        final Statistics stats = getStatistics(tunnel);
+        final List<Key> changedPeers = new ArrayList<>();
+        for (final Key key : peers) {
+            final Statistics.PeerStats peerStats = stats.peer(key);
+            if (peerStats == null || !DdnsWatcher.isSameEndpoint(peerStats.resolvedEndpoint(), resolved.get()))
+                changedPeers.add(key);
+        }
+        if (changedPeers.isEmpty())
+            return;
+        Log.i(TAG, "Endpoint host " + host + " now resolves to " + resolved.get() + ", updating "
+                + changedPeers.size() + " peer(s) of tunnel " + tunnel.getName());
+        final String settings = ConfigDiff.endpoints(config, changedPeers).toAwgUserspaceString(isIpv4Preferred, context);
+        if (setTunnelUapi(running.handle(), settings) != 0)
+            throw new BackendException(BackendException.Reason.UAPI_UPDATE_FAILED);
+    }
+
     @Nullable
     protected abstract String getTunnelConfig(int handle);
 
+    /**
+     * Apply a userspace API set operation to a running tunnel.
+     *
+     * @return zero on success.
+     */
+    protected abstract int setTunnelUapi(int handle, String settings);
+
+    /**
+     * Close and reopen the sockets of a running tunnel.
+     *
+     * @return zero on success.
+     */
+    protected abstract int rebindTunnel(int handle);
+
+    /**
+     * Fill {@code records} with the fixed-size per-peer statistics records of a running tunnel.
+     *
+     * @return the number of peers on the tunnel, which may exceed the number of records that fit,
+     * or a negative value on failure.
+     */
+    protected abstract int getTunnelStatistics(int handle, long[] records);
+
+    /**
+     * Get the counters of the data path in front of the tunnel, if traffic passes through one.
+     */
+    @Nullable
+    protected DataPathStatistics getDataPathStatistics() {
+        return null;
+    }
+
+    /**
+     * Resolve the endpoints of all peers concurrently, each with its own retries and backoff,
+     * within a single deadline. The results are cached by the endpoints, so serializing the
+     * config afterwards does not resolve again.
+     */
     protected void resolvePeerEndpoints(Config config, boolean isIpv4Preferred, boolean withCache) throws BackendException {
-        List<InetEndpoint> failedEndpoints = new ArrayList<>();
-        for (int i = 0; i < DNS_RESOLUTION_RETRIES; ++i) {
-            failedEndpoints.clear();
-            for (final Peer peer : config.getPeers()) {
-                Optional<InetEndpoint> epOpt = peer.getEndpoint();
-                if (epOpt.isEmpty()) continue;
-                InetEndpoint ep = epOpt.get();
-                if(!withCache)
-                    ep.clearCache();
-                if (ep.getResolved(isIpv4Preferred, context).isEmpty()) {
-                    failedEndpoints.add(ep);
-                }
-            }
-            if (failedEndpoints.isEmpty()) break;
-            if (i < DNS_RESOLUTION_RETRIES - 1) {
-                for (InetEndpoint ep : failedEndpoints) {
-                    Log.w(TAG, "DNS host \"" + ep.getHost() + "\" failed (attempt " + (i + 1) + " of " + DNS_RESOLUTION_RETRIES + ")");
-                }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DNS_RESOLUTION_DEADLINE_MS);
+        final Map<InetEndpoint, Future<Boolean>> pending = new IdentityHashMap<>();
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        for (final Peer peer : config.getPeers()) {
+            Optional<InetEndpoint> epOpt = peer.getEndpoint();
+            if (epOpt.isEmpty()) continue;
+            InetEndpoint ep = epOpt.get();
+            pending.put(ep, RESOLVER_EXECUTOR.submit(() -> resolveEndpoint(ep, isIpv4Preferred, withCache, deadline,
+                    abandoned)));
+        }
+        try {
+            for (final Map.Entry<InetEndpoint, Future<Boolean>> entry : pending.entrySet()) {
+                final long remaining = deadline - System.nanoTime();
+                final boolean resolved;
                 try {
-                    Thread.sleep(INITIAL_BACKOFF_MS * (1 << i));
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new BackendException(BackendException.Reason.DNS_RESOLUTION_FAILURE, "Interrupted during DNS retry");
+                    resolved = entry.getValue().get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                } catch (final TimeoutException | ExecutionException e) {
+                    throw new BackendException(BackendException.Reason.DNS_RESOLUTION_FAILURE, entry.getKey().getHost());
                 }
-            } else {
-                throw new BackendException(BackendException.Reason.DNS_RESOLUTION_FAILURE, failedEndpoints.get(0).getHost());
+                if (!resolved)
+                    throw new BackendException(BackendException.Reason.DNS_RESOLUTION_FAILURE, entry.getKey().getHost());
             }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackendException(BackendException.Reason.DNS_RESOLUTION_FAILURE, "Interrupted during DNS retry");
+        } finally {
+            // Lookups are shared with other callers for the same host, so the ones in progress are
+            // left to finish rather than interrupted; only the retries after them are dropped.
+            abandoned.set(true);
+            for (final Future<Boolean> future : pending.values())
+                future.cancel(false);
         }
     }
 
+    private boolean resolveEndpoint(final InetEndpoint ep, final boolean isIpv4Preferred, final boolean withCache,
+                                    final long deadline, final AtomicBoolean abandoned)
+            throws InterruptedException {
+        for (int i = 0; i < DNS_RESOLUTION_RETRIES && !abandoned.get(); ++i) {
+            // A failure is cached as well, so it has to be cleared for the retry to query again.
+            if (!withCache || i > 0)
+                ep.clearCache();
+            if (ep.getResolved(isIpv4Preferred, context).isPresent())
+                return true;
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (i == DNS_RESOLUTION_RETRIES - 1 || remaining <= 0)
+                break;
+            Log.w(TAG, "DNS host \"" + ep.getHost() + "\" failed (attempt " + (i + 1) + " of " + DNS_RESOLUTION_RETRIES + ")");
+            Thread.sleep(Math.min(INITIAL_BACKOFF_MS * (1 << i), remaining));
+        }
+        return false;
+    }
+
+    /**
+     * Get the configuration a tunnel runs after its peers were updated: only the peers are sent
+     * to the device, so the rest stays as it was brought up.
+     */
+    private static Config withPeersOf(final Tunnel tunnel, final Config running, final Config update) {
+        if (running.getInterface().equals(update.getInterface()) && running.getProxies().equals(update.getProxies())
+                && Objects.equals(running.getDnsSettings(), update.getDnsSettings()))
+            return update;
+        Log.w(TAG, "Changes of tunnel " + tunnel.getName() + " outside its peers apply when it is brought up again");
+        return new Config.Builder()
+                .setInterface(running.getInterface())
+                .addPeers(update.getPeers())
+                .addProxies(running.getProxies())
+                .setDnsSettings(running.getDnsSettings())
+                .build();
+    }
+
     @Override
-    public abstract boolean updateActiveTunnelPeers(Config config) throws Exception;
+    public boolean updateActiveTunnelPeers(final Config config) throws Exception {
+        tunnelLock.lock();
+        try {
+            final Tunnel tunnel = currentTunnel;
+            if (currentTunnelHandle == -1 || tunnel == null) throw new UnsupportedOperationException();
+            final Config running = currentConfig;
+            // Only send what changed, so that untouched peers keep their sessions and allowed IPs.
+            // Every endpoint is sent again all the same, pointing the peers at the current
+            // addresses of their hosts, as sending the whole configuration did.
+            final ConfigDiff diff = running != null ? ConfigDiff.between(running, config).withEndpoints(config) : null;
+            final String settings = diff != null
+                    ? diff.toAwgUserspaceString(tunnel.isIpv4ResolutionPreferred(), context)
+                    : config.toAwgUserspacePeersString(tunnel.isIpv4ResolutionPreferred(), context);
+            if (!settings.isEmpty() && setTunnelUapi(currentTunnelHandle, settings) != 0)
+                return false;
+            currentConfig = running != null ? withPeersOf(tunnel, running, config) : config;
+            return true;
+        } finally {
+            unlockTunnel();
+        }
+    }
 
     @NonNullForAll
     public static class VpnService extends android.net.VpnService implements SocketProtector {
@@ -394,11 +1223,22 @@ public abstract class AbstractBackend implements Backend {
 
         @Nullable private Thread hevStartThread;
         @Nullable private ParcelFileDescriptor fd;
+        @Nullable private ProtectedSocketFactory protectedSocketFactory;
 
         public Builder getBuilder() {
             return new Builder();
         }
 
+        /**
+         * The socket factory for connections that must bypass the tunnel. The same instance is
+         * returned for the lifetime of the service, so that pooled DoH connections are reused.
+         */
+        synchronized SocketFactory getProtectedSocketFactory() {
+            if (protectedSocketFactory == null)
+                protectedSocketFactory = new ProtectedSocketFactory();
+            return protectedSocketFactory;
+        }
+
         @Override
         public void onCreate() {
             vpnService.complete(this);
@@ -425,6 +1265,8 @@ public abstract class AbstractBackend implements Backend {
                 awgResetJNIGlobals();
             }
             owner = null;
+            InetEndpoint.clearDoHConnections();
+            InetEndpoint.clearDoTConnections();
             if (!vpnService.isDone()) {
                 vpnService.cancel(false);
             }
@@ -436,13 +1278,27 @@ public abstract class AbstractBackend implements Backend {
             final Tunnel tunnel = owner.currentTunnel;
             if (tunnel != null) {
                 if (owner.currentTunnelHandle != -1) {
+                    if (owner instanceof GoBackend) {
+                        for (final AttachedTunnel attached : owner.attachedTunnels.values())
+                            awgTurnOff(attached.handle());
+                    }
                     if(owner instanceof GoBackend) awgTurnOff(owner.currentTunnelHandle);
                     if(owner instanceof ProxyGoBackend) awgStopProxy();
                 }
+                InetEndpoint.removeResolutionListener(owner.resolutionListener);
+                owner.ddnsWatcher.stop();
+                owner.handshakeWatchdog.stop();
+                owner.startingEvents = null;
                 owner.currentTunnel = null;
                 owner.currentTunnelHandle = -1;
                 owner.currentConfig = null;
+                final Set<Tunnel> detached = new HashSet<>(owner.attachedTunnels.keySet());
+                owner.attachedTunnels.clear();
+                owner.throughput.clear();
                 owner.backendMode = BackendMode.Inactive.INSTANCE;
+                owner.publishState();
+                for (final Tunnel attached : detached)
+                    attached.onStateChange(Tunnel.State.DOWN);
                 tunnel.onStateChange(Tunnel.State.DOWN);
             }
         }
@@ -10,6 +10,7 @@ import org.amnezia.awg.util.NonNullForAll;
 
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import androidx.annotation.Nullable;
 
@@ -35,6 +36,15 @@ public interface Backend {
      */
     Tunnel.State getState(Tunnel tunnel) throws Exception;
 
+    /**
+     * Get a consistent view of the running tunnels and the mode of the backend. It never waits
+     * for a state change in progress, and reflects either all of it or none of it, which makes it
+     * the way for frequent readers such as statistics pollers to look at the backend.
+     *
+     * @return The state of the backend after the last completed state change.
+     */
+    BackendSnapshot getSnapshot();
+
     /**
      * Get the active mode of the backend.
      *
@@ -52,6 +62,15 @@ public interface Backend {
      */
     Statistics getStatistics(Tunnel tunnel) throws Exception;
 
+    /**
+     * Get the shared sampler for tunnel statistics. Consumers that refresh statistics periodically
+     * should subscribe to it rather than calling {@link #getStatistics} themselves, so that a
+     * single native call serves all of them.
+     *
+     * @return The statistics sampler of this backend.
+     */
+    StatisticsSampler getStatisticsSampler();
+
     /**
      * Determine version of underlying backend.
      *
@@ -92,10 +111,155 @@ public interface Backend {
     boolean resolveDDNS(Config config, boolean isIpv4Preferred) throws Exception;
 
     /**
-     * Update tunnel peer configs via IPC without bringing the tunnel down.
+     * Enable or disable re-resolving the endpoint hostnames of a running tunnel when their DNS
+     * records expire. While enabled, which is the default, a peer whose host moved is pointed at
+     * its new address without a call to {@link #resolveDDNS}. Checks pause while the screen is off
+     * or no network is available.
+     *
+     * @param enabled Whether endpoints should be watched.
+     */
+    void setDdnsWatcherEnabled(boolean enabled);
+
+    /**
+     * Update tunnel peer configs via IPC without bringing the tunnel down. Only the peers that
+     * differ from the running configuration are sent, so that the others keep their sessions,
+     * along with the endpoints of all peers, as resolved now. Only the peers of {@code config} are
+     * adopted; changes to the rest of it apply when the tunnel is brought up again.
      */
     boolean updateActiveTunnelPeers(Config config) throws Exception;
 
+    /**
+     * Update the peers of one of the running tunnels, which need not be the one brought up with
+     * {@link #setState}.
+     *
+     * @param tunnel The running tunnel to update.
+     * @param config The new configuration of the tunnel.
+     * @return false if the device rejected the update.
+     * @throws Exception Exception raised if the tunnel is not running.
+     */
+    boolean updateTunnelPeers(Tunnel tunnel, Config config) throws Exception;
+
+    /**
+     * Set the state of a tunnel next to the running ones instead of in their place. Tunnels
+     * brought up this way share the interface of the tunnel brought up with {@link #setState},
+     * and receive the traffic to their allowed IPs, which must not overlap with those of any
+     * running tunnel. They go down with that tunnel. If no tunnel is running, this is the same
+     * as {@link #setState}.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel. Must be {@code UP} or {@code DOWN}.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return The updated state of the tunnel.
+     * @throws Exception Exception raised while changing state, e.g. a {@link BackendException}
+     *                   with {@link BackendException.Reason#ROUTES_OVERLAP}, or
+     *                   {@link BackendException.Reason#ALONGSIDE_UNSUPPORTED} if the backend cannot
+     *                   run tunnels side by side.
+     */
+    Tunnel.State setStateAlongside(Tunnel tunnel, Tunnel.State state, @Nullable Config config) throws Exception;
+
+    /**
+     * Set the state of a tunnel without blocking the caller. Operations started with the
+     * asynchronous methods run one at a time, in order, on a background thread. A request that is
+     * superseded before it starts, such as an earlier state change of the same tunnel, is not
+     * executed; its future completes with the outcome of the request that replaced it. Calls to
+     * the blocking methods are not ordered with respect to queued operations.
+     *
+     * @param tunnel The tunnel to control the state of.
+     * @param state  The new state for this tunnel.
+     * @param config The configuration for this tunnel, may be null if state is {@code DOWN}.
+     * @return A future for the updated state of the tunnel. Cancelling it drops the request if it
+     * has not started, and interrupts it if it has and interruption is allowed.
+     * @see #setState
+     */
+    CompletableFuture<Tunnel.State> setStateAsync(Tunnel tunnel, Tunnel.State state, @Nullable Config config);
+
+    /**
+     * Set the state of a tunnel next to the running ones without blocking the caller, queued
+     * like {@link #setStateAsync}, with which it shares the state requests of each tunnel.
+     *
+     * @see #setStateAlongside
+     */
+    CompletableFuture<Tunnel.State> setStateAlongsideAsync(Tunnel tunnel, Tunnel.State state, @Nullable Config config);
+
+    /**
+     * Update the peers of a running tunnel without blocking the caller, queued like
+     * {@link #setStateAsync}. A pending peer update of the same tunnel is replaced by a newer one,
+     * and cancelled by a later state change of the tunnel.
+     *
+     * @see #updateTunnelPeers
+     */
+    CompletableFuture<Boolean> updatePeersAsync(Tunnel tunnel, Config config);
+
+    /**
+     * Set the mode of the backend without blocking the caller, queued like
+     * {@link #setStateAsync}. Only the last of several pending mode changes is applied.
+     *
+     * @see #setBackendMode
+     */
+    CompletableFuture<BackendMode> setBackendModeAsync(BackendMode backendMode);
+
+    /**
+     * Register a listener for handshake and status events of running tunnels. Events are pushed
+     * by the native device as they happen and delivered in batches on a single background thread.
+     *
+     * @param listener The listener to add.
+     */
+    void addTunnelEventListener(TunnelEventListener listener);
+
+    /**
+     * Unregister a listener previously added with {@link #addTunnelEventListener}.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeTunnelEventListener(TunnelEventListener listener);
+
+    /**
+     * Get the phase timings of the last time a tunnel was brought up, whether it came up or not.
+     *
+     * @param tunnel The tunnel to get the trace of.
+     * @return The trace, or null if the tunnel was not brought up by this backend.
+     */
+    @Nullable
+    TunnelStartupTrace getStartupTrace(Tunnel tunnel);
+
+    /**
+     * Register a listener that is handed the phase timings of each tunnel bring-up, including
+     * restarts and failed attempts.
+     *
+     * @param listener The listener to add.
+     */
+    void addStartupTraceListener(TunnelStartupTrace.Listener listener);
+
+    /**
+     * Unregister a listener previously added with {@link #addStartupTraceListener}.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeStartupTraceListener(TunnelStartupTrace.Listener listener);
+
+    /**
+     * Enable or disable the {@link HandshakeWatchdog}, which recovers a running tunnel whose peers
+     * stopped answering by re-resolving their endpoints, rebinding its sockets and finally
+     * restarting it. It is enabled by default.
+     *
+     * @param enabled Whether running tunnels should be watched.
+     */
+    void setHandshakeWatchdogEnabled(boolean enabled);
+
+    /**
+     * Register a listener for the recovery steps taken by the {@link HandshakeWatchdog}.
+     *
+     * @param listener The listener to add.
+     */
+    void addRecoveryListener(HandshakeWatchdog.Listener listener);
+
+    /**
+     * Unregister a listener previously added with {@link #addRecoveryListener}.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeRecoveryListener(HandshakeWatchdog.Listener listener);
+
     abstract class BackendMode {
 
         private BackendMode() {}
@@ -58,6 +58,8 @@ public final class BackendException extends Exception {
         TUN_CREATION_ERROR,
         GO_ACTIVATION_ERROR_CODE,
         DNS_RESOLUTION_FAILURE,
-        SERVICE_NOT_RUNNING
+        SERVICE_NOT_RUNNING,
+        ROUTES_OVERLAP,
+        ALONGSIDE_UNSUPPORTED
     }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import androidx.annotation.Nullable;
+import org.amnezia.awg.config.Config;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable view of what a backend runs, published whole after each state change. Readers get
+ * a consistent picture without waiting for a state change in progress: they see the state before
+ * it or after it, never a mix.
+ */
+@NonNullForAll
+public final class BackendSnapshot {
+    static final BackendSnapshot EMPTY = new BackendSnapshot(0, null, null, -1, Collections.emptyMap(),
+            Backend.BackendMode.Inactive.INSTANCE);
+
+    private final long version;
+    @Nullable private final Tunnel tunnel;
+    @Nullable private final Config config;
+    private final int handle;
+    private final Map<Tunnel, AbstractBackend.AttachedTunnel> attached;
+    private final Backend.BackendMode backendMode;
+
+    private BackendSnapshot(final long version, @Nullable final Tunnel tunnel, @Nullable final Config config,
+                            final int handle, final Map<Tunnel, AbstractBackend.AttachedTunnel> attached,
+                            final Backend.BackendMode backendMode) {
+        this.version = version;
+        this.tunnel = tunnel;
+        this.config = config;
+        this.handle = handle;
+        this.attached = attached;
+        this.backendMode = backendMode;
+    }
+
+    /**
+     * Get the snapshot that follows this one, or this one if nothing changed.
+     */
+    BackendSnapshot next(@Nullable final Tunnel tunnel, @Nullable final Config config, final int handle,
+                         final Map<Tunnel, AbstractBackend.AttachedTunnel> attached,
+                         final Backend.BackendMode backendMode) {
+        if (tunnel == this.tunnel && config == this.config && handle == this.handle
+                && attached.equals(this.attached) && backendMode == this.backendMode)
+            return this;
+        return new BackendSnapshot(version + 1, tunnel, config, handle,
+                Collections.unmodifiableMap(new LinkedHashMap<>(attached)), backendMode);
+    }
+
+    /**
+     * @return a number that grows with each state change, to tell whether two reads saw the
+     * same state
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the tunnel brought up with {@link Backend#setState}, or null if none is running
+     */
+    @Nullable
+    public Tunnel getTunnel() {
+        return tunnel;
+    }
+
+    /**
+     * @return the configuration of a running tunnel, or null if it is not running
+     */
+    @Nullable
+    public Config getConfig(final Tunnel tunnel) {
+        if (tunnel == this.tunnel)
+            return config;
+        final AbstractBackend.AttachedTunnel running = attached.get(tunnel);
+        return running != null ? running.config() : null;
+    }
+
+    /**
+     * @return the running tunnels, starting with the one brought up with {@link Backend#setState}
+     */
+    public Set<Tunnel> getRunningTunnels() {
+        if (tunnel == null)
+            return Collections.emptySet();
+        final Set<Tunnel> running = new LinkedHashSet<>();
+        running.add(tunnel);
+        running.addAll(attached.keySet());
+        return Collections.unmodifiableSet(running);
+    }
+
+    public Tunnel.State getState(final Tunnel tunnel) {
+        return tunnel == this.tunnel || attached.containsKey(tunnel) ? Tunnel.State.UP : Tunnel.State.DOWN;
+    }
+
+    public Backend.BackendMode getBackendMode() {
+        return backendMode;
+    }
+
+    /**
+     * Get the device handle of a running tunnel, or -1 if it is not running or its device is
+     * being restarted.
+     */
+    int handleOf(final Tunnel tunnel) {
+        if (tunnel == this.tunnel)
+            return handle;
+        final AbstractBackend.AttachedTunnel running = attached.get(tunnel);
+        return running != null ? running.handle() : -1;
+    }
+
+    int handle() {
+        return handle;
+    }
+
+    /**
+     * Get the running tunnel whose device has a handle, or null if none has it.
+     */
+    @Nullable
+    Tunnel tunnelOf(final int handle) {
+        if (handle < 0)
+            return null;
+        if (tunnel != null && handle == this.handle)
+            return tunnel;
+        for (final Map.Entry<Tunnel, AbstractBackend.AttachedTunnel> running : attached.entrySet()) {
+            if (running.getValue().handle() == handle)
+                return running.getKey();
+        }
+        return null;
+    }
+}
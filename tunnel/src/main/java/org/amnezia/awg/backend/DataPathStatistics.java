@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+/**
+ * Counters of the hev-socks5-tunnel leg that carries kill switch traffic between the TUN
+ * interface and the local SOCKS5 proxy. Comparing them with the peer counters of the same
+ * {@link Statistics} shows the overhead and drops of the loopback hop.
+ *
+ * @param txPackets Packets written by hev-socks5-tunnel to the TUN interface.
+ * @param txBytes   Bytes written by hev-socks5-tunnel to the TUN interface.
+ * @param rxPackets Packets read by hev-socks5-tunnel from the TUN interface.
+ * @param rxBytes   Bytes read by hev-socks5-tunnel from the TUN interface.
+ */
+@NonNullForAll
+public record DataPathStatistics(long txPackets, long txBytes, long rxPackets, long rxBytes) {
+    private static final int COUNTERS = 4;
+
+    /**
+     * Parse the counters returned by {@code TProxyService.TProxyGetStats()}.
+     *
+     * @return the counters, or {@code null} if hev-socks5-tunnel is not running.
+     */
+    @Nullable
+    static DataPathStatistics fromCounters(@Nullable final long[] counters) {
+        if (counters == null || counters.length < COUNTERS)
+            return null;
+        return new DataPathStatistics(counters[0], counters[1], counters[2], counters[3]);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.PowerManager;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import org.amnezia.awg.config.Config;
+import org.amnezia.awg.config.InetAddresses;
+import org.amnezia.awg.config.InetEndpoint;
+import org.amnezia.awg.config.ParseException;
+import org.amnezia.awg.config.Peer;
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-resolves the endpoint hostnames of the running tunnels when their DNS records expire, and
+ * moves the peers whose address changed. Each host is checked on its own schedule, following its
+ * TTL plus some jitter so that hosts resolved together do not stay in lockstep. Checks are paused
+ * while the screen is off or no network is available, and the overdue ones run when that ends.
+ */
+@NonNullForAll
+final class DdnsWatcher {
+    private static final String TAG = "AmneziaWG/DdnsWatcher";
+    static final long MIN_INTERVAL_MILLIS = 30_000;
+    // Used when the host could not be resolved, so its TTL is unknown.
+    static final long RETRY_INTERVAL_MILLIS = 60_000;
+    private static final double JITTER = 0.1;
+    private static final long RESUME_SPREAD_MILLIS = 5_000;
+
+    private final AbstractBackend backend;
+    private final Context context;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, ScheduledFuture<?>> checks = new HashMap<>();
+    private final Map<String, Long> due = new HashMap<>();
+    private final Set<Network> networks = new HashSet<>();
+    private boolean enabled = true;
+    private boolean running;
+    private boolean interactive = true;
+    @Nullable private BroadcastReceiver screenReceiver;
+    @Nullable private ConnectivityManager.NetworkCallback networkCallback;
+
+    DdnsWatcher(final AbstractBackend backend, final Context context) {
+        this.backend = backend;
+        this.context = context;
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "AmneziaWG-DDNS");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return whether the setting changed
+     */
+    synchronized boolean setEnabled(final boolean enabled) {
+        if (this.enabled == enabled)
+            return false;
+        this.enabled = enabled;
+        if (!enabled)
+            stop();
+        return true;
+    }
+
+    /**
+     * Start watching the endpoints of the running tunnels, after one of them came up or went down.
+     */
+    synchronized void start(final Collection<Config> configs) {
+        stop();
+        if (!enabled)
+            return;
+        final long now = now();
+        for (final Config config : configs) {
+            for (final Peer peer : config.getPeers()) {
+                peer.getEndpoint().filter(ep -> !isNumeric(ep.getHost()) && !due.containsKey(ep.getHost()))
+                        .ifPresent(ep -> due.put(ep.getHost(), now + nextDelayMillis(ep.getRemainingTtlMillis(), random())));
+            }
+        }
+        if (due.isEmpty())
+            return;
+        running = true;
+        registerCallbacks();
+        scheduleDue();
+    }
+
+    synchronized void stop() {
+        running = false;
+        for (final ScheduledFuture<?> check : checks.values())
+            check.cancel(false);
+        checks.clear();
+        due.clear();
+        unregisterCallbacks();
+    }
+
+    private boolean isActive() {
+        return running && interactive && !networks.isEmpty();
+    }
+
+    private void scheduleDue() {
+        if (!isActive())
+            return;
+        final long now = now();
+        for (final Map.Entry<String, Long> entry : due.entrySet()) {
+            if (checks.containsKey(entry.getKey()))
+                continue;
+            long delay = entry.getValue() - now;
+            // Spread out the checks that fell due while paused.
+            if (delay <= 0)
+                delay = (long) (random() * RESUME_SPREAD_MILLIS);
+            schedule(entry.getKey(), delay);
+        }
+    }
+
+    private void pause() {
+        for (final ScheduledFuture<?> check : checks.values())
+            check.cancel(false);
+        checks.clear();
+    }
+
+    private void schedule(final String host, final long delayMillis) {
+        checks.put(host, executor.schedule(() -> check(host), delayMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private void check(final String host) {
+        synchronized (this) {
+            checks.remove(host);
+            if (!isActive())
+                return;
+        }
+        long next = RETRY_INTERVAL_MILLIS;
+        try {
+            next = backend.checkEndpointHost(host);
+        } catch (final Exception e) {
+            Log.w(TAG, "Failed to check endpoint host " + host, e);
+        }
+        synchronized (this) {
+            if (!running || !due.containsKey(host))
+                return;
+            final long delay = next < 0 ? RETRY_INTERVAL_MILLIS : nextDelayMillis(next, random());
+            due.put(host, now() + delay);
+            if (isActive())
+                schedule(host, delay);
+        }
+    }
+
+    private synchronized void setInteractive(final boolean interactive) {
+        this.interactive = interactive;
+        if (isActive())
+            scheduleDue();
+        else
+            pause();
+    }
+
+    private synchronized void setNetworkAvailable(final Network network, final boolean available) {
+        if (available)
+            networks.add(network);
+        else
+            networks.remove(network);
+        if (isActive())
+            scheduleDue();
+        else
+            pause();
+    }
+
+    private void registerCallbacks() {
+        final PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        interactive = power == null || power.isInteractive();
+        screenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                setInteractive(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+            }
+        };
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(screenReceiver, filter);
+
+        final ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity == null) {
+            // Without a way to tell, assume the network is there.
+            networks.add(null);
+            return;
+        }
+        // The tunnel is the default network, so watch the physical networks underneath it.
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(final Network network) {
+                setNetworkAvailable(network, true);
+            }
+
+            @Override
+            public void onLost(final Network network) {
+                setNetworkAvailable(network, false);
+            }
+        };
+        connectivity.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build(), networkCallback);
+    }
+
+    private void unregisterCallbacks() {
+        if (screenReceiver != null) {
+            try {
+                context.unregisterReceiver(screenReceiver);
+            } catch (final IllegalArgumentException ignored) {
+                // Already unregistered.
+            }
+            screenReceiver = null;
+        }
+        if (networkCallback != null) {
+            final ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            try {
+                if (connectivity != null)
+                    connectivity.unregisterNetworkCallback(networkCallback);
+            } catch (final IllegalArgumentException ignored) {
+                // Already unregistered.
+            }
+            networkCallback = null;
+        }
+        networks.clear();
+    }
+
+    /**
+     * Get the delay until the next check of a host.
+     *
+     * @param remainingTtlMillis how long the current resolution stays valid, or -1 if unknown
+     * @param random             a number in [0, 1) to pick the jitter with
+     */
+    static long nextDelayMillis(final long remainingTtlMillis, final double random) {
+        final long base = remainingTtlMillis < 0 ? RETRY_INTERVAL_MILLIS : Math.max(remainingTtlMillis, MIN_INTERVAL_MILLIS);
+        // Only ever check after the records expired, or the check would see the cached answer.
+        return base + (long) (base * JITTER * random);
+    }
+
+    /**
+     * Check whether the endpoint a device is using is the resolved one, comparing addresses
+     * rather than their text, which may be formatted differently.
+     *
+     * @param active   the endpoint reported by the device, e.g. {@code [2001:db8::1]:51820}
+     * @param resolved the numeric endpoint the peer's host resolves to
+     */
+    static boolean isSameEndpoint(final String active, final InetEndpoint resolved) {
+        if (active.isEmpty())
+            return false;
+        try {
+            final InetEndpoint current = InetEndpoint.parse(active);
+            return current.getPort() == resolved.getPort()
+                    && InetAddresses.parse(InetEndpoint.removeBrackets(current.getHost()))
+                    .equals(InetAddresses.parse(InetEndpoint.removeBrackets(resolved.getHost())));
+        } catch (final ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the peers of a config whose endpoint uses a host.
+     */
+    static List<Key> peersOfHost(final Config config, final String host) {
+        final List<Key> peers = new ArrayList<>();
+        for (final Peer peer : config.getPeers()) {
+            final Optional<InetEndpoint> endpoint = peer.getEndpoint();
+            if (endpoint.isPresent() && endpoint.get().getHost().equals(host))
+                peers.add(peer.getPublicKey());
+        }
+        return peers;
+    }
+
+    /**
+     * Get the endpoint of the first peer of a config that uses a host.
+     */
+    static Optional<InetEndpoint> endpointOfHost(final Config config, final String host) {
+        for (final Peer peer : config.getPeers()) {
+            final Optional<InetEndpoint> endpoint = peer.getEndpoint();
+            if (endpoint.isPresent() && endpoint.get().getHost().equals(host))
+                return endpoint;
+        }
+        return Optional.empty();
+    }
+
+    static boolean isNumeric(final String host) {
+        try {
+            InetAddresses.parse(InetEndpoint.removeBrackets(host));
+            return true;
+        } catch (final ParseException e) {
+            return false;
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static double random() {
+        return ThreadLocalRandom.current().nextDouble();
+    }
+}
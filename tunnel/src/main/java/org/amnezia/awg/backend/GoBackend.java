@@ -14,15 +14,25 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import org.amnezia.awg.config.Config;
 import org.amnezia.awg.config.InetNetwork;
+import org.amnezia.awg.config.Interface;
 import org.amnezia.awg.config.Peer;
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
 import static org.amnezia.awg.GoBackend.*;
 
 @NonNullForAll
 public final class GoBackend extends AbstractBackend {
     private static final String TAG = "AmneziaWG/GoBackend";
+    private static final int DEFAULT_MTU = 1280;
 
     public GoBackend(final Context context, final TunnelActionHandler tunnelActionHandler) {
         super(context, tunnelActionHandler);
@@ -30,20 +40,282 @@ public final class GoBackend extends AbstractBackend {
 
     @Override
     protected void configureAndStartTunnel(final Tunnel tunnel, final Config config) throws Exception {
-        if (VpnService.prepare(context) != null) {
-            throw new BackendException(BackendException.Reason.VPN_NOT_AUTHORIZED);
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.PREPARE)) {
+            if (VpnService.prepare(context) != null) {
+                throw new BackendException(BackendException.Reason.VPN_NOT_AUTHORIZED);
+            }
         }
 
-        final VpnService service = startVpnService(this);
-
         if (currentTunnelHandle != -1) {
             Log.w(TAG, "Tunnel already up");
             return;
         }
 
-        resolvePeerEndpoints(config, tunnel.isIpv4ResolutionPreferred(), true);
+        // Establishing the interface routes traffic into the tunnel, so it has to wait for the
+        // endpoints to be resolved, and PreUp runs once both are done, as it always has. Starting
+        // the service and serializing the config overlap with the rest.
+        try (StartupPipeline pipeline = new StartupPipeline(this::traceStartup)) {
+            final CompletableFuture<VpnService> service = pipeline.stage(TunnelStartupTrace.START_SERVICE,
+                    () -> startVpnService(this));
+            final CompletableFuture<Void> resolved = pipeline.stage(TunnelStartupTrace.RESOLVE, () -> {
+                resolvePeerEndpoints(config, tunnel.isIpv4ResolutionPreferred(), true);
+                return null;
+            });
+            final CompletableFuture<String> goConfig = pipeline.stage(TunnelStartupTrace.SERIALIZE,
+                    () -> config.toAwgUserspaceString(tunnel.isIpv4ResolutionPreferred(), context), resolved);
+            final CompletableFuture<VpnService.Builder> builder = pipeline.stage(TunnelStartupTrace.BUILD, () -> {
+                service.join().setUnderlyingNetworks(null);
+                return newBuilder(service.join(), tunnel, config, Collections.emptyList());
+            }, service);
+            final CompletableFuture<ParcelFileDescriptor> established = pipeline.stage(TunnelStartupTrace.ESTABLISH, () -> {
+                final ParcelFileDescriptor tun = establish(builder.join());
+                pipeline.onRollback(() -> closeQuietly(tun));
+                return tun;
+            }, builder, resolved);
+            final CompletableFuture<Void> preUp = pipeline.stage(TunnelStartupTrace.PRE_UP, () -> {
+                tunnelActionHandler.runPreUp(config.getInterface().getPreUp());
+                return null;
+            }, established);
+
+            try (final ParcelFileDescriptor tun = pipeline.await(established)) {
+                final String settings = pipeline.await(goConfig);
+                pipeline.await(preUp);
+                Log.d(TAG, "Go backend " + awgVersion());
+                currentTunnelHandle = turnOn(tunnel, config, tun, settings);
+                try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.POST_UP)) {
+                    tunnelActionHandler.runPostUp(config.getInterface().getPostUp());
+                }
+            }
+            if (currentTunnelHandle < 0)
+                throw new BackendException(BackendException.Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
+
+            protect(pipeline.await(service), currentTunnelHandle);
+            pipeline.commit();
+        }
+    }
+
+    /**
+     * Switch the running tunnel over without dropping traffic. When the new configuration needs
+     * the same TUN interface, the device is reconfigured in place with the new keys, peers and
+     * obfuscation parameters. Otherwise the new interface and device are brought up before the
+     * old device is closed; Android moves the VPN's traffic to the new interface as soon as it
+     * is established.
+     */
+    @Override
+    protected boolean switchTunnel(final Tunnel from, final Config fromConfig, final Tunnel to, final Config toConfig)
+            throws Exception {
+        final VpnService service = vpnService.getNow(null);
+        if (service == null || currentTunnelHandle == -1)
+            return false;
+        if (VpnService.prepare(context) != null)
+            throw new BackendException(BackendException.Reason.VPN_NOT_AUTHORIZED);
+
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.RESOLVE)) {
+            resolvePeerEndpoints(toConfig, to.isIpv4ResolutionPreferred(), true);
+        }
+        final String goConfig;
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.SERIALIZE)) {
+            goConfig = toConfig.toAwgUserspaceString(to.isIpv4ResolutionPreferred(), context);
+        }
+        final int oldHandle = currentTunnelHandle;
+
+        // The Pre hooks run once, before the first attempt, and the Post hooks once it succeeded.
+        boolean preHooksRan = false;
+        if (isTunCompatible(from, fromConfig, to, toConfig)) {
+            tunnelActionHandler.runPreDown(fromConfig.getInterface().getPreDown());
+            tunnelActionHandler.runPreUp(toConfig.getInterface().getPreUp());
+            preHooksRan = true;
+            final boolean swapped;
+            try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.TURN_ON)) {
+                swapped = awgSetTunnelUapi(oldHandle, goConfig) == 0;
+            }
+            if (swapped) {
+                // A new listen port makes the device open new sockets, which must bypass the tunnel.
+                protect(service, oldHandle);
+                tunnelActionHandler.runPostDown(fromConfig.getInterface().getPostDown());
+                tunnelActionHandler.runPostUp(toConfig.getInterface().getPostUp());
+                Log.i(TAG, "Switched to " + to.getName() + " on the same interface");
+                return true;
+            }
+            Log.w(TAG, "Unable to reconfigure the device in place");
+        }
+
+        final int newHandle;
+        try (final ParcelFileDescriptor tun = establishTraced(service, to, toConfig, Collections.emptyList())) {
+            if (!preHooksRan)
+                tunnelActionHandler.runPreUp(toConfig.getInterface().getPreUp());
+            newHandle = turnOn(to, toConfig, tun, goConfig);
+        }
+        if (newHandle < 0) {
+            // E.g. both configurations listen on the same port; the caller starts over instead.
+            Log.w(TAG, "Unable to start " + to.getName() + " alongside " + from.getName());
+            return false;
+        }
+        protect(service, newHandle);
+        currentTunnelHandle = newHandle;
+        try {
+            if (!preHooksRan)
+                tunnelActionHandler.runPreDown(fromConfig.getInterface().getPreDown());
+        } finally {
+            awgTurnOff(oldHandle);
+        }
+        tunnelActionHandler.runPostDown(fromConfig.getInterface().getPostDown());
+        tunnelActionHandler.runPostUp(toConfig.getInterface().getPostUp());
+        Log.i(TAG, "Switched to " + to.getName() + " on a new interface");
+        return true;
+    }
 
-        final String goConfig = config.toAwgQuickStringResolved(false, false, tunnel.isIpv4ResolutionPreferred(), context);
+    /**
+     * Check whether two configurations would be given identical TUN interfaces, so that one can
+     * take over the other's.
+     */
+    static boolean isTunCompatible(final Tunnel from, final Config fromConfig, final Tunnel to, final Config toConfig) {
+        final Interface a = fromConfig.getInterface();
+        final Interface b = toConfig.getInterface();
+        return a.getAddresses().equals(b.getAddresses())
+                && a.getDnsServers().equals(b.getDnsServers())
+                && a.getDnsSearchDomains().equals(b.getDnsSearchDomains())
+                && a.getExcludedApplications().equals(b.getExcludedApplications())
+                && a.getIncludedApplications().equals(b.getIncludedApplications())
+                && a.getMtu().orElse(DEFAULT_MTU).equals(b.getMtu().orElse(DEFAULT_MTU))
+                && a.getDomainBlockingEnabled().orElse(false).equals(b.getDomainBlockingEnabled().orElse(false))
+                && from.isMetered().equals(to.isMetered())
+                && routes(fromConfig).equals(routes(toConfig))
+                && allowsAllFamilies(fromConfig) == allowsAllFamilies(toConfig);
+    }
+
+    private static boolean allowsAllFamilies(final Config config) {
+        boolean sawDefaultRoute = false;
+        for (final Peer peer : config.getPeers()) {
+            for (final InetNetwork addr : peer.getAllowedIps()) {
+                if (addr.getMask() == 0)
+                    sawDefaultRoute = true;
+            }
+        }
+        return !(sawDefaultRoute && config.getPeers().size() == 1);
+    }
+
+    /**
+     * Run a tunnel on the interface of the current one. The interface is replaced by one that
+     * also has the tunnel's addresses and routes, and the current device sends the packets to
+     * those routes over to the new device.
+     */
+    @Override
+    protected int attachTunnel(final Tunnel tunnel, final Config config) throws Exception {
+        final VpnService service = vpnService.getNow(null);
+        final Tunnel owner = currentTunnel;
+        final Config ownerConfig = currentConfig;
+        if (service == null || owner == null || ownerConfig == null || currentTunnelHandle == -1)
+            throw new BackendException(BackendException.Reason.SERVICE_NOT_RUNNING);
+
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.RESOLVE)) {
+            resolvePeerEndpoints(config, tunnel.isIpv4ResolutionPreferred(), true);
+        }
+        final String goConfig;
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.SERIALIZE)) {
+            goConfig = config.toAwgUserspaceString(tunnel.isIpv4ResolutionPreferred(), context);
+        }
+        final List<Config> attached = new ArrayList<>();
+        for (final AttachedTunnel running : attachedTunnels.values())
+            attached.add(running.config());
+        final List<Config> withTunnel = new ArrayList<>(attached);
+        withTunnel.add(config);
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.ESTABLISH)) {
+            replaceInterface(service, owner, ownerConfig, withTunnel);
+        }
+
+        final StringBuilder routes = new StringBuilder();
+        for (final InetNetwork route : routes(config))
+            routes.append(routes.length() > 0 ? "," : "").append(route);
+        tunnelActionHandler.runPreUp(config.getInterface().getPreUp());
+        final int handle;
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.TURN_ON)) {
+            handle = awgAttachTunnel(currentTunnelHandle, tunnel.getName(), goConfig,
+                    config.getInterface().getDomainBlockingEnabled().orElse(false),
+                    context.getDataDir().getAbsolutePath(), routes.toString());
+        }
+        if (handle < 0) {
+            // Undo PreUp the way stopping the tunnel would.
+            try {
+                tunnelActionHandler.runPreDown(config.getInterface().getPreDown());
+                replaceInterface(service, owner, ownerConfig, attached);
+            } finally {
+                tunnelActionHandler.runPostDown(config.getInterface().getPostDown());
+            }
+            throw new BackendException(BackendException.Reason.GO_ACTIVATION_ERROR_CODE, handle);
+        }
+        addNativeStartupTimes(handle);
+        tunnelActionHandler.runPostUp(config.getInterface().getPostUp());
+        protect(service, handle);
+        return handle;
+    }
+
+    @Override
+    protected boolean supportsAttachedTunnels() {
+        return true;
+    }
+
+    @Override
+    protected void detachTunnel(final Tunnel tunnel, final AttachedTunnel attached, final boolean updateInterface)
+            throws Exception {
+        tunnelActionHandler.runPreDown(attached.config().getInterface().getPreDown());
+        awgTurnOff(attached.handle());
+        tunnelActionHandler.runPostDown(attached.config().getInterface().getPostDown());
+        final VpnService service = vpnService.getNow(null);
+        final Tunnel owner = currentTunnel;
+        final Config ownerConfig = currentConfig;
+        if (!updateInterface || service == null || owner == null || ownerConfig == null || currentTunnelHandle == -1)
+            return;
+        final List<Config> remaining = new ArrayList<>();
+        for (final AttachedTunnel running : attachedTunnels.values())
+            remaining.add(running.config());
+        replaceInterface(service, owner, ownerConfig, remaining);
+    }
+
+    private void replaceInterface(final VpnService service, final Tunnel owner, final Config ownerConfig,
+                                  final List<Config> attached) throws BackendException {
+        try (final ParcelFileDescriptor tun = establish(service, owner, ownerConfig, attached)) {
+            if (awgReplaceTun(currentTunnelHandle, tun.detachFd()) != 0)
+                throw new BackendException(BackendException.Reason.TUN_CREATION_ERROR);
+        } catch (final IOException e) {
+            // Closing a detached descriptor has nothing to close.
+            Log.w(TAG, "Unable to close the interface descriptor", e);
+        }
+    }
+
+    private ParcelFileDescriptor establishTraced(final VpnService service, final Tunnel tunnel, final Config config,
+                                                 final List<Config> attached) throws BackendException {
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.ESTABLISH)) {
+            return establish(service, tunnel, config, attached);
+        }
+    }
+
+    private ParcelFileDescriptor establish(final VpnService service, final Tunnel tunnel, final Config config,
+                                           final List<Config> attached) throws BackendException {
+        return establish(newBuilder(service, tunnel, config, attached));
+    }
+
+    private static ParcelFileDescriptor establish(final VpnService.Builder builder) throws BackendException {
+        final ParcelFileDescriptor tun = builder.establish();
+        if (tun == null)
+            throw new BackendException(BackendException.Reason.TUN_CREATION_ERROR);
+        return tun;
+    }
+
+    private static void closeQuietly(final ParcelFileDescriptor tun) {
+        try {
+            tun.close();
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to close the interface descriptor", e);
+        }
+    }
+
+    /**
+     * Configure the interface of a tunnel, which also carries the addresses and routes of the
+     * tunnels attached to it.
+     */
+    private VpnService.Builder newBuilder(final VpnService service, final Tunnel tunnel, final Config config,
+                                          final List<Config> attached) {
         final VpnService.Builder builder = service.getBuilder();
         builder.setSession(tunnel.getName());
 
@@ -53,7 +325,14 @@ public final class GoBackend extends AbstractBackend {
         for (final String includedApplication : config.getInterface().getIncludedApplications())
             builder.addAllowedApplication(includedApplication);
 
-        for (final InetNetwork addr : config.getInterface().getAddresses())
+        final Set<InetNetwork> addresses = new LinkedHashSet<>(config.getInterface().getAddresses());
+        final Set<InetNetwork> routes = routes(config);
+        for (final Config other : attached) {
+            addresses.addAll(other.getInterface().getAddresses());
+            routes.addAll(routes(other));
+        }
+
+        for (final InetNetwork addr : addresses)
             builder.addAddress(addr.getAddress(), addr.getMask());
 
         for (final InetAddress addr : config.getInterface().getDnsServers())
@@ -62,43 +341,55 @@ public final class GoBackend extends AbstractBackend {
         for (final String dnsSearchDomain : config.getInterface().getDnsSearchDomains())
             builder.addSearchDomain(dnsSearchDomain);
 
-        boolean sawDefaultRoute = false;
-        for (final Peer peer : config.getPeers()) {
-            for (final InetNetwork addr : peer.getAllowedIps()) {
-                if (addr.getMask() == 0)
-                    sawDefaultRoute = true;
-                builder.addRoute(addr.getAddress(), addr.getMask());
-            }
-        }
+        for (final InetNetwork addr : routes)
+            builder.addRoute(addr.getAddress(), addr.getMask());
 
-        if (!(sawDefaultRoute && config.getPeers().size() == 1)) {
+        if (!attached.isEmpty() || allowsAllFamilies(config)) {
             builder.allowFamily(OsConstants.AF_INET);
             builder.allowFamily(OsConstants.AF_INET6);
         }
 
-        builder.setMtu(config.getInterface().getMtu().orElse(1280));
+        builder.setMtu(config.getInterface().getMtu().orElse(DEFAULT_MTU));
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             builder.setMetered(tunnel.isMetered());
         }
 
-        service.setUnderlyingNetworks(null);
         builder.setBlocking(true);
-        try (final ParcelFileDescriptor tun = builder.establish()) {
-            if (tun == null)
-                throw new BackendException(BackendException.Reason.TUN_CREATION_ERROR);
-            Log.d(TAG, "Go backend " + awgVersion());
-            tunnelActionHandler.runPreUp(config.getInterface().getPreUp());
-            String uapiPath = context.getDataDir().getAbsolutePath();
-            Log.d(TAG, "UAPI path " + uapiPath);
-            currentTunnelHandle = awgTurnOn(tunnel.getName(), tun.detachFd(), goConfig, uapiPath);
-            tunnelActionHandler.runPostUp(config.getInterface().getPostUp());
+        return builder;
+    }
+
+    private int turnOn(final Tunnel tunnel, final Config config, final ParcelFileDescriptor tun, final String goConfig) {
+        final String uapiPath = context.getDataDir().getAbsolutePath();
+        Log.d(TAG, "UAPI path " + uapiPath);
+        final int handle;
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.TURN_ON)) {
+            handle = awgTurnOnUapi(tunnel.getName(), tun.detachFd(), goConfig,
+                    config.getInterface().getDomainBlockingEnabled().orElse(false), uapiPath);
         }
-        if (currentTunnelHandle < 0)
-            throw new BackendException(BackendException.Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
+        if (handle >= 0)
+            addNativeStartupTimes(handle);
+        return handle;
+    }
 
-        service.protect(awgGetSocketV4(currentTunnelHandle));
-        service.protect(awgGetSocketV6(currentTunnelHandle));
+    private void addNativeStartupTimes(final int handle) {
+        final TunnelStartupTrace.Recorder recorder = startupTrace;
+        if (recorder == null)
+            return;
+        final long[] times = new long[TunnelStartupTrace.NATIVE_TIMES_LENGTH];
+        try {
+            if (awgGetStartupTimes(handle, times) > 0)
+                recorder.addNative(times);
+        } catch (final UnsatisfiedLinkError e) {
+            Log.w(TAG, "Native startup times unavailable", e);
+        }
+    }
+
+    private void protect(final VpnService service, final int handle) {
+        try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.PROTECT)) {
+            service.protect(awgGetSocketV4(handle));
+            service.protect(awgGetSocketV6(handle));
+        }
     }
 
     @Override
@@ -114,11 +405,22 @@ public final class GoBackend extends AbstractBackend {
     }
 
     @Override
-    public boolean updateActiveTunnelPeers(Config config) throws UnsupportedOperationException {
-        if (currentTunnelHandle == -1) throw new UnsupportedOperationException();
-        int completed = awgUpdateTunnelPeers(currentTunnelHandle, config.toAwgQuickStringResolved(false, false, currentTunnel.isIpv4ResolutionPreferred(), context));
-        return completed == 0;
+    protected int setTunnelUapi(final int handle, final String settings) {
+        return awgSetTunnelUapi(handle, settings);
+    }
 
+    @Override
+    protected int rebindTunnel(final int handle) {
+        final VpnService service = vpnService.getNow(null);
+        if (service == null)
+            return -1;
+        final int ret = awgRebindTunnel(handle);
+        if (ret != 0)
+            return ret;
+        // The new sockets would otherwise be routed into the tunnel itself.
+        service.protect(awgGetSocketV4(handle));
+        service.protect(awgGetSocketV6(handle));
+        return 0;
     }
 
     @Override
@@ -127,6 +429,16 @@ public final class GoBackend extends AbstractBackend {
         return awgGetConfig(handle);
     }
 
+    @Override
+    protected int getTunnelStatistics(final int handle, final long[] records) {
+        return awgGetStats(handle, records);
+    }
+
+    @Override
+    protected void setTunnelEventSink(final TunnelEventSink sink) {
+        awgSetEventSink(sink);
+    }
+
     @Override
     protected BackendMode setBackendModeInternal(final BackendMode backendMode) {
         Log.w(TAG, "Backend mode not supported for this backend");
@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Notices when the running tunnel stops getting answers from its peers and tries to recover it
+ * without the user toggling it. A peer is stale when it has not completed a handshake for
+ * {@link #STALE_AFTER_MILLIS} while packets are sent to it and none come back, which is what a
+ * server address change or a dropped NAT mapping looks like. Recovery escalates through the
+ * {@link Step}s, waiting longer after each one for a handshake, and starts over with longer waits
+ * once the last step did not help.
+ */
+@NonNullForAll
+public final class HandshakeWatchdog {
+    private static final String TAG = "AmneziaWG/HandshakeWatchdog";
+    /**
+     * How long a session may go without a handshake before it is considered dead; sessions are
+     * rekeyed every two minutes and rejected after three.
+     */
+    public static final long STALE_AFTER_MILLIS = 180_000;
+    static final long CHECK_INTERVAL_MILLIS = 10_000;
+    // How long to give a step to produce a handshake before trying the next one.
+    static final long STEP_WAIT_MILLIS = 20_000;
+    static final long MAX_STEP_WAIT_MILLIS = 600_000;
+    private static final long SAMPLE_TIMEOUT_MILLIS = 5_000;
+
+    /**
+     * The recovery steps, in the order they are tried.
+     */
+    public enum Step {
+        /**
+         * Resolve the endpoint hostnames of the stale peers again and move the peers whose
+         * address changed.
+         */
+        RE_RESOLVE,
+        /**
+         * Close and reopen the tunnel's sockets, which gets it a new NAT mapping.
+         */
+        REBIND,
+        /**
+         * Stop and start the device with the same configuration.
+         */
+        RESTART
+    }
+
+    /**
+     * Listener for the recovery attempts of the watchdog, called on its thread.
+     */
+    public interface Listener {
+        /**
+         * Called after a recovery step was taken.
+         *
+         * @param tunnel     The tunnel being recovered.
+         * @param step       The step that was taken.
+         * @param stalePeers The peers that were found stale.
+         * @param round      How many times all steps were tried before, starting at 0.
+         */
+        void onRecoveryStep(Tunnel tunnel, Step step, List<Key> stalePeers, int round);
+
+        /**
+         * Called when a handshake completed after recovery steps were taken.
+         *
+         * @param tunnel The recovered tunnel.
+         */
+        default void onRecovered(final Tunnel tunnel) {
+        }
+    }
+
+    private final AbstractBackend backend;
+    private final LongSupplier clock;
+    private final ScheduledThreadPoolExecutor executor;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private boolean enabled = true;
+    @Nullable private Tunnel tunnel;
+    @Nullable private Tracker tracker;
+    @Nullable private ScheduledFuture<?> schedule;
+
+    HandshakeWatchdog(final AbstractBackend backend) {
+        this.backend = backend;
+        clock = System::currentTimeMillis;
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "AmneziaWG-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return whether the setting changed
+     */
+    synchronized boolean setEnabled(final boolean enabled) {
+        if (this.enabled == enabled)
+            return false;
+        this.enabled = enabled;
+        if (!enabled)
+            stop();
+        return true;
+    }
+
+    /**
+     * Start watching a tunnel that just came up.
+     */
+    synchronized void start(final Tunnel tunnel) {
+        stop();
+        if (!enabled)
+            return;
+        this.tunnel = tunnel;
+        final Tracker started = new Tracker(clock.getAsLong());
+        tracker = started;
+        schedule = executor.scheduleWithFixedDelay(() -> check(tunnel, started),
+                CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel(false);
+            schedule = null;
+        }
+        tunnel = null;
+        tracker = null;
+    }
+
+    private synchronized boolean isWatching(final Tunnel tunnel, final Tracker tracker) {
+        return this.tunnel == tunnel && this.tracker == tracker;
+    }
+
+    private void check(final Tunnel tunnel, final Tracker tracker) {
+        final Statistics statistics;
+        try {
+            statistics = backend.getStatisticsSampler().refresh(tunnel).get(SAMPLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final Exception e) {
+            Log.w(TAG, "Unable to sample tunnel statistics", e);
+            return;
+        }
+        if (!isWatching(tunnel, tracker))
+            return;
+        final long now = clock.getAsLong();
+        final List<Key> stale = tracker.stalePeers(statistics, now);
+        if (stale.isEmpty()) {
+            if (tracker.recovered(statistics)) {
+                Log.i(TAG, "Tunnel " + tunnel.getName() + " recovered");
+                for (final Listener listener : listeners) {
+                    try {
+                        listener.onRecovered(tunnel);
+                    } catch (final RuntimeException e) {
+                        Log.e(TAG, "Recovery listener failed", e);
+                    }
+                }
+            }
+            return;
+        }
+        // Steps that do not apply, such as re-resolving numeric endpoints, pass to the next one.
+        for (int i = 0; i < Step.values().length; ++i) {
+            final Step step = tracker.nextStep(now);
+            if (step == null)
+                return;
+            final int round = tracker.round();
+            Log.w(TAG, stale.size() + " peer(s) of " + tunnel.getName() + " stale, trying " + step);
+            final boolean taken;
+            try {
+                taken = backend.recover(step, stale);
+            } catch (final Exception e) {
+                Log.e(TAG, "Recovery step " + step + " failed", e);
+                return;
+            }
+            if (!isWatching(tunnel, tracker))
+                return;
+            if (!taken) {
+                tracker.skip();
+                continue;
+            }
+            for (final Listener listener : listeners) {
+                try {
+                    listener.onRecoveryStep(tunnel, step, Collections.unmodifiableList(stale), round);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Recovery listener failed", e);
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * The escalation state of one tunnel, advanced with each statistics sample.
+     */
+    static final class Tracker {
+        private static final Step[] STEPS = Step.values();
+
+        private final long startedAt;
+        private final Map<Key, long[]> counters = new HashMap<>();
+        private int step;
+        private int round;
+        private long nextStepAt;
+        private long escalatedAt = -1;
+
+        Tracker(final long startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Record a sample and get the peers that are sending without hearing back and have not
+         * completed a handshake for too long.
+         */
+        List<Key> stalePeers(final Statistics statistics, final long nowMillis) {
+            final List<Key> stale = new ArrayList<>();
+            for (final Key key : statistics.peers()) {
+                final Statistics.PeerStats peer = statistics.peer(key);
+                if (peer == null)
+                    continue;
+                final long[] previous = counters.put(key, new long[] { peer.rxBytes(), peer.txBytes() });
+                if (previous == null)
+                    continue;
+                // Counters start over when the device is restarted.
+                final long rx = peer.rxBytes() >= previous[0] ? peer.rxBytes() - previous[0] : peer.rxBytes();
+                final long tx = peer.txBytes() >= previous[1] ? peer.txBytes() - previous[1] : peer.txBytes();
+                final long handshake = Math.max(peer.latestHandshakeEpochMillis(), startedAt);
+                if (tx > 0 && rx == 0 && nowMillis - handshake > STALE_AFTER_MILLIS)
+                    stale.add(key);
+            }
+            return stale;
+        }
+
+        /**
+         * Get the step to take now, if the previous one had its time, and move on to the next.
+         */
+        @Nullable
+        Step nextStep(final long nowMillis) {
+            if (nowMillis < nextStepAt)
+                return null;
+            if (escalatedAt < 0)
+                escalatedAt = nowMillis;
+            final Step next = STEPS[step];
+            nextStepAt = nowMillis + waitMillis(round);
+            if (++step == STEPS.length) {
+                step = 0;
+                ++round;
+            }
+            return next;
+        }
+
+        /**
+         * Let the next step be taken right away, as the previous one did not apply.
+         */
+        void skip() {
+            nextStepAt = 0;
+        }
+
+        int round() {
+            return step == 0 ? round - 1 : round;
+        }
+
+        /**
+         * Check whether a handshake completed since the first step was taken, and if so start
+         * over without any backoff.
+         */
+        boolean recovered(final Statistics statistics) {
+            if (escalatedAt < 0)
+                return false;
+            for (final Key key : statistics.peers()) {
+                final Statistics.PeerStats peer = statistics.peer(key);
+                if (peer != null && peer.latestHandshakeEpochMillis() > escalatedAt) {
+                    step = 0;
+                    round = 0;
+                    nextStepAt = 0;
+                    escalatedAt = -1;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static long waitMillis(final int round) {
+            return round >= 5 ? MAX_STEP_WAIT_MILLIS : Math.min(STEP_WAIT_MILLIS << round, MAX_STEP_WAIT_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the asynchronous operations of a backend one at a time, in the order they were submitted,
+ * and collapses operations that were superseded before they started: when the state of a tunnel
+ * is set several times in a row, only the last request runs.
+ * <p>
+ * A superseded operation of the same kind completes with the result of the one that superseded
+ * it, since that is the state the caller ends up with; one of another kind is cancelled.
+ * Operations can be cancelled by the caller. Cancelling one that already runs with
+ * {@code mayInterruptIfRunning} interrupts it, which ends waits for DNS or the VPN service and
+ * lets the operation fail the way it would on any other error.
+ */
+@NonNullForAll
+final class OperationQueue {
+    private final Executor executor;
+    private final LinkedList<Operation<?>> pending = new LinkedList<>();
+    @Nullable private Operation<?> running;
+    @Nullable private Thread worker;
+
+    OperationQueue() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "AmneziaWG-Operations");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * @param executor an executor that runs one task at a time
+     */
+    OperationQueue(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue an operation.
+     *
+     * @param kind       what the operation does
+     * @param target     what it acts on, such as a tunnel, or null for the whole backend
+     * @param supersedes the kinds of operations on the same target whose effect this one
+     *                   replaces; pending ones at the end of the queue for the target are dropped
+     */
+    <T> CompletableFuture<T> submit(final Object kind, @Nullable final Object target, final Collection<?> supersedes,
+                                    final Callable<T> body) {
+        final Operation<T> operation = new Operation<>(kind, target, body);
+        final List<Operation<?>> superseded = new ArrayList<>();
+        synchronized (this) {
+            // Only the trailing run may go, as an earlier operation of another kind depends on it.
+            for (final Iterator<Operation<?>> it = pending.descendingIterator(); it.hasNext(); ) {
+                final Operation<?> previous = it.next();
+                if (!Objects.equals(previous.target, target))
+                    continue;
+                if (!supersedes.contains(previous.kind))
+                    break;
+                it.remove();
+                superseded.add(previous);
+            }
+            pending.add(operation);
+        }
+        for (final Operation<?> previous : superseded) {
+            if (previous.kind.equals(kind))
+                follow(previous, operation);
+            else
+                previous.cancel(false);
+        }
+        executor.execute(this::runNext);
+        return operation;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void follow(final Operation<T> previous, final Operation<?> next) {
+        ((Operation<T>) next).whenComplete((result, e) -> {
+            if (e != null)
+                previous.completeExceptionally(e);
+            else
+                previous.complete(result);
+        });
+    }
+
+    private void runNext() {
+        final Operation<?> operation;
+        synchronized (this) {
+            operation = pending.poll();
+            if (operation == null)
+                return;
+            running = operation;
+            worker = Thread.currentThread();
+        }
+        try {
+            operation.run();
+        } finally {
+            synchronized (this) {
+                running = null;
+                worker = null;
+                // A cancellation that came in as the operation finished must not hit the next one.
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private synchronized void cancelled(final Operation<?> operation, final boolean mayInterruptIfRunning) {
+        if (!pending.remove(operation) && mayInterruptIfRunning && running == operation && worker != null)
+            worker.interrupt();
+    }
+
+    private final class Operation<T> extends CompletableFuture<T> {
+        private final Object kind;
+        @Nullable private final Object target;
+        private final Callable<T> body;
+
+        private Operation(final Object kind, @Nullable final Object target, final Callable<T> body) {
+            this.kind = kind;
+            this.target = target;
+            this.body = body;
+        }
+
+        private void run() {
+            if (isDone())
+                return;
+            try {
+                complete(body.call());
+            } catch (final Exception e) {
+                completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled)
+                cancelled(this, mayInterruptIfRunning);
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Open-addressed table handing out the same {@link Key} instance for a peer across statistics
+ * polls, so decoding a key that has been seen before does not allocate.
+ * <p>
+ * Instances of this class are not thread-safe.
+ */
+@NonNullForAll
+final class PeerKeyCache {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_ENTRIES = 4096;
+
+    private byte[][] raw = new byte[INITIAL_CAPACITY][];
+    private Key[] keys = new Key[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Get the cached {@link Key} for the supplied binary key, creating it on first use.
+     *
+     * @param key a 32-byte binary key. The array is not retained and may be reused by the caller.
+     * @return the interned key
+     */
+    Key intern(final byte[] key) throws KeyFormatException {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        for (@Nullable byte[] candidate; (candidate = raw[slot]) != null; slot = (slot + 1) & mask) {
+            if (Arrays.equals(candidate, key))
+                return keys[slot];
+        }
+        final Key interned = Key.fromBytes(key);
+        if (size >= MAX_ENTRIES) {
+            // Peers churned far beyond any sane config size, start over rather than grow forever.
+            clear();
+        } else if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        insert(interned.getBytes(), interned);
+        return interned;
+    }
+
+    void clear() {
+        raw = new byte[INITIAL_CAPACITY][];
+        keys = new Key[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    private void grow() {
+        final byte[][] oldRaw = raw;
+        final Key[] oldKeys = keys;
+        raw = new byte[oldRaw.length * 2][];
+        keys = new Key[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldRaw.length; ++i) {
+            if (oldRaw[i] != null)
+                insert(oldRaw[i], oldKeys[i]);
+        }
+    }
+
+    private void insert(final byte[] key, final Key interned) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (raw[slot] != null)
+            slot = (slot + 1) & mask;
+        raw[slot] = key;
+        keys[slot] = interned;
+        ++size;
+    }
+
+    private static int hash(final byte[] key) {
+        // Public keys are uniformly distributed, so the first four bytes are a good enough hash.
+        final int h = (key[0] & 0xff) << 24 | (key[1] & 0xff) << 16 | (key[2] & 0xff) << 8 | (key[3] & 0xff);
+        return h ^ (h >>> 16);
+    }
+}
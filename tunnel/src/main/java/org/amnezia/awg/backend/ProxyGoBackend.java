@@ -10,12 +10,14 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import org.amnezia.awg.config.Config;
 import org.amnezia.awg.config.proxy.Socks5Proxy;
+import org.amnezia.awg.hevtunnel.TProxyService;
 import org.amnezia.awg.util.NonNullForAll;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static org.amnezia.awg.ProxyGoBackend.*;
@@ -71,22 +73,44 @@ public final class ProxyGoBackend extends AbstractBackend {
             return;
         }
         boolean isKillSwitch = backendMode instanceof BackendMode.KillSwitch;
-        KillSwitchContext ks = isKillSwitch ? setupKillSwitch(config) : null;
-        Config startConfig = (ks != null) ? ks.config() : config;
-
-        resolvePeerEndpoints(config, tunnel.isIpv4ResolutionPreferred(), true);
-
-        final String quickConfig = startConfig.toAwgQuickStringResolved(false, true, tunnel.isIpv4ResolutionPreferred(), context);
-        tunnelActionHandler.runPreUp(config.getInterface().getPreUp());
-        String uapiPath = context.getDataDir().getAbsolutePath();
-        // simple flag to tell proxy backend to bypass netstack sockets or not
-        int bypass = isKillSwitch ? 1 : 0;
-        currentTunnelHandle = awgStartProxy(tunnel.getName(), quickConfig, uapiPath, bypass);
-        tunnelActionHandler.runPostUp(config.getInterface().getPostUp());
-        if (currentTunnelHandle < 0) {
-            throw new BackendException(BackendException.Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
+
+        // The kill switch and endpoint resolution are independent and overlap; PreUp runs once the
+        // endpoints are resolved, as it always has.
+        try (StartupPipeline pipeline = new StartupPipeline(this::traceStartup)) {
+            final CompletableFuture<Optional<KillSwitchContext>> killSwitch = pipeline.stage(
+                    TunnelStartupTrace.START_SERVICE,
+                    () -> isKillSwitch ? Optional.of(setupKillSwitch(config)) : Optional.empty());
+            final CompletableFuture<Void> resolved = pipeline.stage(TunnelStartupTrace.RESOLVE, () -> {
+                resolvePeerEndpoints(config, tunnel.isIpv4ResolutionPreferred(), true);
+                return null;
+            });
+            final CompletableFuture<String> quickConfig = pipeline.stage(TunnelStartupTrace.SERIALIZE, () -> {
+                final Config startConfig = killSwitch.join().map(KillSwitchContext::config).orElse(config);
+                return startConfig.toAwgQuickStringResolved(false, true, tunnel.isIpv4ResolutionPreferred(), context);
+            }, killSwitch, resolved);
+            final CompletableFuture<Void> preUp = pipeline.stage(TunnelStartupTrace.PRE_UP, () -> {
+                tunnelActionHandler.runPreUp(config.getInterface().getPreUp());
+                return null;
+            }, resolved);
+
+            final String settings = pipeline.await(quickConfig);
+            pipeline.await(preUp);
+            final Optional<KillSwitchContext> ks = pipeline.await(killSwitch);
+            String uapiPath = context.getDataDir().getAbsolutePath();
+            // simple flag to tell proxy backend to bypass netstack sockets or not
+            int bypass = isKillSwitch ? 1 : 0;
+            try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.TURN_ON)) {
+                currentTunnelHandle = awgStartProxy(tunnel.getName(), settings, uapiPath, bypass);
+            }
+            try (TunnelStartupTrace.Section ignored = traceStartup(TunnelStartupTrace.POST_UP)) {
+                tunnelActionHandler.runPostUp(config.getInterface().getPostUp());
+            }
+            if (currentTunnelHandle < 0) {
+                throw new BackendException(BackendException.Reason.GO_ACTIVATION_ERROR_CODE, currentTunnelHandle);
+            }
+            if (ks.isPresent()) ks.get().vpnService.startHevTunnel(ks.get().port);
+            pipeline.commit();
         }
-        if (ks != null) ks.vpnService.startHevTunnel(ks.port);
     }
 
     @Override
@@ -142,10 +166,30 @@ public final class ProxyGoBackend extends AbstractBackend {
     }
 
     @Override
-    public boolean updateActiveTunnelPeers(Config config) throws UnsupportedOperationException {
-        if (currentTunnelHandle == -1) throw new UnsupportedOperationException();
-        int completed = awgUpdateProxyTunnelPeers(currentTunnelHandle, config.toAwgQuickStringResolved(false, false,  currentTunnel.isIpv4ResolutionPreferred(), context));
-        return completed == 0;
+    protected int getTunnelStatistics(final int handle, final long[] records) {
+        return awgGetProxyStats(handle, records);
+    }
+
+    @Override
+    protected void setTunnelEventSink(final TunnelEventSink sink) {
+        awgSetEventSink(sink);
+    }
+
+    @Override
+    @Nullable
+    protected DataPathStatistics getDataPathStatistics() {
+        if (!(backendMode instanceof BackendMode.KillSwitch))
+            return null;
+        return DataPathStatistics.fromCounters(TProxyService.TProxyGetStats());
+    }
+
+    @Override
+    protected int setTunnelUapi(final int handle, final String settings) {
+        return awgSetProxyUapi(handle, settings);
+    }
 
+    @Override
+    protected int rebindTunnel(final int handle) {
+        return awgRebindProxy(handle);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.util.Log;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Runs the stages of bringing a tunnel up as a dependency graph, so that stages which do not
+ * depend on each other, such as starting the VPN service and resolving endpoints, overlap.
+ * <p>
+ * Failure is well defined: the first stage to fail is the one whose exception is thrown, stages
+ * that have not started yet are skipped, and the pipeline waits for the running ones to finish
+ * before it runs the rollback actions registered by the completed ones, most recent first. No
+ * stage is left running once the pipeline is closed.
+ * <p>
+ * A failure, or closing the pipeline before the bring-up was committed, interrupts the stages
+ * still running, so that waits for DNS or the VPN service end there instead of holding up the
+ * rollback. This is how cancelling the operation that brings the tunnel up reaches the stages:
+ * the interrupted caller fails in {@link #await} and closes the pipeline.
+ */
+@NonNullForAll
+final class StartupPipeline implements AutoCloseable {
+    private static final String TAG = "AmneziaWG/StartupPipeline";
+    // Enough for the widest level of the graphs the backends build.
+    private static final int THREADS = 3;
+    private static final ExecutorService EXECUTOR = newExecutor();
+
+    private final Executor executor;
+    private final Function<String, TunnelStartupTrace.Section> tracer;
+    private final List<CompletableFuture<?>> stages = new ArrayList<>();
+    private final Deque<Runnable> rollbacks = new ArrayDeque<>();
+    private final Set<Thread> running = new HashSet<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private boolean committed;
+
+    private static ExecutorService newExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "AmneziaWG-Startup");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @param tracer begins the startup trace section of a stage
+     */
+    StartupPipeline(final Function<String, TunnelStartupTrace.Section> tracer) {
+        this(EXECUTOR, tracer);
+    }
+
+    StartupPipeline(final Executor executor, final Function<String, TunnelStartupTrace.Section> tracer) {
+        this.executor = executor;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Start a stage once the stages it depends on completed.
+     *
+     * @param phase the name of the stage in the startup trace
+     * @param after the stages whose results it needs, which it may {@link CompletableFuture#join}
+     */
+    <T> CompletableFuture<T> stage(final String phase, final Callable<T> body, final CompletableFuture<?>... after) {
+        final CompletableFuture<T> stage = CompletableFuture.allOf(after).thenApplyAsync(ignored -> {
+            final Thread thread = Thread.currentThread();
+            // Registered before checking for a failure, so that a failure after the check interrupts it.
+            synchronized (running) {
+                running.add(thread);
+            }
+            try {
+                if (failure.get() != null)
+                    throw new CancellationException("Skipped " + phase + " after an earlier stage failed");
+                try (TunnelStartupTrace.Section ignoredSection = tracer.apply(phase)) {
+                    return body.call();
+                } catch (final RuntimeException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    throw new CompletionException(e);
+                }
+            } finally {
+                synchronized (running) {
+                    running.remove(thread);
+                    // An interrupt meant for this stage must not hit the next task of the thread.
+                    Thread.interrupted();
+                }
+            }
+        }, executor).whenComplete((result, e) -> {
+            if (e != null)
+                fail(unwrap(e));
+        });
+        synchronized (stages) {
+            stages.add(stage);
+        }
+        return stage;
+    }
+
+    /**
+     * Register an action that undoes a completed stage if the bring-up fails, e.g. closing a
+     * descriptor it opened.
+     */
+    void onRollback(final Runnable rollback) {
+        synchronized (rollbacks) {
+            rollbacks.push(rollback);
+        }
+    }
+
+    /**
+     * Wait for a stage and get its result.
+     *
+     * @throws Exception the exception of the first stage that failed, which need not be this one
+     */
+    <T> T await(final CompletableFuture<T> stage) throws Exception {
+        try {
+            return stage.get();
+        } catch (final ExecutionException | CancellationException e) {
+            final Throwable first = failure.get();
+            throw asException(first != null ? first : unwrap(e));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+            throw e;
+        }
+    }
+
+    private void fail(final Throwable e) {
+        if (!failure.compareAndSet(null, e))
+            return;
+        synchronized (running) {
+            for (final Thread thread : running)
+                thread.interrupt();
+        }
+    }
+
+    /**
+     * Mark the bring-up as done, so that closing the pipeline keeps what the stages did.
+     */
+    void commit() {
+        committed = true;
+    }
+
+    /**
+     * Wait for all stages and, unless the bring-up was committed, interrupt the running ones and
+     * roll back the completed ones.
+     */
+    @Override
+    public void close() {
+        if (!committed)
+            fail(new CancellationException("Bring-up abandoned"));
+        final CompletableFuture<?>[] started;
+        synchronized (stages) {
+            started = stages.toArray(new CompletableFuture<?>[0]);
+        }
+        CompletableFuture.allOf(started).handle((result, e) -> null).join();
+        if (committed)
+            return;
+        while (true) {
+            final Runnable rollback;
+            synchronized (rollbacks) {
+                rollback = rollbacks.poll();
+            }
+            if (rollback == null)
+                break;
+            try {
+                rollback.run();
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Rollback failed", e);
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+            e = e.getCause();
+        return e;
+    }
+
+    private static Exception asException(final Throwable e) {
+        if (e instanceof Exception)
+            return (Exception) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        return new ExecutionException(e);
+    }
+}
@@ -8,8 +8,11 @@ package org.amnezia.awg.backend;
 import android.os.SystemClock;
 
 import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
 import org.amnezia.awg.util.NonNullForAll;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -20,11 +23,28 @@ import androidx.annotation.Nullable;
  */
 @NonNullForAll
 public class Statistics {
+    // Per-peer record layout of the native statistics export, see libwg-go/shared/stats.go.
+    static final int RECORD_PUBLIC_KEY = 0;
+    static final int RECORD_RX_BYTES = 4;
+    static final int RECORD_TX_BYTES = 5;
+    static final int RECORD_HANDSHAKE = 6;
+    static final int RECORD_ENDPOINT_ADDRESS = 7;
+    static final int RECORD_ENDPOINT_META = 9;
+    static final int RECORD_STRIDE = 10;
+
     public record PeerStats(long rxBytes, long txBytes, long latestHandshakeEpochMillis, String resolvedEndpoint) {}
     private final Map<Key, PeerStats> stats = new HashMap<>();
-    private long lastTouched = SystemClock.elapsedRealtime();
+    private final Map<Key, ThroughputTracker.PeerRate> rates = new HashMap<>();
+    @Nullable private ThroughputTracker throughput;
+    @Nullable private DataPathStatistics dataPath;
+    private final long lastTouched;
 
     Statistics() {
+        this(SystemClock.elapsedRealtime());
+    }
+
+    Statistics(final long lastTouched) {
+        this.lastTouched = lastTouched;
     }
 
     /**
@@ -40,7 +60,68 @@ public class Statistics {
      */
     void add(final Key key, final String endpoint, final long rxBytes, final long txBytes, final long latestHandshake) {
         stats.put(key, new PeerStats(rxBytes, txBytes, latestHandshake, endpoint));
-        lastTouched = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Add the peers from a native statistics export, one fixed-size record per peer.
+     *
+     * @param records The records as written by {@code awgGetStats}/{@code awgGetProxyStats}.
+     * @param count   The number of complete records in {@code records}.
+     * @param keys    The cache peer keys are interned in.
+     */
+    void addRecords(final long[] records, final int count, final PeerKeyCache keys) {
+        final byte[] key = new byte[Key.Format.BINARY.getLength()];
+        for (int i = 0; i < count; ++i) {
+            final int base = i * RECORD_STRIDE;
+            unpack(records, base + RECORD_PUBLIC_KEY, key);
+            try {
+                add(keys.intern(key), endpoint(records, base), records[base + RECORD_RX_BYTES],
+                        records[base + RECORD_TX_BYTES], records[base + RECORD_HANDSHAKE]);
+            } catch (final KeyFormatException ignored) {
+                // Cannot happen, the buffer always has the binary key length.
+            }
+        }
+    }
+
+    private static String endpoint(final long[] records, final int base) {
+        final long meta = records[base + RECORD_ENDPOINT_META];
+        final int family = (int) (meta >>> 16);
+        final int port = (int) (meta & 0xffff);
+        if (family != 4 && family != 6) {
+            return "";
+        }
+        final byte[] raw = new byte[16];
+        unpack(records, base + RECORD_ENDPOINT_ADDRESS, raw);
+        try {
+            if (family == 4) {
+                return InetAddress.getByAddress(new byte[]{raw[12], raw[13], raw[14], raw[15]}).getHostAddress() + ':' + port;
+            }
+            return '[' + InetAddress.getByAddress(raw).getHostAddress() + "]:" + port;
+        } catch (final UnknownHostException ignored) {
+            return "";
+        }
+    }
+
+    private static void unpack(final long[] records, final int offset, final byte[] out) {
+        for (int i = 0; i < out.length; ++i) {
+            out[i] = (byte) (records[offset + i / 8] >>> (56 - 8 * (i % 8)));
+        }
+    }
+
+    void setRate(final Key key, final ThroughputTracker.PeerRate rate) {
+        rates.put(key, rate);
+    }
+
+    void setThroughput(final ThroughputTracker throughput) {
+        this.throughput = throughput;
+    }
+
+    void setDataPath(@Nullable final DataPathStatistics dataPath) {
+        this.dataPath = dataPath;
+    }
+
+    long timestamp() {
+        return lastTouched;
     }
 
     /**
@@ -63,6 +144,40 @@ public class Statistics {
         return stats.get(peer);
     }
 
+    /**
+     * Get the transfer rates for the {@link org.amnezia.config.Peer} referenced by the provided
+     * {@link Key}, as of the time this instance was taken.
+     *
+     * @param peer A {@link Key} representing a {@link org.amnezia.config.Peer}.
+     * @return a {@link ThroughputTracker.PeerRate}, or {@code null} if the backend does not track
+     * rates for this peer yet.
+     */
+    @Nullable
+    public ThroughputTracker.PeerRate rate(final Key peer) {
+        return rates.get(peer);
+    }
+
+    /**
+     * Get the tracker the rates of this instance were computed by, for reading the rate history.
+     *
+     * @return the {@link ThroughputTracker} of the tunnel, or {@code null} if rates are not tracked.
+     */
+    @Nullable
+    public ThroughputTracker throughput() {
+        return throughput;
+    }
+
+    /**
+     * Get the counters of the hev-socks5-tunnel leg, which only exists in kill switch mode.
+     *
+     * @return the {@link DataPathStatistics}, or {@code null} if traffic does not pass through
+     * hev-socks5-tunnel.
+     */
+    @Nullable
+    public DataPathStatistics dataPath() {
+        return dataPath;
+    }
+
     /**
      * Get the list of peers being tracked by this instance.
      *
@@ -98,4 +213,30 @@ public class Statistics {
         }
         return tx;
     }
+
+    /**
+     * Get the total receive rate of all the peers being tracked by this instance
+     *
+     * @return the sum of the latest receive rates of all peers, in bytes per second.
+     */
+    public long totalRxRate() {
+        long rate = 0;
+        for (final ThroughputTracker.PeerRate val : rates.values()) {
+            rate += val.rxBytesPerSecond();
+        }
+        return rate;
+    }
+
+    /**
+     * Get the total transmit rate of all the peers being tracked by this instance
+     *
+     * @return the sum of the latest transmit rates of all peers, in bytes per second.
+     */
+    public long totalTxRate() {
+        long rate = 0;
+        for (final ThroughputTracker.PeerRate val : rates.values()) {
+            rate += val.txBytesPerSecond();
+        }
+        return rate;
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Shares tunnel statistics between any number of consumers. Concurrent refreshes of the same
+ * tunnel are collapsed into a single backend call, and a tunnel is only sampled periodically
+ * while at least one {@link Listener} is subscribed to it. A tunnel is kept track of until its
+ * last subscription is closed or it is {@link #forget forgotten}.
+ */
+@NonNullForAll
+public final class StatisticsSampler {
+    private static final String TAG = "AmneziaWG/StatisticsSampler";
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private final Source source;
+    private final ScheduledThreadPoolExecutor executor;
+    private final LongSupplier clock;
+    private final long intervalMillis;
+    private final Map<Tunnel, Channel> channels = new HashMap<>();
+
+    public StatisticsSampler(final Backend backend) {
+        this((tunnel, periodic) -> backend.getStatistics(tunnel), DEFAULT_INTERVAL_MILLIS, SystemClock::elapsedRealtime);
+    }
+
+    StatisticsSampler(final Source source, final long intervalMillis, final LongSupplier clock) {
+        this.source = source;
+        this.intervalMillis = intervalMillis;
+        this.clock = clock;
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "AmneziaWG-StatisticsSampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Start receiving statistics for a tunnel. The tunnel is sampled immediately and then once per
+     * interval until every subscription to it is closed.
+     *
+     * @param tunnel   The tunnel to sample.
+     * @param listener Called on the sampler thread with each new snapshot.
+     * @return A subscription to close when the statistics are no longer needed.
+     */
+    public Subscription subscribe(final Tunnel tunnel, final Listener listener) {
+        final Channel channel;
+        synchronized (this) {
+            channel = channels.computeIfAbsent(tunnel, Channel::new);
+            channel.listeners.add(listener);
+            if (channel.schedule == null) {
+                channel.schedule = executor.scheduleWithFixedDelay(() -> refresh(channel, true),
+                        0, intervalMillis, TimeUnit.MILLISECONDS);
+            } else if (channel.latest != null) {
+                final Statistics latest = channel.latest;
+                executor.execute(() -> notify(listener, tunnel, latest));
+            }
+        }
+        return () -> unsubscribe(channel, listener);
+    }
+
+    /**
+     * Get fresh statistics for a tunnel. A snapshot taken within the last interval is reused, and
+     * callers arriving while a sample is in flight share its result.
+     *
+     * @param tunnel The tunnel to sample.
+     * @return A future completed on the sampler thread with the statistics.
+     */
+    public CompletableFuture<Statistics> refresh(final Tunnel tunnel) {
+        final Channel channel;
+        synchronized (this) {
+            channel = channels.computeIfAbsent(tunnel, Channel::new);
+        }
+        return refresh(channel, false);
+    }
+
+    /**
+     * Get the most recent snapshot taken of a tunnel, without sampling it.
+     */
+    @Nullable
+    public synchronized Statistics latest(final Tunnel tunnel) {
+        final Channel channel = channels.get(tunnel);
+        return channel != null ? channel.latest : null;
+    }
+
+    private CompletableFuture<Statistics> refresh(final Channel channel, final boolean force) {
+        final CompletableFuture<Statistics> future;
+        synchronized (this) {
+            if (channel.inFlight != null)
+                return channel.inFlight;
+            if (!force && channel.latest != null && clock.getAsLong() - channel.latestAt < intervalMillis)
+                return CompletableFuture.completedFuture(channel.latest);
+            future = new CompletableFuture<>();
+            channel.inFlight = future;
+        }
+        executor.execute(() -> sample(channel, future, force));
+        return future;
+    }
+
+    private void sample(final Channel channel, final CompletableFuture<Statistics> future, final boolean periodic) {
+        final Statistics statistics;
+        try {
+            statistics = source.sample(channel.tunnel, periodic);
+        } catch (final Exception e) {
+            synchronized (this) {
+                channel.inFlight = null;
+            }
+            future.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            channel.latest = statistics;
+            channel.latestAt = clock.getAsLong();
+            channel.inFlight = null;
+        }
+        for (final Listener listener : channel.listeners)
+            notify(listener, channel.tunnel, statistics);
+        future.complete(statistics);
+    }
+
+    /**
+     * Drop the last snapshot of a tunnel that went down or was deleted, and the tunnel itself
+     * unless it is subscribed to.
+     */
+    public synchronized void forget(final Tunnel tunnel) {
+        final Channel channel = channels.get(tunnel);
+        if (channel == null)
+            return;
+        if (channel.listeners.isEmpty())
+            channels.remove(tunnel);
+        channel.latest = null;
+    }
+
+    synchronized int size() {
+        return channels.size();
+    }
+
+    private synchronized void unsubscribe(final Channel channel, final Listener listener) {
+        if (!channel.listeners.remove(listener) || !channel.listeners.isEmpty())
+            return;
+        if (channel.schedule != null) {
+            channel.schedule.cancel(false);
+            channel.schedule = null;
+        }
+        channels.remove(channel.tunnel, channel);
+    }
+
+    private static void notify(final Listener listener, final Tunnel tunnel, final Statistics statistics) {
+        try {
+            listener.onStatistics(tunnel, statistics);
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "Statistics listener failed", e);
+        }
+    }
+
+    /**
+     * Receives the statistics snapshots of a subscribed tunnel.
+     */
+    public interface Listener {
+        void onStatistics(Tunnel tunnel, Statistics statistics);
+    }
+
+    /**
+     * A subscription created by {@link #subscribe}. Closing it more than once has no effect.
+     */
+    public interface Subscription extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    interface Source {
+        /**
+         * @param periodic whether this is a scheduled sample of a subscribed tunnel, taken once
+         *                 per interval, rather than a refresh on demand
+         */
+        Statistics sample(Tunnel tunnel, boolean periodic) throws Exception;
+    }
+
+    private static final class Channel {
+        private final Tunnel tunnel;
+        private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+        @Nullable private CompletableFuture<Statistics> inFlight;
+        @Nullable private ScheduledFuture<?> schedule;
+        @Nullable private Statistics latest;
+        private long latestAt;
+
+        private Channel(final Tunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+    }
+}
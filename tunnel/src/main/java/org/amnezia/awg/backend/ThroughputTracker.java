@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Derives per-peer transfer rates from successive {@link Statistics} snapshots of one tunnel.
+ * Samples are kept in a fixed-size ring buffer of primitive counters per peer, from which the
+ * instantaneous rate, an exponentially weighted moving average, the peak rate and a short history
+ * window are computed.
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+@NonNullForAll
+public final class ThroughputTracker {
+    /**
+     * Default number of samples kept per peer.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 60;
+    /**
+     * Default time constant of the moving average, in milliseconds.
+     */
+    public static final long DEFAULT_EWMA_TIME_CONSTANT_MILLIS = 5000;
+
+    private final int historySize;
+    private final long ewmaTimeConstantMillis;
+    private final Map<Key, PeerSamples> peers = new HashMap<>();
+
+    public ThroughputTracker() {
+        this(DEFAULT_HISTORY_SIZE, DEFAULT_EWMA_TIME_CONSTANT_MILLIS);
+    }
+
+    /**
+     * @param historySize            number of samples kept per peer, at least 2.
+     * @param ewmaTimeConstantMillis time constant of the moving average, in milliseconds.
+     */
+    public ThroughputTracker(final int historySize, final long ewmaTimeConstantMillis) {
+        if (historySize < 2)
+            throw new IllegalArgumentException("historySize must be at least 2");
+        if (ewmaTimeConstantMillis <= 0)
+            throw new IllegalArgumentException("ewmaTimeConstantMillis must be positive");
+        this.historySize = historySize;
+        this.ewmaTimeConstantMillis = ewmaTimeConstantMillis;
+    }
+
+    /**
+     * Feed a snapshot into the tracker and attach the resulting rates to it. Peers missing from
+     * the snapshot are forgotten, and a peer whose counters went backwards starts over.
+     *
+     * @param stats     the snapshot to record.
+     * @param nowMillis the monotonic time the snapshot was taken at, in milliseconds.
+     */
+    public synchronized void record(final Statistics stats, final long nowMillis) {
+        for (final Iterator<Key> it = peers.keySet().iterator(); it.hasNext(); ) {
+            if (stats.peer(it.next()) == null)
+                it.remove();
+        }
+        for (final Key key : stats.peers()) {
+            final Statistics.PeerStats peer = stats.peer(key);
+            if (peer == null)
+                continue;
+            PeerSamples samples = peers.get(key);
+            if (samples == null) {
+                samples = new PeerSamples(historySize);
+                peers.put(key, samples);
+            }
+            samples.add(nowMillis, peer.rxBytes(), peer.txBytes(), ewmaTimeConstantMillis);
+            stats.setRate(key, samples.rate());
+        }
+        stats.setThroughput(this);
+    }
+
+    /**
+     * Attach the rates last recorded to a snapshot without recording it, so that reading
+     * statistics between samples neither shortens the sample interval nor moves the peaks.
+     *
+     * @param stats the snapshot to attach the rates to.
+     */
+    public synchronized void attach(final Statistics stats) {
+        for (final Key key : stats.peers()) {
+            final PeerSamples samples = peers.get(key);
+            if (samples != null)
+                stats.setRate(key, samples.rate());
+        }
+        stats.setThroughput(this);
+    }
+
+    /**
+     * Get the latest rates of a peer.
+     *
+     * @param key the public key of the peer.
+     * @return the rates, or {@code null} if the peer has not been recorded yet.
+     */
+    @Nullable
+    public synchronized PeerRate rate(final Key key) {
+        final PeerSamples samples = peers.get(key);
+        return samples == null ? null : samples.rate();
+    }
+
+    /**
+     * Copy the per-interval rates of a peer's history window, oldest first.
+     *
+     * @param key       the public key of the peer.
+     * @param rxRates   receives the received bytes per second of each interval.
+     * @param txRates   receives the transmitted bytes per second of each interval.
+     * @param endMillis receives the end time of each interval, may be {@code null}.
+     * @return the number of intervals written, bounded by the length of the output arrays.
+     */
+    public synchronized int history(final Key key, final long[] rxRates, final long[] txRates,
+                                    @Nullable final long[] endMillis) {
+        final PeerSamples samples = peers.get(key);
+        if (samples == null)
+            return 0;
+        return samples.history(rxRates, txRates, endMillis);
+    }
+
+    /**
+     * Forget all samples, typically because the tunnel went down.
+     */
+    public synchronized void clear() {
+        peers.clear();
+    }
+
+    /**
+     * Transfer rates of a single peer, in bytes per second.
+     *
+     * @param rxBytesPerSecond received rate over the latest sample interval.
+     * @param txBytesPerSecond transmitted rate over the latest sample interval.
+     * @param rxAverage        exponentially weighted moving average of the received rate.
+     * @param txAverage        exponentially weighted moving average of the transmitted rate.
+     * @param rxPeak           highest received rate seen in any sample interval.
+     * @param txPeak           highest transmitted rate seen in any sample interval.
+     */
+    public record PeerRate(long rxBytesPerSecond, long txBytesPerSecond, double rxAverage,
+                           double txAverage, long rxPeak, long txPeak) {
+        static final PeerRate ZERO = new PeerRate(0, 0, 0, 0, 0, 0);
+    }
+
+    private static final class PeerSamples {
+        private final long[] times;
+        private final long[] rx;
+        private final long[] tx;
+        private int head;
+        private int count;
+        private double rxAverage;
+        private double txAverage;
+        private long rxPeak;
+        private long txPeak;
+        private PeerRate rate = PeerRate.ZERO;
+
+        PeerSamples(final int size) {
+            times = new long[size];
+            rx = new long[size];
+            tx = new long[size];
+        }
+
+        void add(final long now, final long rxBytes, final long txBytes, final long timeConstant) {
+            if (count > 0) {
+                final int last = index(count - 1);
+                if (now <= times[last])
+                    return;
+                if (rxBytes < rx[last] || txBytes < tx[last])
+                    reset();
+            }
+            final int slot = index(count);
+            times[slot] = now;
+            rx[slot] = rxBytes;
+            tx[slot] = txBytes;
+            if (count < times.length)
+                ++count;
+            else
+                head = (head + 1) % times.length;
+            if (count < 2)
+                return;
+            final int previous = index(count - 2);
+            final long elapsed = now - times[previous];
+            final long rxRate = perSecond(rxBytes - rx[previous], elapsed);
+            final long txRate = perSecond(txBytes - tx[previous], elapsed);
+            if (count == 2) {
+                rxAverage = rxRate;
+                txAverage = txRate;
+            } else {
+                final double alpha = 1 - Math.exp(-(double) elapsed / timeConstant);
+                rxAverage += alpha * (rxRate - rxAverage);
+                txAverage += alpha * (txRate - txAverage);
+            }
+            rxPeak = Math.max(rxPeak, rxRate);
+            txPeak = Math.max(txPeak, txRate);
+            rate = new PeerRate(rxRate, txRate, rxAverage, txAverage, rxPeak, txPeak);
+        }
+
+        int history(final long[] rxRates, final long[] txRates, @Nullable final long[] endMillis) {
+            final int intervals = Math.min(count - 1, Math.min(rxRates.length, txRates.length));
+            if (intervals <= 0)
+                return 0;
+            final int first = count - 1 - intervals;
+            for (int i = 0; i < intervals; ++i) {
+                final int from = index(first + i);
+                final int to = index(first + i + 1);
+                final long elapsed = times[to] - times[from];
+                rxRates[i] = perSecond(rx[to] - rx[from], elapsed);
+                txRates[i] = perSecond(tx[to] - tx[from], elapsed);
+                if (endMillis != null && i < endMillis.length)
+                    endMillis[i] = times[to];
+            }
+            return intervals;
+        }
+
+        PeerRate rate() {
+            return rate;
+        }
+
+        private void reset() {
+            head = 0;
+            count = 0;
+            rxAverage = 0;
+            txAverage = 0;
+            rxPeak = 0;
+            txPeak = 0;
+            rate = PeerRate.ZERO;
+        }
+
+        private int index(final int i) {
+            return (head + i) % times.length;
+        }
+
+        private static long perSecond(final long bytes, final long elapsedMillis) {
+            return elapsedMillis <= 0 ? 0 : bytes * 1000 / elapsedMillis;
+        }
+    }
+}
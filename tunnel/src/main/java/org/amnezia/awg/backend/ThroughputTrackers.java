@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link ThroughputTracker}s of the devices of a backend, one per device handle, as a tracker
+ * forgets the peers missing from each snapshot and so only follows the peers of one tunnel.
+ */
+@NonNullForAll
+final class ThroughputTrackers {
+    private final Map<Integer, ThroughputTracker> trackers = new ConcurrentHashMap<>();
+
+    /**
+     * Feed a snapshot of a device into its tracker and attach the resulting rates to it.
+     */
+    void record(final int handle, final Statistics stats, final long nowMillis) {
+        trackers.computeIfAbsent(handle, ignored -> new ThroughputTracker()).record(stats, nowMillis);
+    }
+
+    /**
+     * Attach the rates last recorded for a device to a snapshot of it, without recording it.
+     */
+    void attach(final int handle, final Statistics stats) {
+        final ThroughputTracker tracker = trackers.get(handle);
+        if (tracker != null)
+            tracker.attach(stats);
+    }
+
+    /**
+     * Forget the samples of a device that was stopped.
+     */
+    void remove(final int handle) {
+        trackers.remove(handle);
+    }
+
+    void clear() {
+        trackers.clear();
+    }
+}
@@ -8,7 +8,9 @@ import java.util.Collection;
 public interface TunnelActionHandler {
 
     /**
-     * Execute scripts before bringing up the tunnel
+     * Execute scripts before bringing up the tunnel. They run once the peer endpoints are
+     * resolved and, on the VPN backend, the TUN interface is established, but before the device
+     * is started. Other bring-up stages may still be running on other threads.
      *
      * @param scripts Collection of scripts to execute
      */
@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.Optional;
+
+/**
+ * An event raised by a running {@link Tunnel}, delivered to {@link TunnelEventListener}s.
+ *
+ * @param tunnel          The tunnel that raised the event.
+ * @param type            The kind of event.
+ * @param peer            The peer the event is about, if any.
+ * @param detail          A human-readable description from the device, or the raw status code
+ *                        for {@link Type#STATUS} events.
+ * @param timestampMillis The wall clock time at which the event was received.
+ */
+@NonNullForAll
+public record TunnelEvent(Tunnel tunnel, Type type, Optional<Key> peer, String detail, long timestampMillis) {
+
+    /**
+     * The kinds of {@link TunnelEvent}. The ordinals match the event types posted by the native library.
+     */
+    public enum Type {
+        /**
+         * A status code reported by the device, found in {@link TunnelEvent#detail()}.
+         */
+        STATUS,
+        /**
+         * A handshake with the peer completed.
+         */
+        HANDSHAKE_COMPLETE,
+        /**
+         * A handshake with the peer did not complete in time and is being retried or was given up.
+         */
+        HANDSHAKE_FAILED,
+        /**
+         * Nothing was heard back from the peer and a new handshake is being attempted.
+         */
+        PEER_STALE;
+
+        private static final Type[] VALUES = values();
+
+        static Optional<Type> fromNative(final int type) {
+            return type >= 0 && type < VALUES.length ? Optional.of(VALUES[type]) : Optional.empty();
+        }
+    }
+
+    /**
+     * Abbreviate a public key the way the native library names peers, e.g. {@code peer(abcd…wxyz)}.
+     */
+    static String abbreviate(final Key key) {
+        final String base64 = key.toBase64();
+        return "peer(" + base64.substring(0, 4) + '\u2026' + base64.substring(39, 43) + ')';
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.util.Log;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Delivers {@link TunnelEvent}s to listeners on a single thread. Events posted while a delivery
+ * is in progress are collected and delivered together as the next batch, so callers posting from
+ * native threads never wait on listeners.
+ */
+@NonNullForAll
+final class TunnelEventDispatcher {
+    private static final String TAG = "AmneziaWG/TunnelEventDispatcher";
+
+    private final CopyOnWriteArrayList<TunnelEventListener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "AmneziaWG-TunnelEvents");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object lock = new Object();
+    private List<TunnelEvent> pending = new ArrayList<>();
+    private boolean scheduled;
+
+    void addListener(final TunnelEventListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    void removeListener(final TunnelEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    void post(final TunnelEvent event) {
+        if (listeners.isEmpty())
+            return;
+        synchronized (lock) {
+            pending.add(event);
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        executor.execute(this::deliver);
+    }
+
+    private void deliver() {
+        final List<TunnelEvent> batch;
+        synchronized (lock) {
+            batch = Collections.unmodifiableList(pending);
+            pending = new ArrayList<>();
+            scheduled = false;
+        }
+        for (final TunnelEventListener listener : listeners) {
+            try {
+                listener.onTunnelEvents(batch);
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Tunnel event listener failed", e);
+            }
+        }
+    }
+}
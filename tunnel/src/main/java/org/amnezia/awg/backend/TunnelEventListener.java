@@ -0,0 +1,24 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.List;
+
+/**
+ * Listener for handshake and status events of running tunnels.
+ */
+@NonNullForAll
+public interface TunnelEventListener {
+    /**
+     * Called on the backend's event thread with the events received since the previous call,
+     * oldest first. Implementations should return quickly, as they delay later events.
+     *
+     * @param events The batch of events, never empty.
+     */
+    void onTunnelEvents(List<TunnelEvent> events);
+}
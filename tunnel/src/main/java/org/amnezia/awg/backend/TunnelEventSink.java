@@ -0,0 +1,24 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+/**
+ * Receives the events of the native devices, such as handshakes and endpoint changes. It is
+ * called from native code, on the threads of the devices, so it must not block; the names of the
+ * interface and its method are kept from obfuscation for the JNI lookup.
+ */
+@NonNullForAll
+public interface TunnelEventSink {
+    /**
+     * @param handle the device that raised the event, or -1 if it is still coming up
+     * @param type   the ordinal of the {@link TunnelEvent.Type}
+     * @param peer   the abbreviated public key of the peer, or an empty string
+     * @param detail a description of the event, or an empty string
+     */
+    void onEvent(int handle, int type, String peer, String detail);
+}
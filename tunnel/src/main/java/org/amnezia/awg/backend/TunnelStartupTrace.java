@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import android.os.Trace;
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * How long each phase of bringing a tunnel up took. Times are taken from the monotonic clock of
+ * {@link System#nanoTime()}, on both the Java and the native side, and given relative to the start
+ * of the bring-up. Phases may nest: the native phases run within {@link #TURN_ON}.
+ */
+@NonNullForAll
+public final class TunnelStartupTrace {
+    /** Checking that the app may run a VPN. */
+    public static final String PREPARE = "prepare";
+    /** Starting the VPN service, or waiting for it to come up. */
+    public static final String START_SERVICE = "start_service";
+    /** Setting up the resolver for endpoint hostnames. */
+    public static final String RESOLVER_CONFIG = "resolver_config";
+    /** Taking down the tunnel that was running before. */
+    public static final String STOP_PREVIOUS = "stop_previous";
+    /** Resolving the endpoint hostnames. */
+    public static final String RESOLVE = "resolve";
+    /** Serializing the configuration for the native device. */
+    public static final String SERIALIZE = "serialize";
+    /** Configuring the addresses, routes and DNS servers of the TUN interface. */
+    public static final String BUILD = "build";
+    /** Establishing the TUN interface. */
+    public static final String ESTABLISH = "establish";
+    /** Running the PreUp commands. */
+    public static final String PRE_UP = "pre_up";
+    /** Starting the native device, from the JNI call until it returns. */
+    public static final String TURN_ON = "turn_on";
+    /** Running the PostUp commands. */
+    public static final String POST_UP = "post_up";
+    /** Protecting the device's sockets from the tunnel. */
+    public static final String PROTECT = "protect";
+    /** Wrapping the TUN descriptor, on the native side. */
+    public static final String NATIVE_TUN = "native_tun";
+    /** Creating the device, on the native side. */
+    public static final String NATIVE_DEVICE_CREATE = "native_device_create";
+    /** Applying the configuration with IpcSet, on the native side. */
+    public static final String NATIVE_IPC_SET = "native_ipc_set";
+    /** Opening the UAPI socket, on the native side. */
+    public static final String NATIVE_UAPI = "native_uapi";
+    /** Bringing the device up, which binds its sockets, on the native side. */
+    public static final String NATIVE_DEVICE_UP = "native_device_up";
+
+    // In the order of their start and end times in awgGetStartupTimes.
+    private static final String[] NATIVE_PHASES = {
+            NATIVE_TUN, NATIVE_DEVICE_CREATE, NATIVE_IPC_SET, NATIVE_UAPI, NATIVE_DEVICE_UP
+    };
+    /** The length of the array filled by awgGetStartupTimes. */
+    static final int NATIVE_TIMES_LENGTH = NATIVE_PHASES.length * 2;
+
+    /**
+     * One phase of the bring-up.
+     *
+     * @param name          One of the phase constants of {@link TunnelStartupTrace}.
+     * @param offsetNanos   When the phase began, relative to the start of the bring-up.
+     * @param durationNanos How long the phase took.
+     */
+    public record Phase(String name, long offsetNanos, long durationNanos) {
+    }
+
+    /**
+     * Listener for completed bring-ups, called on the thread that brought the tunnel up.
+     */
+    public interface Listener {
+        void onTunnelStartup(Tunnel tunnel, TunnelStartupTrace trace);
+    }
+
+    private final String tunnelName;
+    private final List<Phase> phases;
+    private final long totalNanos;
+    private final boolean successful;
+
+    private TunnelStartupTrace(final String tunnelName, final List<Phase> phases, final long totalNanos,
+                               final boolean successful) {
+        this.tunnelName = tunnelName;
+        this.phases = phases;
+        this.totalNanos = totalNanos;
+        this.successful = successful;
+    }
+
+    public String getTunnelName() {
+        return tunnelName;
+    }
+
+    /**
+     * @return the phases in the order they began; a phase that ran more than once, as when a
+     * switch fell back to a restart, appears once per run
+     */
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    /**
+     * @return the first run of a phase, or null if it did not run
+     */
+    @Nullable
+    public Phase getPhase(final String name) {
+        for (final Phase phase : phases) {
+            if (phase.name().equals(name))
+                return phase;
+        }
+        return null;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return whether the tunnel came up
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Startup of ").append(tunnelName)
+                .append(successful ? " took " : " failed after ").append(totalNanos / 1_000_000).append(" ms:");
+        for (final Phase phase : phases)
+            sb.append(' ').append(phase.name()).append('=').append(phase.durationNanos() / 1_000).append("us");
+        return sb.toString();
+    }
+
+    /**
+     * A phase in progress, ended by closing it.
+     */
+    interface Section extends AutoCloseable {
+        Section NONE = () -> {
+        };
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Records the phases of one bring-up. Phases may run on several threads, but each must be
+     * begun and ended on the same one, in nested order, as they are also emitted as {@link Trace}
+     * sections.
+     */
+    static final class Recorder {
+        private final String tunnelName;
+        private final boolean systrace;
+        private final LongSupplier clock;
+        private final long startNanos;
+        private final List<Phase> phases = new ArrayList<>();
+
+        Recorder(final String tunnelName) {
+            this(tunnelName, true, System::nanoTime);
+        }
+
+        Recorder(final String tunnelName, final boolean systrace, final LongSupplier clock) {
+            this.tunnelName = tunnelName;
+            this.systrace = systrace;
+            this.clock = clock;
+            startNanos = clock.getAsLong();
+        }
+
+        Section begin(final String name) {
+            if (systrace)
+                Trace.beginSection("AmneziaWG:" + name);
+            final long begin = clock.getAsLong();
+            return () -> {
+                add(name, begin, clock.getAsLong());
+                if (systrace)
+                    Trace.endSection();
+            };
+        }
+
+        /**
+         * Add the phases timed by the native device, skipping those it did not run.
+         *
+         * @param times the start and end time of each native phase
+         */
+        void addNative(final long[] times) {
+            for (int i = 0; i < NATIVE_PHASES.length && i * 2 + 1 < times.length; ++i) {
+                if (times[i * 2] != 0 && times[i * 2 + 1] >= times[i * 2])
+                    add(NATIVE_PHASES[i], times[i * 2], times[i * 2 + 1]);
+            }
+        }
+
+        private synchronized void add(final String name, final long beginNanos, final long endNanos) {
+            phases.add(new Phase(name, beginNanos - startNanos, endNanos - beginNanos));
+        }
+
+        synchronized TunnelStartupTrace finish(final boolean successful) {
+            final List<Phase> sorted = new ArrayList<>(phases);
+            sorted.sort(Comparator.comparingLong(Phase::offsetNanos));
+            return new TunnelStartupTrace(tunnelName, Collections.unmodifiableList(sorted),
+                    clock.getAsLong() - startNanos, successful);
+        }
+    }
+}
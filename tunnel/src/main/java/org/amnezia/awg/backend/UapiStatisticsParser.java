@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Single-pass scanner over the text returned by a UAPI {@code get=1} operation. Keys that are not
+ * needed for {@link Statistics} are skipped, numbers are parsed in place, public keys are decoded
+ * into a reused buffer and interned, and unchanged endpoints are reused from the previous scan.
+ * <p>
+ * Instances of this class are not thread-safe.
+ */
+@NonNullForAll
+final class UapiStatisticsParser {
+    private static final int MAX_ENDPOINTS = 4096;
+
+    private final PeerKeyCache keyCache;
+    private final byte[] keyBuffer = new byte[Key.Format.BINARY.getLength()];
+    private final Map<Key, String> endpoints = new HashMap<>();
+
+    UapiStatisticsParser(final PeerKeyCache keyCache) {
+        this.keyCache = keyCache;
+    }
+
+    /**
+     * Scan a UAPI dump and add every peer found in it to {@code into}.
+     *
+     * @param uapi the {@code key=value} lines returned by the device
+     * @param into the statistics to add peers to
+     * @return the number of peers added
+     */
+    int parse(final CharSequence uapi, final Statistics into) {
+        final int length = uapi.length();
+        int peers = 0;
+        @Nullable Key key = null;
+        String endpoint = "";
+        long rx = 0;
+        long tx = 0;
+        long handshakeSec = 0;
+        long handshakeNsec = 0;
+        int lineStart = 0;
+        while (lineStart < length) {
+            final int lineEnd = indexOf(uapi, '\n', lineStart, length);
+            final int separator = indexOf(uapi, '=', lineStart, lineEnd);
+            final int valueStart = separator + 1;
+            if (separator == lineEnd) {
+                lineStart = lineEnd + 1;
+                continue;
+            }
+            if (regionEquals(uapi, lineStart, separator, "public_key")) {
+                if (key != null) {
+                    into.add(key, endpoint, rx, tx, handshakeMillis(handshakeSec, handshakeNsec));
+                    ++peers;
+                }
+                key = decodeKey(uapi, valueStart, lineEnd);
+                endpoint = "";
+                rx = 0;
+                tx = 0;
+                handshakeSec = 0;
+                handshakeNsec = 0;
+            } else if (key != null) {
+                // Lines before the first public_key are interface attributes and are ignored.
+                if (regionEquals(uapi, lineStart, separator, "rx_bytes"))
+                    rx = parseLong(uapi, valueStart, lineEnd);
+                else if (regionEquals(uapi, lineStart, separator, "tx_bytes"))
+                    tx = parseLong(uapi, valueStart, lineEnd);
+                else if (regionEquals(uapi, lineStart, separator, "last_handshake_time_sec"))
+                    handshakeSec = parseLong(uapi, valueStart, lineEnd);
+                else if (regionEquals(uapi, lineStart, separator, "last_handshake_time_nsec"))
+                    handshakeNsec = parseLong(uapi, valueStart, lineEnd);
+                else if (regionEquals(uapi, lineStart, separator, "endpoint"))
+                    endpoint = endpoint(key, uapi, valueStart, lineEnd);
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (key != null) {
+            into.add(key, endpoint, rx, tx, handshakeMillis(handshakeSec, handshakeNsec));
+            ++peers;
+        }
+        return peers;
+    }
+
+    @Nullable
+    private Key decodeKey(final CharSequence uapi, final int start, final int end) {
+        if (end - start != Key.Format.HEX.getLength())
+            return null;
+        for (int i = 0; i < keyBuffer.length; ++i) {
+            final int high = Character.digit(uapi.charAt(start + i * 2), 16);
+            final int low = Character.digit(uapi.charAt(start + i * 2 + 1), 16);
+            if (high < 0 || low < 0)
+                return null;
+            keyBuffer[i] = (byte) (high << 4 | low);
+        }
+        try {
+            return keyCache.intern(keyBuffer);
+        } catch (final KeyFormatException ignored) {
+            return null;
+        }
+    }
+
+    private String endpoint(final Key key, final CharSequence uapi, final int start, final int end) {
+        final String previous = endpoints.get(key);
+        if (previous != null && regionEquals(uapi, start, end, previous))
+            return previous;
+        if (endpoints.size() >= MAX_ENDPOINTS)
+            endpoints.clear();
+        final String endpoint = uapi.subSequence(start, end).toString();
+        endpoints.put(key, endpoint);
+        return endpoint;
+    }
+
+    private static long handshakeMillis(final long sec, final long nsec) {
+        return sec * 1000 + nsec / 1000000;
+    }
+
+    private static int indexOf(final CharSequence s, final char c, final int start, final int end) {
+        for (int i = start; i < end; ++i) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return end;
+    }
+
+    private static boolean regionEquals(final CharSequence s, final int start, final int end, final String expected) {
+        if (end - start != expected.length())
+            return false;
+        for (int i = 0; i < expected.length(); ++i) {
+            if (s.charAt(start + i) != expected.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static long parseLong(final CharSequence s, final int start, final int end) {
+        if (start == end)
+            return 0;
+        long value = 0;
+        for (int i = start; i < end; ++i) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+                return 0;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
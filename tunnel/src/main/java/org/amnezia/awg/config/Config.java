@@ -246,6 +246,19 @@ public final class Config {
     }
 
 
+    /**
+     * Serializes the peers of the {@code Config} as a userspace API update of a running tunnel.
+     * Peers are created or updated in place, so established sessions of unchanged peers are kept.
+     *
+     * @return the peers represented as a series of "key=value" lines
+     */
+    public String toAwgUserspacePeersString(Boolean preferIpv4, Context context) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Peer peer : peers)
+            sb.append(peer.toAwgUserspaceString(preferIpv4, context, true));
+        return sb.toString();
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     public static final class Builder {
         private final ArrayList<Peer> peers = new ArrayList<>();
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import android.content.Context;
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.util.*;
+
+/**
+ * The difference between the peers of two {@link Config}s, matched by public key, expressed as a
+ * minimal userspace API update. Applying it to a tunnel running the old configuration leaves
+ * untouched peers, their sessions and their allowed IPs alone. Interface attributes are not
+ * compared.
+ * <p>
+ * Instances of this class are immutable.
+ */
+@NonNullForAll
+public final class ConfigDiff {
+    private static final String NO_PRESHARED_KEY = "0".repeat(Key.Format.HEX.getLength());
+
+    private final List<Peer> added;
+    private final List<Key> removed;
+    private final List<PeerUpdate> updated;
+
+    private ConfigDiff(final List<Peer> added, final List<Key> removed, final List<PeerUpdate> updated) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.updated = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Compares the peers of two configurations.
+     *
+     * @param from the configuration the tunnel is running
+     * @param to   the configuration the tunnel should run
+     * @return the changes that turn the peers of {@code from} into those of {@code to}
+     */
+    public static ConfigDiff between(final Config from, final Config to) {
+        final Map<Key, Peer> previous = new LinkedHashMap<>();
+        for (final Peer peer : from.getPeers())
+            previous.put(peer.getPublicKey(), peer);
+        final List<Peer> added = new ArrayList<>();
+        final List<PeerUpdate> updated = new ArrayList<>();
+        for (final Peer peer : to.getPeers()) {
+            final Peer old = previous.remove(peer.getPublicKey());
+            if (old == null) {
+                added.add(peer);
+                continue;
+            }
+            if (old.equals(peer))
+                continue;
+            final Set<InetNetwork> addedAllowedIps = new LinkedHashSet<>(peer.getAllowedIps());
+            addedAllowedIps.removeAll(old.getAllowedIps());
+            final PeerUpdate update = new PeerUpdate(peer,
+                    peer.getEndpoint().isPresent() && !peer.getEndpoint().equals(old.getEndpoint()),
+                    !peer.getAllowedIps().containsAll(old.getAllowedIps()),
+                    addedAllowedIps,
+                    !peer.getPersistentKeepalive().equals(old.getPersistentKeepalive()),
+                    !peer.getPreSharedKey().equals(old.getPreSharedKey()));
+            if (!update.isEmpty())
+                updated.add(update);
+        }
+        return new ConfigDiff(added, new ArrayList<>(previous.keySet()), updated);
+    }
+
+    /**
+     * Creates an update of only the endpoints of some peers, for when their hostnames resolve to
+     * new addresses.
+     *
+     * @param config the configuration the tunnel is running
+     * @param peers  the public keys of the peers whose endpoints should be sent again
+     * @return the endpoint updates
+     */
+    public static ConfigDiff endpoints(final Config config, final Collection<Key> peers) {
+        final List<PeerUpdate> updated = new ArrayList<>();
+        for (final Peer peer : config.getPeers()) {
+            if (peer.getEndpoint().isPresent() && peers.contains(peer.getPublicKey()))
+                updated.add(new PeerUpdate(peer, true, false, Collections.emptySet(), false, false));
+        }
+        return new ConfigDiff(Collections.emptyList(), Collections.emptyList(), updated);
+    }
+
+    /**
+     * Extends this update with the endpoints of all peers it does not add, changed or not, for
+     * when their hostnames may resolve to new addresses since they were last sent.
+     *
+     * @param to the configuration this update leads to
+     * @return the changes of this update, with every endpoint sent again
+     */
+    public ConfigDiff withEndpoints(final Config to) {
+        final Map<Key, PeerUpdate> changed = new HashMap<>();
+        for (final PeerUpdate update : updated)
+            changed.put(update.peer.getPublicKey(), update);
+        final Set<Key> addedKeys = new HashSet<>();
+        for (final Peer peer : added)
+            addedKeys.add(peer.getPublicKey());
+        final List<PeerUpdate> withEndpoints = new ArrayList<>();
+        for (final Peer peer : to.getPeers()) {
+            final PeerUpdate update = changed.get(peer.getPublicKey());
+            if (peer.getEndpoint().isEmpty() || addedKeys.contains(peer.getPublicKey())) {
+                if (update != null)
+                    withEndpoints.add(update);
+            } else if (update != null) {
+                withEndpoints.add(new PeerUpdate(peer, true, update.allowedIpsRemoved, update.addedAllowedIps,
+                        update.persistentKeepaliveChanged, update.preSharedKeyChanged));
+            } else {
+                withEndpoints.add(new PeerUpdate(peer, true, false, Collections.emptySet(), false, false));
+            }
+        }
+        return new ConfigDiff(added, removed, withEndpoints);
+    }
+
+    public List<Peer> getAddedPeers() {
+        return added;
+    }
+
+    public List<Key> getRemovedPeers() {
+        return removed;
+    }
+
+    public List<Key> getUpdatedPeers() {
+        final List<Key> keys = new ArrayList<>(updated.size());
+        for (final PeerUpdate update : updated)
+            keys.add(update.peer.getPublicKey());
+        return keys;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+    }
+
+    /**
+     * Serializes the {@code ConfigDiff} as a userspace API set operation. Endpoints are resolved,
+     * and an endpoint that does not resolve is left unchanged on the running peer.
+     *
+     * @return the changes represented as a series of "key=value" lines, without replace_peers
+     */
+    public String toAwgUserspaceString(final Boolean preferIpv4, final Context context) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Key key : removed) {
+            sb.append("public_key=").append(key.toHex()).append('\n');
+            sb.append("remove=true\n");
+        }
+        for (final PeerUpdate update : updated) {
+            final Peer peer = update.peer;
+            sb.append("public_key=").append(peer.getPublicKey().toHex()).append('\n');
+            sb.append("update_only=true\n");
+            if (update.endpointChanged) {
+                peer.getEndpoint().flatMap(ep -> ep.getResolved(preferIpv4, context))
+                        .ifPresent(ep -> sb.append("endpoint=").append(ep).append('\n'));
+            }
+            // The userspace API cannot remove a single allowed IP, so removals resend the full set.
+            if (update.allowedIpsRemoved) {
+                sb.append("replace_allowed_ips=true\n");
+                for (final InetNetwork allowedIp : peer.getAllowedIps())
+                    sb.append("allowed_ip=").append(allowedIp).append('\n');
+            } else {
+                for (final InetNetwork allowedIp : update.addedAllowedIps)
+                    sb.append("allowed_ip=").append(allowedIp).append('\n');
+            }
+            if (update.persistentKeepaliveChanged) {
+                sb.append("persistent_keepalive_interval=")
+                        .append(peer.getPersistentKeepalive().orElse(0)).append('\n');
+            }
+            if (update.preSharedKeyChanged) {
+                sb.append("preshared_key=")
+                        .append(peer.getPreSharedKey().map(Key::toHex).orElse(NO_PRESHARED_KEY)).append('\n');
+            }
+        }
+        for (final Peer peer : added)
+            sb.append(peer.toAwgUserspaceString(preferIpv4, context));
+        return sb.toString();
+    }
+
+    private record PeerUpdate(Peer peer, boolean endpointChanged, boolean allowedIpsRemoved,
+                              Set<InetNetwork> addedAllowedIps, boolean persistentKeepaliveChanged,
+                              boolean preSharedKeyChanged) {
+        boolean isEmpty() {
+            return !endpointChanged && !allowedIpsRemoved && addedAllowedIps.isEmpty()
+                    && !persistentKeepaliveChanged && !preSharedKeyChanged;
+        }
+    }
+}
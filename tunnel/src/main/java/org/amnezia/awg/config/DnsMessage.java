@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal DNS wire format (RFC 1035) support for address lookups: encoding a single A or AAAA
+ * question and reading the addresses and TTLs back out of the answer.
+ */
+@NonNullForAll
+final class DnsMessage {
+    static final int TYPE_A = 1;
+    static final int TYPE_AAAA = 28;
+    private static final int TYPE_SOA = 6;
+    private static final int CLASS_IN = 1;
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private DnsMessage() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Encodes a recursive query for one record type of a host.
+     *
+     * @param id   the message ID, which RFC 8484 recommends to be 0 for DNS-over-HTTPS
+     * @param host the hostname, with or without a trailing dot
+     * @param type {@link #TYPE_A} or {@link #TYPE_AAAA}
+     */
+    static byte[] query(final int id, final String host, final int type) throws UnknownHostException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(18 + host.length());
+        writeShort(out, id);
+        writeShort(out, FLAG_RECURSION_DESIRED);
+        writeShort(out, 1); // QDCOUNT
+        writeShort(out, 0); // ANCOUNT
+        writeShort(out, 0); // NSCOUNT
+        writeShort(out, 0); // ARCOUNT
+        final String name = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+        for (final String label : name.split("\\.", -1)) {
+            final byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length == 0 || bytes.length > 63)
+                throw new UnknownHostException("Invalid hostname: " + host);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+        writeShort(out, type);
+        writeShort(out, CLASS_IN);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the addresses of one record type from a response.
+     *
+     * @param message the response message
+     * @param type    the record type that was queried
+     * @return the answer, which has no addresses if the name does not exist or has no such records
+     * @throws IOException if the message is malformed or the server reported an error
+     */
+    static Answer parse(final byte[] message, final int type) throws IOException {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(message);
+            buffer.getShort(); // ID
+            final int flags = buffer.getShort() & 0xffff;
+            final int questions = buffer.getShort() & 0xffff;
+            final int answers = buffer.getShort() & 0xffff;
+            final int authorities = buffer.getShort() & 0xffff;
+            buffer.getShort(); // ARCOUNT
+            final int rcode = flags & 0xf;
+            if (rcode != 0 && rcode != RCODE_NXDOMAIN)
+                throw new IOException("DNS server returned rcode " + rcode);
+
+            for (int i = 0; i < questions; ++i) {
+                skipName(buffer);
+                buffer.position(buffer.position() + 4);
+            }
+
+            final List<InetAddress> addresses = new ArrayList<>();
+            long ttl = Long.MAX_VALUE;
+            for (int i = 0; i < answers; ++i) {
+                skipName(buffer);
+                final int recordType = buffer.getShort() & 0xffff;
+                buffer.getShort(); // CLASS
+                final long recordTtl = buffer.getInt() & 0xffffffffL;
+                final int length = buffer.getShort() & 0xffff;
+                final int end = buffer.position() + length;
+                // CNAMEs leading to the addresses count too: the answer is only valid as long as
+                // every link of the chain is.
+                ttl = Math.min(ttl, recordTtl);
+                if (recordType == type && length == (type == TYPE_A ? 4 : 16)) {
+                    final byte[] address = new byte[length];
+                    buffer.get(address);
+                    addresses.add(InetAddress.getByAddress(address));
+                }
+                buffer.position(end);
+            }
+            if (!addresses.isEmpty())
+                return new Answer(addresses, ttl);
+
+            // RFC 2308: a negative answer may be cached for the smaller of the SOA record's TTL
+            // and its MINIMUM field.
+            for (int i = 0; i < authorities; ++i) {
+                skipName(buffer);
+                final int recordType = buffer.getShort() & 0xffff;
+                buffer.getShort(); // CLASS
+                final long recordTtl = buffer.getInt() & 0xffffffffL;
+                final int length = buffer.getShort() & 0xffff;
+                final int end = buffer.position() + length;
+                if (recordType == TYPE_SOA && length >= 4) {
+                    final long minimum = buffer.getInt(end - 4) & 0xffffffffL;
+                    return new Answer(addresses, Math.min(recordTtl, minimum));
+                }
+                buffer.position(end);
+            }
+            return new Answer(addresses, Answer.UNKNOWN_TTL);
+        } catch (final BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS message", e);
+        }
+    }
+
+    private static void skipName(final ByteBuffer buffer) {
+        while (true) {
+            final int length = buffer.get() & 0xff;
+            if (length == 0)
+                return;
+            if ((length & 0xc0) == 0xc0) {
+                // A compression pointer always ends the name.
+                buffer.get();
+                return;
+            }
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * The addresses of one record type, and how many seconds they may be cached for, or
+     * {@link #UNKNOWN_TTL} for a negative answer without an SOA record.
+     */
+    record Answer(List<InetAddress> addresses, long ttlSeconds) {
+        static final long UNKNOWN_TTL = -1;
+    }
+}
@@ -2,4 +2,15 @@ package org.amnezia.awg.config;
 
 import java.util.Optional;
 
-public record DnsSettings (Boolean dohEnabled, Optional<String> dohUrl){}
+/**
+ * How endpoint hostnames are resolved.
+ *
+ * @param dohEnabled whether to use DNS-over-HTTPS
+ * @param dohUrl     the DoH server, or the default one if empty
+ * @param dotServer  a DNS-over-TLS server as {@code host[:port]}, used when present
+ */
+public record DnsSettings (Boolean dohEnabled, Optional<String> dohUrl, Optional<String> dotServer){
+    public DnsSettings(Boolean dohEnabled, Optional<String> dohUrl) {
+        this(dohEnabled, dohUrl, Optional.empty());
+    }
+}
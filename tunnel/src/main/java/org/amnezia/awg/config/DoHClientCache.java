@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import androidx.annotation.Nullable;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.amnezia.awg.util.NonNullForAll;
+
+import javax.net.SocketFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of DNS-over-HTTPS clients, keyed by socket factory. All clients
+ * share one connection pool and dispatcher, so lookups for consecutive peers reuse the HTTP/2
+ * connection and TLS session of the first one instead of handshaking again.
+ */
+@NonNullForAll
+final class DoHClientCache {
+    private static final int MAX_CLIENTS = 4;
+    // Resolution comes in bursts at tunnel start and DDNS checks, so keep a connection around
+    // long enough to cover retries but not for the whole lifetime of the tunnel.
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final long CALL_TIMEOUT_SECONDS = 10;
+
+    @Nullable private static OkHttpClient baseClient;
+    private static final Map<SocketFactory, OkHttpClient> clients = new LinkedHashMap<>(MAX_CLIENTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<SocketFactory, OkHttpClient> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    private DoHClientCache() {
+        // Prevent instantiation.
+    }
+
+    static synchronized OkHttpClient get(final Optional<SocketFactory> socketFactory) {
+        if (baseClient == null) {
+            baseClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS))
+                    .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .callTimeout(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .build();
+        }
+        if (socketFactory.isEmpty())
+            return baseClient;
+        OkHttpClient client = clients.get(socketFactory.get());
+        if (client == null) {
+            client = baseClient.newBuilder().socketFactory(socketFactory.get()).build();
+            clients.put(socketFactory.get(), client);
+        }
+        return client;
+    }
+
+    /**
+     * Drops all clients and closes their idle connections, e.g. when the underlying network changes.
+     */
+    static synchronized void clear() {
+        clients.clear();
+        if (baseClient != null)
+            baseClient.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A persistent DNS-over-TLS (RFC 7858) connection. Queries are pipelined over it and matched to
+ * their responses by message ID, so lookups after the first one cost no TLS handshake. The
+ * connection is opened on first use, and opened again by the next query after the server closes
+ * it or it fails.
+ */
+@NonNullForAll
+final class DoTConnection {
+    private static final String TAG = "AmneziaWG/DoTConnection";
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MAX_CONNECTIONS = 4;
+
+    private static final Map<Key, DoTConnection> connections = new LinkedHashMap<>(MAX_CONNECTIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, DoTConnection> eldest) {
+            if (size() <= MAX_CONNECTIONS)
+                return false;
+            eldest.getValue().close();
+            return true;
+        }
+    };
+
+    private final String host;
+    private final int port;
+    private final Optional<SocketFactory> socketFactory;
+    private final Map<Integer, CompletableFuture<byte[]>> pending = new HashMap<>();
+    // Serializes opening the connection, which happens outside the monitor so that the reader
+    // and queries of the previous connection are not held up by a slow handshake.
+    private final Object connectLock = new Object();
+    @Nullable private Socket socket;
+    @Nullable private OutputStream output;
+    private int nextId;
+
+    private DoTConnection(final String host, final int port, final Optional<SocketFactory> socketFactory) {
+        this.host = host;
+        this.port = port;
+        this.socketFactory = socketFactory;
+    }
+
+    static synchronized DoTConnection get(final String host, final int port, final Optional<SocketFactory> socketFactory) {
+        return connections.computeIfAbsent(new Key(host, port, socketFactory.orElse(null)),
+                key -> new DoTConnection(host, port, socketFactory));
+    }
+
+    /**
+     * Closes all connections, e.g. when the underlying network changes.
+     */
+    static synchronized void clear() {
+        for (final DoTConnection connection : connections.values())
+            connection.close();
+        connections.clear();
+    }
+
+    /**
+     * Send a query and receive its response.
+     *
+     * @param query a DNS message, whose ID is replaced with one unique on this connection
+     * @return a future completed with the response on the connection's reader thread
+     */
+    CompletableFuture<byte[]> exchange(final byte[] query) {
+        final CompletableFuture<byte[]> response = new CompletableFuture<>();
+        final OutputStream out;
+        try {
+            out = connect();
+        } catch (final IOException e) {
+            response.completeExceptionally(e);
+            return response;
+        }
+        synchronized (this) {
+            try {
+                if (output != out)
+                    throw new IOException("Connection closed while opening it");
+                int id;
+                do {
+                    id = nextId;
+                    nextId = (nextId + 1) & 0xffff;
+                } while (pending.containsKey(id));
+                final byte[] frame = new byte[query.length + 2];
+                frame[0] = (byte) (query.length >>> 8);
+                frame[1] = (byte) query.length;
+                System.arraycopy(query, 0, frame, 2, query.length);
+                frame[2] = (byte) (id >>> 8);
+                frame[3] = (byte) id;
+                pending.put(id, response);
+                final int queryId = id;
+                // Abandoned queries must not keep their ID forever.
+                response.whenComplete((bytes, e) -> forget(queryId, response));
+                out.write(frame);
+                out.flush();
+            } catch (final IOException e) {
+                final ConnectionClosedException closed = new ConnectionClosedException(e);
+                fail(closed);
+                response.completeExceptionally(closed);
+            }
+        }
+        return response;
+    }
+
+    private OutputStream connect() throws IOException {
+        synchronized (connectLock) {
+            synchronized (this) {
+                if (socket != null && output != null && !socket.isClosed())
+                    return output;
+            }
+            final Socket raw = socketFactory.orElse(SocketFactory.getDefault()).createSocket();
+            final SSLSocket tls;
+            final OutputStream out;
+            try {
+                raw.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                tls = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(raw, host, port, true);
+                final SSLParameters parameters = tls.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                tls.setSSLParameters(parameters);
+                // A server that accepts the connection but stalls the handshake must not hang the lookup.
+                tls.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                tls.startHandshake();
+                // The reader waits for responses indefinitely; queries time out on their own.
+                tls.setSoTimeout(0);
+                out = tls.getOutputStream();
+            } catch (final IOException | RuntimeException e) {
+                raw.close();
+                throw e;
+            }
+            synchronized (this) {
+                socket = tls;
+                output = out;
+            }
+            final InputStream input = tls.getInputStream();
+            final Thread reader = new Thread(() -> read(tls, input), "AmneziaWG-DoT");
+            reader.setDaemon(true);
+            reader.start();
+            Log.d(TAG, "Connected to " + host + ':' + port);
+            return out;
+        }
+    }
+
+    private void read(final Socket connected, final InputStream input) {
+        final DataInputStream in = new DataInputStream(input);
+        try {
+            while (true) {
+                final byte[] message = new byte[in.readUnsignedShort()];
+                in.readFully(message);
+                if (message.length < 2)
+                    continue;
+                final int id = ((message[0] & 0xff) << 8) | (message[1] & 0xff);
+                final CompletableFuture<byte[]> response;
+                synchronized (this) {
+                    response = pending.remove(id);
+                }
+                if (response != null)
+                    response.complete(message);
+            }
+        } catch (final IOException e) {
+            // Servers close idle connections, which is expected and only matters to queries in flight.
+            synchronized (this) {
+                if (socket == connected)
+                    fail(new ConnectionClosedException(e));
+            }
+        }
+    }
+
+    private synchronized void forget(final int id, final CompletableFuture<byte[]> response) {
+        pending.remove(id, response);
+    }
+
+    private void fail(final IOException e) {
+        close();
+        final List<CompletableFuture<byte[]>> failed = new ArrayList<>(pending.values());
+        pending.clear();
+        for (final CompletableFuture<byte[]> response : failed)
+            response.completeExceptionally(e);
+    }
+
+    private synchronized void close() {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (final IOException ignored) {
+        }
+        socket = null;
+        output = null;
+    }
+
+    private record Key(String host, int port, @Nullable SocketFactory socketFactory) {}
+
+    /**
+     * The connection broke or was closed by the server while queries were in flight, so they may
+     * succeed over a new one.
+     */
+    static final class ConnectionClosedException extends IOException {
+        private ConnectionClosedException(final IOException cause) {
+            super("Connection closed: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -8,19 +8,42 @@ package org.amnezia.awg.config;
 import android.content.Context;
 import android.util.Log;
 import androidx.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
-import okhttp3.dnsoverhttps.DnsOverHttps;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 import org.amnezia.awg.util.NonNullForAll;
 
 import javax.net.SocketFactory;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.*;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 /**
@@ -34,14 +57,41 @@ public final class InetEndpoint {
     private static final Pattern FORBIDDEN_CHARACTERS = Pattern.compile("[/?#]");
     private static final String TAG = "PEER";
 
+    // Used when the resolver does not report TTLs.
     private static final long DEFAULT_TTL_SECONDS = 300;
     private static final long NEGATIVE_TTL_SECONDS = 30;
+    // A host that did not resolve is retried within minutes, whatever the SOA says (RFC 2308).
+    private static final long MAX_NEGATIVE_TTL_SECONDS = 300;
+    private static final long RESOLUTION_DELAY_MS = 50;
+    private static final long QUERY_TIMEOUT_MS = 10_000;
+    public static final long DEFAULT_MIN_TTL_SECONDS = 30;
+    public static final long DEFAULT_MAX_TTL_SECONDS = 3600;
+
+    private static long minTtlSeconds = DEFAULT_MIN_TTL_SECONDS;
+    private static long maxTtlSeconds = DEFAULT_MAX_TTL_SECONDS;
 
     private static boolean useDoH = false; // User setting, default false
     public static final String DEFAULT_DOH_URL = "https://1.1.1.1/dns-query";
     private static String preferredDoHUrl = DEFAULT_DOH_URL;
 
-    private static Resolver currentResolver = new SystemResolver();
+    private static volatile Resolver currentResolver = new SystemResolver();
+    private static volatile boolean serveStale = true;
+    private static final CopyOnWriteArrayList<ResolutionListener> resolutionListeners = new CopyOnWriteArrayList<>();
+    private static final Map<String, CompletableFuture<Optional<ResolutionCache.Addresses>>> inFlight =
+            new ConcurrentHashMap<>();
+    private static final int LOOKUP_THREADS = 4;
+    private static final ExecutorService LOOKUP_EXECUTOR = newLookupExecutor();
+    private static final Object storeLock = new Object();
+    @Nullable private static File storeFile;
+    private static volatile boolean storeLoaded;
+    private static final AtomicBoolean storeSavePending = new AtomicBoolean();
+    // Race attempts block on their resolver, so they get their own threads rather than waiting
+    // behind the lookups that started the race.
+    private static final ExecutorService RACE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "AmneziaWG-Race");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void setUseDoH(boolean use) {
         useDoH = use;
@@ -55,17 +105,157 @@ public final class InetEndpoint {
         currentResolver = resolver;
     }
 
+    /**
+     * Choose whether expired resolutions are served while they are refreshed in the background,
+     * and whether the last known addresses are used when a lookup fails. Enabled by default.
+     */
+    public static void setServeStale(final boolean enabled) {
+        serveStale = enabled;
+    }
+
+    /**
+     * Keep the last good resolutions in a file, so that after a process restart tunnels can come
+     * up with them right away while they are revalidated. The file is read on the first lookup
+     * after this call, and rewritten in the background after lookups succeed.
+     *
+     * @param file the cache file, in a directory private to the app
+     */
+    public static void setCacheFile(final File file) {
+        synchronized (storeLock) {
+            if (file.equals(storeFile))
+                return;
+            storeFile = file;
+            storeLoaded = false;
+        }
+    }
+
+    private static void loadStore() {
+        if (storeLoaded)
+            return;
+        final File file;
+        synchronized (storeLock) {
+            if (storeLoaded || storeFile == null)
+                return;
+            storeLoaded = true;
+            file = storeFile;
+            try {
+                final List<ResolutionCache.Snapshot> snapshots = ResolutionStore.read(file, System.currentTimeMillis());
+                for (final ResolutionCache.Snapshot snapshot : snapshots)
+                    ResolutionCache.INSTANCE.restore(snapshot);
+                Log.d(TAG, "Loaded " + snapshots.size() + " cached resolutions");
+            } catch (final FileNotFoundException ignored) {
+                // Nothing was saved yet.
+            } catch (final IOException e) {
+                Log.w(TAG, "Ignoring unreadable resolution cache " + file, e);
+            }
+        }
+    }
+
+    private static void scheduleStoreSave() {
+        synchronized (storeLock) {
+            if (storeFile == null)
+                return;
+        }
+        // Saves requested while one is waiting to run are covered by it.
+        if (!storeSavePending.compareAndSet(false, true))
+            return;
+        try {
+            LOOKUP_EXECUTOR.execute(() -> {
+                storeSavePending.set(false);
+                synchronized (storeLock) {
+                    if (storeFile == null)
+                        return;
+                    try {
+                        ResolutionStore.write(storeFile, ResolutionCache.INSTANCE.snapshot(), System.currentTimeMillis());
+                    } catch (final IOException e) {
+                        Log.w(TAG, "Unable to save resolution cache", e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            storeSavePending.set(false);
+        }
+    }
+
+    /**
+     * Be notified when a background revalidation finds that a host now resolves to different
+     * addresses than the stale ones that were served. Listeners are called on a lookup thread.
+     */
+    public static void addResolutionListener(final ResolutionListener listener) {
+        resolutionListeners.addIfAbsent(listener);
+    }
+
+    public static void removeResolutionListener(final ResolutionListener listener) {
+        resolutionListeners.remove(listener);
+    }
+
+    private static ExecutorService newLookupExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "AmneziaWG-Lookup");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Set the bounds applied to record TTLs before resolutions are cached. The lower bound keeps
+     * hosts with very short TTLs from being looked up on every use; the upper bound caps how long a
+     * changed address can go unnoticed.
+     *
+     * @param minSeconds the shortest time a resolution is cached for
+     * @param maxSeconds the longest time a resolution is cached for
+     */
+    public static void setCacheTtlBounds(final long minSeconds, final long maxSeconds) {
+        if (minSeconds < 0 || maxSeconds < minSeconds)
+            throw new IllegalArgumentException("Invalid TTL bounds: " + minSeconds + ".." + maxSeconds);
+        synchronized (InetEndpoint.class) {
+            minTtlSeconds = minSeconds;
+            maxTtlSeconds = maxSeconds;
+        }
+    }
+
+    static long cacheTtlMillis(final long ttlSeconds, final long fallbackSeconds) {
+        final long min;
+        final long max;
+        synchronized (InetEndpoint.class) {
+            min = minTtlSeconds;
+            max = maxTtlSeconds;
+        }
+        final long seconds = ttlSeconds == Resolution.UNKNOWN_TTL ? fallbackSeconds : ttlSeconds;
+        return TimeUnit.SECONDS.toMillis(Math.max(min, Math.min(max, seconds)));
+    }
+
+    /**
+     * Like {@link #cacheTtlMillis}, for a host that did not resolve. Such an answer is capped far
+     * below positive ones, since a host that comes back should not stay unreachable for an hour.
+     */
+    static long negativeCacheTtlMillis(final long ttlSeconds) {
+        return Math.min(cacheTtlMillis(ttlSeconds, NEGATIVE_TTL_SECONDS),
+                TimeUnit.SECONDS.toMillis(MAX_NEGATIVE_TTL_SECONDS));
+    }
+
+    /**
+     * Closes the pooled DNS-over-HTTPS connections, which are bound to the network they were
+     * opened on.
+     */
+    public static void clearDoHConnections() {
+        DoHClientCache.clear();
+    }
+
+    /**
+     * Closes the persistent DNS-over-TLS connections, which are bound to the network they were
+     * opened on.
+     */
+    public static void clearDoTConnections() {
+        DoTConnection.clear();
+    }
+
     private final String host;
     private final boolean isResolved;
-    private final Object lock = new Object();
     private final int port;
-    private Instant lastFailedResolution = Instant.MIN;
-
-    // Dual caches for IPv4 and IPv6
-    @Nullable private InetEndpoint resolvedIpv4;
-    @Nullable private InetEndpoint resolvedIpv6;
-    private Instant lastResolutionIpv4 = Instant.MIN;
-    private Instant lastResolutionIpv6 = Instant.MIN;
 
     private InetEndpoint(final String host, final boolean isResolved, final int port) {
         this.host = host;
@@ -119,91 +309,210 @@ public final class InetEndpoint {
     public Optional<InetEndpoint> getResolved(Boolean preferIpv4, Context context) {
         Log.d(TAG, "Resolving with ipv4 preferred: " + preferIpv4 + " and resolver: " + currentResolver.getClass().getSimpleName());
         if (isResolved) return Optional.of(this);
-        Instant now = Instant.now();
-        synchronized (lock) {
-            Instant lastRes = preferIpv4 ? lastResolutionIpv4 : lastResolutionIpv6;
-            InetEndpoint cached = preferIpv4 ? resolvedIpv4 : resolvedIpv6;
-            if (Duration.between(lastRes, now).getSeconds() <= DEFAULT_TTL_SECONDS && cached != null) {
-                return Optional.of(cached);
+        // The first caller for a host performs the lookup on its own thread; others wait for it.
+        for (int attempt = 0; ; ++attempt) {
+            final CompletableFuture<Optional<ResolutionCache.Addresses>> addresses = addresses(context, Runnable::run);
+            try {
+                return select(addresses.get(), preferIpv4);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Optional.empty();
+            } catch (final CancellationException e) {
+                // The lookup this call joined was abandoned by its interrupted owner; run our own.
+                if (attempt > 0 || Thread.currentThread().isInterrupted())
+                    return Optional.empty();
+            } catch (final ExecutionException e) {
+                Log.e(TAG, "Failed to resolve host " + host, e.getCause());
+                return Optional.empty();
             }
+        }
+    }
 
-            if (Duration.between(lastFailedResolution, now).getSeconds() <= NEGATIVE_TTL_SECONDS) {
-                return Optional.empty();
+    /**
+     * Like {@link #getResolved}, but without blocking the caller. Concurrent resolutions of the
+     * same host, from this or any other endpoint, share a single lookup.
+     * @param preferIpv4 whether ipv4 resolution should be preferred over the default ipv6
+     * @return a future completed on a lookup thread, or already completed if the host is cached;
+     * it fails with a {@link CancellationException} if the lookup it joined was interrupted
+     */
+    public CompletableFuture<Optional<InetEndpoint>> resolveAsync(Boolean preferIpv4, Context context) {
+        if (isResolved) return CompletableFuture.completedFuture(Optional.of(this));
+        return addresses(context, LOOKUP_EXECUTOR).thenApply(addresses -> select(addresses, preferIpv4));
+    }
+
+    private CompletableFuture<Optional<ResolutionCache.Addresses>> addresses(final Context context,
+                                                                             final Executor executor) {
+        loadStore();
+        final ResolutionCache cache = ResolutionCache.INSTANCE;
+        final ResolutionCache.Addresses cached = cache.get(host);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+
+        if (serveStale) {
+            final ResolutionCache.Addresses stale = cache.getStale(host);
+            if (stale != null) {
+                // A recent revalidation failed, so keep serving until the failure expires.
+                if (!cache.isNegative(host))
+                    lookupShared(host, context, true, LOOKUP_EXECUTOR);
+                return CompletableFuture.completedFuture(Optional.of(stale));
             }
+        }
+
+        if (cache.isNegative(host)) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return lookupShared(host, context, false, executor);
+    }
+
+    private Optional<InetEndpoint> select(final Optional<ResolutionCache.Addresses> resolved, final boolean preferIpv4) {
+        ResolutionCache.Addresses addresses = resolved.orElse(null);
+        if (addresses == null && serveStale) {
+            addresses = ResolutionCache.INSTANCE.getLastKnown(host);
+            if (addresses != null)
+                Log.w(TAG, "Using last known addresses of host " + host);
+        }
+        return addresses != null ? toEndpoint(addresses.select(preferIpv4)) : Optional.empty();
+    }
 
+    /**
+     * Join the lookup of a host that is already in flight, or start one on the executor.
+     */
+    private static CompletableFuture<Optional<ResolutionCache.Addresses>> lookupShared(
+            final String host, final Context context, final boolean notify, final Executor executor) {
+        final CompletableFuture<Optional<ResolutionCache.Addresses>> created = new CompletableFuture<>();
+        final CompletableFuture<Optional<ResolutionCache.Addresses>> existing = inFlight.putIfAbsent(host, created);
+        if (existing != null)
+            return existing;
+        final Runnable task = () -> {
+            // Removed before completing, so that a caller retrying after a failure starts anew.
+            final Optional<ResolutionCache.Addresses> resolved;
             try {
-                InetAddress[] candidates = currentResolver.resolve(host);
-                if (candidates.length == 0) {
-                    Log.w(TAG, "No addresses resolved for host: " + host);
-                    lastFailedResolution = now;
-                    return Optional.empty();
-                }
+                resolved = Optional.ofNullable(lookup(host, context, notify));
+            } catch (final RuntimeException e) {
+                inFlight.remove(host, created);
+                created.completeExceptionally(e);
+                return;
+            }
+            inFlight.remove(host, created);
+            created.complete(resolved);
+        };
+        try {
+            executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            inFlight.remove(host, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
 
-                if (currentResolver instanceof DoHResolver) {
-                    boolean hasIpv6 = NetworkUtils.hasGlobalIpv6(context);
-                    List<InetAddress> filtered = new ArrayList<>();
-                    for (InetAddress addr : candidates) {
-                        if (addr instanceof Inet4Address || (addr instanceof Inet6Address && hasIpv6)) {
-                            filtered.add(addr);
-                        }
-                    }
-                    candidates = filtered.toArray(new InetAddress[0]);
-                    if (candidates.length == 0) {
-                        lastFailedResolution = now;
-                        return Optional.empty();
-                    }
-                }
+    /**
+     * Resolve a host with the current resolver and cache the outcome. An interrupted lookup says
+     * nothing about the host, so it is not cached.
+     *
+     * @param notify whether to tell the {@link ResolutionListener}s if the addresses changed
+     * @return the addresses, or {@code null} if the host did not resolve.
+     * @throws CancellationException if the lookup was interrupted
+     */
+    @Nullable
+    private static ResolutionCache.Addresses lookup(final String host, final Context context, final boolean notify) {
+        final ResolutionCache cache = ResolutionCache.INSTANCE;
+        final Resolver resolver = currentResolver;
+        try {
+            final Resolution resolution = resolver.resolveWithTtl(host);
+            InetAddress[] candidates = resolution.addresses();
+            if (candidates.length == 0) {
+                Log.w(TAG, "No addresses resolved for host: " + host);
+                cache.putNegative(host, negativeCacheTtlMillis(resolution.ttlSeconds()));
+                return null;
+            }
 
-                InetEndpoint ipv4Ep = null;
-                InetEndpoint ipv6Ep = null;
+            if (resolver instanceof DoHResolver || resolver instanceof DoTResolver || resolver instanceof RacingResolver) {
+                boolean hasIpv6 = NetworkUtils.hasGlobalIpv6(context);
+                List<InetAddress> filtered = new ArrayList<>();
                 for (InetAddress addr : candidates) {
-                    String addrStr = addr.getHostAddress();
-                    if (addr instanceof Inet4Address && ipv4Ep == null) {
-                        ipv4Ep = new InetEndpoint(addrStr, true, port);
-                    } else if (addr instanceof Inet6Address && ipv6Ep == null) {
-                        ipv6Ep = new InetEndpoint(addrStr, true, port);
+                    if (addr instanceof Inet4Address || (addr instanceof Inet6Address && hasIpv6)) {
+                        filtered.add(addr);
                     }
-                    if (ipv4Ep != null && ipv6Ep != null) break;
                 }
+                candidates = filtered.toArray(new InetAddress[0]);
+            }
 
-                // Cache based on family
-                if (ipv4Ep != null) {
-                    resolvedIpv4 = ipv4Ep;
-                    lastResolutionIpv4 = now;
-                }
-                if (ipv6Ep != null) {
-                    resolvedIpv6 = ipv6Ep;
-                    lastResolutionIpv6 = now;
+            InetAddress ipv4 = null;
+            InetAddress ipv6 = null;
+            for (InetAddress addr : candidates) {
+                if (addr instanceof Inet4Address && ipv4 == null) {
+                    ipv4 = addr;
+                } else if (addr instanceof Inet6Address && ipv6 == null) {
+                    ipv6 = addr;
                 }
+                if (ipv4 != null && ipv6 != null) break;
+            }
+            if (ipv4 == null && ipv6 == null) {
+                cache.putNegative(host, negativeCacheTtlMillis(Resolution.UNKNOWN_TTL));
+                return null;
+            }
 
-                // Select with fallback
-                InetEndpoint preferredEp = preferIpv4 ? ipv4Ep : ipv6Ep;
-                InetEndpoint fallbackEp = preferIpv4 ? ipv6Ep : ipv4Ep;
-                InetEndpoint toReturn = (preferredEp != null) ? preferredEp : fallbackEp;
-                return Optional.ofNullable(toReturn);
-            } catch (final UnknownHostException e) {
-                Log.w(TAG, "Failed to resolve host " + host + ": " + e.getMessage());
-                lastFailedResolution = now;
-                return Optional.empty();
+            final ResolutionCache.Addresses resolved = new ResolutionCache.Addresses(ipv4, ipv6);
+            final ResolutionCache.Addresses previous =
+                    cache.put(host, resolved, cacheTtlMillis(resolution.ttlSeconds(), DEFAULT_TTL_SECONDS));
+            if (notify && previous != null && !previous.equals(resolved)) {
+                Log.i(TAG, "Host " + host + " resolved to new addresses");
+                for (final ResolutionListener listener : resolutionListeners) {
+                    try {
+                        listener.onResolutionChanged(host);
+                    } catch (final RuntimeException e) {
+                        Log.e(TAG, "Resolution listener failed", e);
+                    }
+                }
             }
+            scheduleStoreSave();
+            return resolved;
+        } catch (final UnknownHostException e) {
+            if (e instanceof LookupInterruptedException || Thread.currentThread().isInterrupted())
+                throw new CancellationException("Interrupted while resolving " + host);
+            Log.w(TAG, "Failed to resolve host " + host + ": " + e.getMessage());
+            cache.putNegative(host, negativeCacheTtlMillis(Resolution.UNKNOWN_TTL));
+            return null;
         }
     }
 
     /**
-     * Clears the cached DNS resolution and resets resolution timestamps.
-     * This forces the next call to getResolved to perform a fresh DNS query.
+     * Thrown by the resolvers of this class when the resolving thread is interrupted, which tells
+     * an abandoned lookup from a host that does not resolve.
      */
-    public void clearCache() {
-        synchronized (lock) {
-            resolvedIpv4 = null;
-            resolvedIpv6 = null;
-            lastResolutionIpv4 = Instant.MIN;
-            lastResolutionIpv6 = Instant.MIN;
-            lastFailedResolution = Instant.MIN;
-            Log.d(TAG, "Cleared DNS cache for host: " + host);
+    private static final class LookupInterruptedException extends UnknownHostException {
+        private LookupInterruptedException(final String host) {
+            super("Interrupted while resolving " + host);
         }
     }
 
+    private Optional<InetEndpoint> toEndpoint(@Nullable final InetAddress address) {
+        if (address == null)
+            return Optional.empty();
+        return Optional.of(new InetEndpoint(address.getHostAddress(), true, port));
+    }
+
+    /**
+     * Get how long the cached resolution of this endpoint's host remains valid, which follows the
+     * TTL of its DNS records within the configured bounds.
+     *
+     * @return the remaining time in milliseconds, or -1 if the host has no fresh resolution
+     */
+    public long getRemainingTtlMillis() {
+        return isResolved ? -1 : ResolutionCache.INSTANCE.remainingMillis(host);
+    }
+
+    /**
+     * Clears the cached DNS resolution of this endpoint's host, which is shared by all endpoints
+     * with the same host. This forces the next call to getResolved to perform a fresh DNS query;
+     * the old addresses are only used if that query fails.
+     */
+    public void clearCache() {
+        ResolutionCache.INSTANCE.invalidate(host);
+        Log.d(TAG, "Cleared DNS cache for host: " + host);
+    }
+
     @Override
     public int hashCode() {
         return host.hashCode() ^ port;
@@ -217,6 +526,30 @@ public final class InetEndpoint {
 
     public interface Resolver {
         InetAddress[] resolve(String host) throws UnknownHostException;
+
+        /**
+         * Resolve a host along with how long the result may be cached. Resolvers that do not see
+         * record TTLs report {@link Resolution#UNKNOWN_TTL}, and the cache falls back to its
+         * defaults.
+         */
+        default Resolution resolveWithTtl(String host) throws UnknownHostException {
+            return new Resolution(resolve(host), Resolution.UNKNOWN_TTL);
+        }
+    }
+
+    /**
+     * Receives the hosts whose cached addresses changed.
+     */
+    public interface ResolutionListener {
+        void onResolutionChanged(String host);
+    }
+
+    /**
+     * The addresses a host resolved to and the smallest TTL of the records they came from. An
+     * empty resolution with a known TTL is a negative answer that may be cached for that long.
+     */
+    public record Resolution(InetAddress[] addresses, long ttlSeconds) {
+        public static final long UNKNOWN_TTL = -1;
     }
 
     public static class SystemResolver implements Resolver {
@@ -226,6 +559,84 @@ public final class InetEndpoint {
         }
     }
 
+    /**
+     * Races several resolvers for the same host: each strategy starts a fixed delay after the
+     * previous one, or as soon as the previous one fails, and the first answer with addresses
+     * wins. The strategies still running are then cancelled.
+     */
+    public static final class RacingResolver implements Resolver {
+        public static final long DEFAULT_STAGGER_MILLIS = 250;
+
+        private final List<Resolver> strategies;
+        private final long staggerMillis;
+
+        public RacingResolver(final List<Resolver> strategies, final long staggerMillis) {
+            if (strategies.isEmpty())
+                throw new IllegalArgumentException("No resolution strategies");
+            this.strategies = List.copyOf(strategies);
+            this.staggerMillis = staggerMillis;
+        }
+
+        public List<Resolver> getStrategies() {
+            return strategies;
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            final InetAddress[] addresses = resolveWithTtl(host).addresses();
+            if (addresses.length == 0)
+                throw new UnknownHostException(host);
+            return addresses;
+        }
+
+        @Override
+        public Resolution resolveWithTtl(String host) throws UnknownHostException {
+            if (strategies.size() == 1)
+                return strategies.get(0).resolveWithTtl(host);
+            final ExecutorCompletionService<Resolution> race = new ExecutorCompletionService<>(RACE_EXECUTOR);
+            final List<Future<Resolution>> started = new ArrayList<>(strategies.size());
+            Resolution negative = null;
+            UnknownHostException failure = null;
+            try {
+                long nextStart = System.nanoTime();
+                int finished = 0;
+                while (finished < strategies.size()) {
+                    if (started.size() < strategies.size() && System.nanoTime() - nextStart >= 0) {
+                        final Resolver strategy = strategies.get(started.size());
+                        started.add(race.submit(() -> strategy.resolveWithTtl(host)));
+                        nextStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(staggerMillis);
+                    }
+                    final Future<Resolution> done = started.size() < strategies.size()
+                            ? race.poll(Math.max(nextStart - System.nanoTime(), 0), TimeUnit.NANOSECONDS)
+                            : race.take();
+                    if (done == null)
+                        continue;
+                    ++finished;
+                    try {
+                        final Resolution resolution = done.get();
+                        if (resolution.addresses().length > 0)
+                            return resolution;
+                        negative = resolution;
+                    } catch (final ExecutionException e) {
+                        failure = e.getCause() instanceof UnknownHostException unknown
+                                ? unknown : new UnknownHostException(String.valueOf(e.getCause()));
+                    }
+                    // Do not wait out the stagger delay behind a strategy that already gave up.
+                    nextStart = System.nanoTime();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LookupInterruptedException(host);
+            } finally {
+                for (final Future<Resolution> future : started)
+                    future.cancel(true);
+            }
+            if (negative != null)
+                return negative;
+            throw failure != null ? failure : new UnknownHostException(host);
+        }
+    }
+
     public static String removeBrackets(String host) {
         if (host.startsWith("[") && host.endsWith("]")) {
             return host.substring(1, host.length() - 1);
@@ -241,39 +652,228 @@ public final class InetEndpoint {
             "^((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]\\d|\\d)\\.){3}(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]\\d|\\d)$"
     );
 
+    /**
+     * Wait for the answers to the AAAA and A queries of a host, which were sent together. Once one
+     * family has answered, the other only gets a short grace period (RFC 8305 section 3) instead of
+     * holding the result until the query times out.
+     *
+     * @param timeoutMillis how long to wait for the first answer
+     */
+    private static Resolution collectAnswers(final String host, final CompletableFuture<DnsMessage.Answer> ipv6,
+                                             final CompletableFuture<DnsMessage.Answer> ipv4,
+                                             final long timeoutMillis) throws UnknownHostException {
+        final List<InetAddress> addresses = new ArrayList<>();
+        long ttl = Long.MAX_VALUE;
+        IOException failure = null;
+        try {
+            final CompletableFuture<?> settled = CompletableFuture.allOf(settled(ipv6), settled(ipv4));
+            try {
+                CompletableFuture.anyOf(settled(ipv6), settled(ipv4)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (hasAddresses(ipv6) || hasAddresses(ipv4))
+                    settled.get(RESOLUTION_DELAY_MS, TimeUnit.MILLISECONDS);
+                else
+                    settled.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                // Cache a partial answer for the minimum TTL of the cache bounds rather than its
+                // records' TTL, so the missing family is retried at the next refresh.
+                ttl = 0;
+                failure = new IOException("Timed out resolving " + host);
+            }
+            for (final CompletableFuture<DnsMessage.Answer> future : List.of(ipv6, ipv4)) {
+                if (!future.isDone())
+                    continue;
+                try {
+                    final DnsMessage.Answer answer = future.get();
+                    addresses.addAll(answer.addresses());
+                    if (answer.ttlSeconds() != DnsMessage.Answer.UNKNOWN_TTL)
+                        ttl = Math.min(ttl, answer.ttlSeconds());
+                } catch (final ExecutionException e) {
+                    failure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LookupInterruptedException(host);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e); // The settled futures never fail.
+        }
+        // One family failing is fine as long as the other one answered.
+        if (addresses.isEmpty() && failure != null)
+            throw new UnknownHostException(failure.getMessage());
+        return new Resolution(addresses.toArray(new InetAddress[0]),
+                ttl == Long.MAX_VALUE ? Resolution.UNKNOWN_TTL : ttl);
+    }
+
+    private static CompletableFuture<?> settled(final CompletableFuture<DnsMessage.Answer> future) {
+        return future.handle((answer, e) -> null);
+    }
+
+    private static boolean hasAddresses(final CompletableFuture<DnsMessage.Answer> future) {
+        return future.isDone() && !future.isCompletedExceptionally() && !future.join().addresses().isEmpty();
+    }
+
+    @Nullable
+    private static Resolution literal(final String host) throws UnknownHostException {
+        if (!IPV4_PATTERN.matcher(host).matches() && !isIpv6Host(host))
+            return null;
+        return new Resolution(new InetAddress[] { InetAddress.getByName(removeBrackets(host)) }, Resolution.UNKNOWN_TTL);
+    }
+
     public record DoHResolver(Optional<String> dohUrl, Optional<SocketFactory> socketFactory) implements Resolver {
+        private static final MediaType DNS_MESSAGE = MediaType.get("application/dns-message");
 
         @Override
         public InetAddress[] resolve(String host) throws UnknownHostException {
-            String finalHost = host;
-            boolean isIpAddress = IPV4_PATTERN.matcher(host).matches();
-            if (isIpv6Host(host)) {
-                isIpAddress = true;
-                finalHost = removeBrackets(host);
-            }
-            if (isIpAddress) {
-                InetAddress ipAddr = InetAddress.getByName(finalHost);
+            final InetAddress[] addresses = resolveWithTtl(host).addresses();
+            if (addresses.length == 0)
+                throw new UnknownHostException(host);
+            return addresses;
+        }
+
+        @Override
+        public Resolution resolveWithTtl(String host) throws UnknownHostException {
+            final Resolution literal = literal(host);
+            if (literal != null) {
                 Log.i(TAG, "Skipping DoH for static IP endpoint ");
-                return new InetAddress[] { ipAddr };
+                return literal;
             }
 
-            Log.i(TAG, "Using DoH URL: " + dohUrl.orElse(preferredDoHUrl));
+            final String url = dohUrl.orElse(preferredDoHUrl);
+            Log.i(TAG, "Using DoH URL: " + url);
             Log.i(TAG, "SocketFactory in use: " + (socketFactory.map(factory -> factory.getClass().getSimpleName()).orElse("none")));
 
-            OkHttpClient.Builder builder = new OkHttpClient.Builder();
-            socketFactory.ifPresent(builder::socketFactory);
-            OkHttpClient client = builder
+            final HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl == null)
+                throw new UnknownHostException("Invalid DoH URL: " + url);
+            // OkHttp's DnsOverHttps drops the record TTLs, so the RFC 8484 exchange is done here
+            // over the pooled client. Both families are queried at once on the same connection.
+            final OkHttpClient client = DoHClientCache.get(socketFactory);
+            final Call ipv6Call = newCall(client, httpUrl, host, DnsMessage.TYPE_AAAA);
+            final Call ipv4Call = newCall(client, httpUrl, host, DnsMessage.TYPE_A);
+            final CompletableFuture<DnsMessage.Answer> ipv6 = enqueue(ipv6Call, DnsMessage.TYPE_AAAA);
+            final CompletableFuture<DnsMessage.Answer> ipv4 = enqueue(ipv4Call, DnsMessage.TYPE_A);
+
+            try {
+                return collectAnswers(host, ipv6, ipv4, QUERY_TIMEOUT_MS);
+            } finally {
+                ipv6Call.cancel();
+                ipv4Call.cancel();
+            }
+        }
+
+        private static Call newCall(final OkHttpClient client, final HttpUrl url, final String host,
+                                    final int type) throws UnknownHostException {
+            final Request request = new Request.Builder()
+                    .url(url)
+                    .header("Accept", "application/dns-message")
+                    .post(RequestBody.create(DnsMessage.query(0, host, type), DNS_MESSAGE))
                     .build();
-            String url = dohUrl.orElse(preferredDoHUrl);
-            DnsOverHttps doh = new DnsOverHttps.Builder()
-                    .client(client)
-                    .url(HttpUrl.parse(url)).build();
+            return client.newCall(request);
+        }
+
+        private static CompletableFuture<DnsMessage.Answer> enqueue(final Call call, final int type) {
+            final CompletableFuture<DnsMessage.Answer> future = new CompletableFuture<>();
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(final Call call, final IOException e) {
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(final Call call, final Response response) {
+                    try (response) {
+                        if (!response.isSuccessful())
+                            throw new IOException("DoH server returned HTTP " + response.code());
+                        future.complete(DnsMessage.parse(response.body().bytes(), type));
+                    } catch (final IOException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+            return future;
+        }
+    }
+
+    /**
+     * Resolves hosts with DNS-over-TLS, over a connection to the server that is kept open and
+     * shared by all lookups.
+     *
+     * @param server        the server as {@code host} or {@code host:port}, port 853 by default
+     * @param socketFactory the factory for the connection, which may have to bypass the tunnel
+     */
+    public record DoTResolver(String server, Optional<SocketFactory> socketFactory) implements Resolver {
+        public static final int DEFAULT_PORT = 853;
+
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            final InetAddress[] addresses = resolveWithTtl(host).addresses();
+            if (addresses.length == 0)
+                throw new UnknownHostException(host);
+            return addresses;
+        }
+
+        @Override
+        public Resolution resolveWithTtl(String host) throws UnknownHostException {
+            final Resolution literal = literal(host);
+            if (literal != null)
+                return literal;
+            final URI uri;
             try {
-                List<InetAddress> addresses = doh.lookup(host);
-                return addresses.toArray(new InetAddress[0]);
-            } catch (IOException e) {
-                throw new UnknownHostException(e.getMessage());
+                uri = new URI("dot://" + server);
+            } catch (final URISyntaxException e) {
+                throw new UnknownHostException("Invalid DoT server: " + server);
             }
+            if (uri.getHost() == null)
+                throw new UnknownHostException("Invalid DoT server: " + server);
+            final DoTConnection connection = DoTConnection.get(removeBrackets(uri.getHost()),
+                    uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort(), socketFactory);
+            final byte[] ipv6Query = DnsMessage.query(0, host, DnsMessage.TYPE_AAAA);
+            final byte[] ipv4Query = DnsMessage.query(0, host, DnsMessage.TYPE_A);
+            return exchange(host, connection, ipv6Query, ipv4Query, true);
+        }
+
+        private static Resolution exchange(final String host, final DoTConnection connection, final byte[] ipv6Query,
+                                           final byte[] ipv4Query, final boolean retry) throws UnknownHostException {
+            final CompletableFuture<byte[]> ipv6Response = connection.exchange(ipv6Query);
+            final CompletableFuture<byte[]> ipv4Response = connection.exchange(ipv4Query);
+            try {
+                return collectAnswers(host, parse(ipv6Response, DnsMessage.TYPE_AAAA),
+                        parse(ipv4Response, DnsMessage.TYPE_A), QUERY_TIMEOUT_MS);
+            } catch (final UnknownHostException e) {
+                // The server may have closed the idle connection just as the queries were sent, so
+                // try once more over a new one. A timeout or an interrupt would only happen again.
+                if (!retry || !(closed(ipv6Response) || closed(ipv4Response)))
+                    throw e;
+                Log.d(TAG, "Retrying DoT lookup of " + host + ": " + e.getMessage());
+                return exchange(host, connection, ipv6Query, ipv4Query, false);
+            } finally {
+                ipv6Response.cancel(false);
+                ipv4Response.cancel(false);
+            }
+        }
+
+        private static boolean closed(final CompletableFuture<byte[]> response) {
+            if (!response.isCompletedExceptionally())
+                return false;
+            try {
+                response.join();
+                return false;
+            } catch (final CompletionException e) {
+                return e.getCause() instanceof DoTConnection.ConnectionClosedException;
+            } catch (final CancellationException e) {
+                return false;
+            }
+        }
+
+        private static CompletableFuture<DnsMessage.Answer> parse(final CompletableFuture<byte[]> response,
+                                                                  final int type) {
+            return response.thenApply(message -> {
+                try {
+                    return DnsMessage.parse(message, type);
+                } catch (final IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
         }
     }
-}
\ No newline at end of file
+}
@@ -5,17 +5,38 @@ import android.net.ConnectivityManager;
 import android.net.LinkAddress;
 import android.net.LinkProperties;
 import android.net.Network;
+import android.util.Log;
 
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class NetworkUtils {
+    private static final String TAG = "AmneziaWG/NetworkUtils";
+
+    // IPv6 reachability of each network, kept up to date by the default network callback so that
+    // lookups do not query ConnectivityManager every time.
+    private static final Map<Network, Boolean> ipv6Reachability = new ConcurrentHashMap<>();
+    private static volatile Network defaultNetwork;
+    private static boolean tracking;
+    private static volatile boolean tracked;
+
     public static boolean hasGlobalIpv6(Context context) {
         ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         if (cm == null) return false;
-        Network activeNetwork = cm.getActiveNetwork();
+        startTracking(cm);
+        Network activeNetwork = defaultNetwork;
+        if (activeNetwork == null) activeNetwork = cm.getActiveNetwork();
         if (activeNetwork == null) return false;
-        LinkProperties linkProperties = cm.getLinkProperties(activeNetwork);
+        Boolean cached = ipv6Reachability.get(activeNetwork);
+        if (cached != null) return cached;
+        boolean reachable = hasGlobalIpv6(cm.getLinkProperties(activeNetwork));
+        if (tracked) ipv6Reachability.put(activeNetwork, reachable);
+        return reachable;
+    }
+
+    private static boolean hasGlobalIpv6(LinkProperties linkProperties) {
         if (linkProperties == null) return false;
         for (LinkAddress linkAddress : linkProperties.getLinkAddresses()) {
             InetAddress addr = linkAddress.getAddress();
@@ -25,4 +46,32 @@ public class NetworkUtils {
         }
         return false;
     }
-}
\ No newline at end of file
+
+    private static synchronized void startTracking(ConnectivityManager cm) {
+        if (tracking) return;
+        try {
+            cm.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    defaultNetwork = network;
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                    ipv6Reachability.put(network, hasGlobalIpv6(linkProperties));
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    ipv6Reachability.remove(network);
+                    if (network.equals(defaultNetwork)) defaultNetwork = null;
+                }
+            });
+            tracked = true;
+        } catch (RuntimeException e) {
+            // Apps may only register a limited number of callbacks; fall back to querying.
+            Log.w(TAG, "Unable to track the default network", e);
+        }
+        tracking = true;
+    }
+}
@@ -203,9 +203,22 @@ public final class Peer {
      * @return the {@code Peer} represented as a series of "key=value" lines
      */
     public String toAwgUserspaceString(Boolean preferIpv4, Context context) {
+        return toAwgUserspaceString(preferIpv4, context, false);
+    }
+
+    /**
+     * Serializes the {@code Peer} for use with the AmneziaWG cross-platform userspace API.
+     *
+     * @param replaceAllowedIps whether the allowed IPs replace those of a running peer rather
+     *                          than being added to them
+     * @return the {@code Peer} represented as a series of "key=value" lines
+     */
+    public String toAwgUserspaceString(Boolean preferIpv4, Context context, boolean replaceAllowedIps) {
         final StringBuilder sb = new StringBuilder();
         // The order here is important: public_key signifies the beginning of a new peer.
         sb.append("public_key=").append(publicKey.toHex()).append('\n');
+        if (replaceAllowedIps)
+            sb.append("replace_allowed_ips=true\n");
         for (final InetNetwork allowedIp : allowedIps)
             sb.append("allowed_ip=").append(allowedIp).append('\n');
         endpoint.flatMap(ep -> ep.getResolved(preferIpv4, context)).ifPresent(ep -> sb.append("endpoint=").append(ep).append('\n'));
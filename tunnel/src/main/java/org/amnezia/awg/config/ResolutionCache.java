@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide cache of hostname resolutions, shared by all {@link InetEndpoint}s so that a host
+ * looked up for one config is not resolved again when another config, or a reparsed copy of the
+ * same one, refers to it. Successful and failed lookups are kept in separate LRU maps of bounded
+ * size, so that a burst of failing hosts cannot evict the good entries.
+ * <p>
+ * Expired addresses are kept for a while as the last known resolution of their host, which can
+ * be served while it is revalidated or when the lookup fails.
+ */
+@NonNullForAll
+final class ResolutionCache {
+    static final int DEFAULT_MAX_ENTRIES = 128;
+    static final long DEFAULT_MAX_STALE_MILLIS = 24 * 60 * 60 * 1000L;
+    static final ResolutionCache INSTANCE = new ResolutionCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_STALE_MILLIS,
+            () -> System.nanoTime() / 1_000_000);
+
+    private final LongSupplier clock;
+    private final long maxStaleMillis;
+    private final Map<String, Positive> positive;
+    private final Map<String, Long> negative;
+
+    ResolutionCache(final int maxEntries, final LongSupplier clock) {
+        this(maxEntries, DEFAULT_MAX_STALE_MILLIS, clock);
+    }
+
+    ResolutionCache(final int maxEntries, final long maxStaleMillis, final LongSupplier clock) {
+        this.clock = clock;
+        this.maxStaleMillis = maxStaleMillis;
+        positive = new BoundedMap<>(maxEntries);
+        negative = new BoundedMap<>(maxEntries);
+    }
+
+    /**
+     * Get the unexpired addresses of a host.
+     *
+     * @return the addresses, or {@code null} if the host is not cached or its entry expired.
+     */
+    @Nullable
+    synchronized Addresses get(final String host) {
+        final Positive entry = retained(host);
+        return entry != null && !entry.invalidated && clock.getAsLong() < entry.expiresAt ? entry.addresses : null;
+    }
+
+    /**
+     * Get how long the addresses of a host stay fresh.
+     *
+     * @return the remaining time, or -1 if the host has no fresh entry.
+     */
+    synchronized long remainingMillis(final String host) {
+        final Positive entry = retained(host);
+        if (entry == null || entry.invalidated)
+            return -1;
+        final long remaining = entry.expiresAt - clock.getAsLong();
+        return remaining > 0 ? remaining : -1;
+    }
+
+    /**
+     * Get the addresses of a host whose entry expired but may still be served while it is
+     * revalidated. Entries dropped by {@link #invalidate} are not returned.
+     */
+    @Nullable
+    synchronized Addresses getStale(final String host) {
+        final Positive entry = retained(host);
+        return entry != null && !entry.invalidated && clock.getAsLong() >= entry.expiresAt ? entry.addresses : null;
+    }
+
+    /**
+     * Get the last addresses a host resolved to, fresh or not, as a fallback for a failed lookup.
+     */
+    @Nullable
+    synchronized Addresses getLastKnown(final String host) {
+        final Positive entry = retained(host);
+        return entry != null ? entry.addresses : null;
+    }
+
+    @Nullable
+    private Positive retained(final String host) {
+        final Positive entry = positive.get(host);
+        if (entry != null && clock.getAsLong() - entry.expiresAt >= maxStaleMillis) {
+            positive.remove(host);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Check whether a recent lookup of the host failed.
+     */
+    synchronized boolean isNegative(final String host) {
+        final Long expiresAt = negative.get(host);
+        if (expiresAt == null)
+            return false;
+        if (clock.getAsLong() >= expiresAt) {
+            negative.remove(host);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cache the addresses of a host.
+     *
+     * @return the last known addresses the new ones replace, or {@code null} if there were none.
+     */
+    @Nullable
+    synchronized Addresses put(final String host, final Addresses addresses, final long ttlMillis) {
+        negative.remove(host);
+        final Positive previous = retained(host);
+        positive.put(host, new Positive(addresses, clock.getAsLong() + ttlMillis, ttlMillis, false));
+        return previous != null ? previous.addresses : null;
+    }
+
+    /**
+     * Get the valid entries, e.g. to persist them.
+     */
+    synchronized List<Snapshot> snapshot() {
+        final long now = clock.getAsLong();
+        final List<Snapshot> snapshots = new ArrayList<>(positive.size());
+        for (final Map.Entry<String, Positive> entry : positive.entrySet()) {
+            final Positive value = entry.getValue();
+            if (value.invalidated || now - value.expiresAt >= maxStaleMillis)
+                continue;
+            snapshots.add(new Snapshot(entry.getKey(), value.addresses,
+                    now - (value.expiresAt - value.ttlMillis), value.ttlMillis));
+        }
+        return snapshots;
+    }
+
+    /**
+     * Add an entry saved earlier, unless the host has been resolved since.
+     */
+    synchronized void restore(final Snapshot snapshot) {
+        if (positive.containsKey(snapshot.host) || snapshot.ageMillis - snapshot.ttlMillis >= maxStaleMillis)
+            return;
+        final long expiresAt = clock.getAsLong() - snapshot.ageMillis + snapshot.ttlMillis;
+        positive.put(snapshot.host, new Positive(snapshot.addresses, expiresAt, snapshot.ttlMillis, false));
+    }
+
+    synchronized void putNegative(final String host, final long ttlMillis) {
+        negative.put(host, clock.getAsLong() + ttlMillis);
+    }
+
+    /**
+     * Force the next lookup of a host to query again. Its addresses are kept as the last known
+     * resolution in case that lookup fails.
+     */
+    synchronized void invalidate(final String host) {
+        final Positive entry = positive.get(host);
+        if (entry != null)
+            positive.put(host, new Positive(entry.addresses, Math.min(entry.expiresAt, clock.getAsLong()),
+                    entry.ttlMillis, true));
+        negative.remove(host);
+    }
+
+    synchronized void clear() {
+        positive.clear();
+        negative.clear();
+    }
+
+    /**
+     * The first address of each family a host resolved to.
+     */
+    record Addresses(@Nullable InetAddress ipv4, @Nullable InetAddress ipv6) {
+        @Nullable
+        InetAddress select(final boolean preferIpv4) {
+            final InetAddress preferred = preferIpv4 ? ipv4 : ipv6;
+            return preferred != null ? preferred : (preferIpv4 ? ipv6 : ipv4);
+        }
+    }
+
+    /**
+     * A cached resolution, and how long ago it was made.
+     */
+    record Snapshot(String host, Addresses addresses, long ageMillis, long ttlMillis) {}
+
+    private record Positive(Addresses addresses, long expiresAt, long ttlMillis, boolean invalidated) {}
+
+    private static final class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+        private final int maxEntries;
+
+        private BoundedMap(final int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
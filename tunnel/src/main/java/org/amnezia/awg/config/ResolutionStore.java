@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import androidx.annotation.Nullable;
+import org.amnezia.awg.util.NonNullForAll;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves {@link ResolutionCache} entries to a file, so that a restarted process can bring a tunnel
+ * up with the addresses it last used instead of waiting for DNS.
+ * <p>
+ * Each entry is stored as the host, the wall clock time of the resolution, its TTL and the raw
+ * addresses; a cache of a few hosts takes a few hundred bytes.
+ */
+@NonNullForAll
+final class ResolutionStore {
+    private static final int MAGIC = 0x41575243; // "AWRC"
+    private static final int VERSION = 1;
+    private static final int FLAG_IPV4 = 1;
+    private static final int FLAG_IPV6 = 2;
+
+    private ResolutionStore() {
+        // Prevent instantiation.
+    }
+
+    /**
+     * Read the entries of a file written by {@link #write}.
+     *
+     * @param nowMillis the current wall clock time, to age the entries by
+     * @throws IOException if the file is missing, of another version or damaged
+     */
+    static List<ResolutionCache.Snapshot> read(final File file, final long nowMillis) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION)
+                throw new IOException("Unknown resolution cache format");
+            final int count = in.readUnsignedShort();
+            final List<ResolutionCache.Snapshot> snapshots = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                final String host = in.readUTF();
+                final long resolvedAt = in.readLong();
+                final long ttlMillis = in.readInt() & 0xffffffffL;
+                final int flags = in.readUnsignedByte();
+                final InetAddress ipv4 = (flags & FLAG_IPV4) != 0 ? readAddress(in, 4) : null;
+                final InetAddress ipv6 = (flags & FLAG_IPV6) != 0 ? readAddress(in, 16) : null;
+                if (ipv4 == null && ipv6 == null)
+                    continue;
+                // A clock that moved backwards makes the entry look new rather than from the future.
+                snapshots.add(new ResolutionCache.Snapshot(host, new ResolutionCache.Addresses(ipv4, ipv6),
+                        Math.max(nowMillis - resolvedAt, 0), ttlMillis));
+            }
+            return snapshots;
+        }
+    }
+
+    /**
+     * Replace the file with the given entries. The new contents are written to a temporary file
+     * first, so a crash leaves either the old or the new entries behind.
+     *
+     * @param nowMillis the current wall clock time, to date the entries with
+     */
+    static void write(final File file, final List<ResolutionCache.Snapshot> snapshots, final long nowMillis)
+            throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            final int count = Math.min(snapshots.size(), 0xffff);
+            out.writeShort(count);
+            for (int i = 0; i < count; ++i) {
+                final ResolutionCache.Snapshot snapshot = snapshots.get(i);
+                final InetAddress ipv4 = snapshot.addresses().ipv4();
+                final InetAddress ipv6 = snapshot.addresses().ipv6();
+                out.writeUTF(snapshot.host());
+                out.writeLong(nowMillis - snapshot.ageMillis());
+                out.writeInt((int) Math.min(snapshot.ttlMillis(), 0xffffffffL));
+                out.writeByte((ipv4 != null ? FLAG_IPV4 : 0) | (ipv6 != null ? FLAG_IPV6 : 0));
+                if (ipv4 != null)
+                    out.write(ipv4.getAddress());
+                if (ipv6 != null)
+                    out.write(ipv6.getAddress());
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    @Nullable
+    private static InetAddress readAddress(final DataInputStream in, final int length) throws IOException {
+        final byte[] address = new byte[length];
+        in.readFully(address);
+        final InetAddress parsed = InetAddress.getByAddress(address);
+        // An IPv4-mapped IPv6 address would come back as IPv4, which does not belong in this slot.
+        return length == 4 ? (parsed instanceof Inet4Address ? parsed : null)
+                : (parsed instanceof Inet6Address ? parsed : null);
+    }
+}
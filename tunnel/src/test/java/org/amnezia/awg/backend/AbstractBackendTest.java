@@ -0,0 +1,34 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.config.InetNetwork;
+import org.amnezia.awg.config.ParseException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractBackendTest {
+    private static List<InetNetwork> networks(final String... networks) throws ParseException {
+        final List<InetNetwork> parsed = new ArrayList<>();
+        for (final String network : networks)
+            parsed.add(InetNetwork.parse(network));
+        return parsed;
+    }
+
+    @Test
+    public void routes_overlap_when_one_prefix_contains_the_other() throws ParseException {
+        assertFalse(AbstractBackend.overlaps(networks("10.0.0.0/24", "fd00::/64"), networks("10.0.1.0/24", "fd00:0:0:1::/64")));
+        assertTrue(AbstractBackend.overlaps(networks("10.0.0.0/16"), networks("192.168.0.0/24", "10.0.200.7/32")));
+        assertTrue(AbstractBackend.overlaps(networks("0.0.0.0/0"), networks("192.168.0.0/24")));
+        // Address families never overlap.
+        assertFalse(AbstractBackend.overlaps(networks("0.0.0.0/0"), networks("::/0")));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.config.Config;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BackendSnapshotTest {
+    private static Tunnel tunnel(final String name) {
+        return new Tunnel() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void onStateChange(final State newState) {
+            }
+
+            @Override
+            public Boolean isIpv4ResolutionPreferred() {
+                return false;
+            }
+
+            @Override
+            public Boolean isMetered() {
+                return false;
+            }
+        };
+    }
+
+    @Test
+    public void each_state_change_is_a_new_immutable_version() throws Exception {
+        final Config config = Config.parse(new BufferedReader(new StringReader(
+                "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n")));
+        final Tunnel primary = tunnel("primary");
+        final Tunnel other = tunnel("other");
+        final Backend.BackendMode mode = Backend.BackendMode.Inactive.INSTANCE;
+        final BackendSnapshot empty = BackendSnapshot.EMPTY;
+
+        final Map<Tunnel, AbstractBackend.AttachedTunnel> attached = new HashMap<>();
+        final BackendSnapshot up = empty.next(primary, config, 3, attached, mode);
+        assertEquals(1, up.getVersion());
+        assertSame(up, up.next(primary, config, 3, attached, mode));
+
+        attached.put(other, new AbstractBackend.AttachedTunnel(4, config));
+        final BackendSnapshot alongside = up.next(primary, config, 3, attached, mode);
+        attached.clear();
+        // Later changes to the backend's fields do not show through a published snapshot.
+        assertEquals(Arrays.asList(primary, other), Arrays.asList(alongside.getRunningTunnels().toArray()));
+        assertEquals(4, alongside.handleOf(other));
+        assertSame(primary, alongside.tunnelOf(3));
+        assertSame(other, alongside.tunnelOf(4));
+        assertNull(alongside.tunnelOf(5));
+        assertSame(config, alongside.getConfig(other));
+        assertEquals(Tunnel.State.DOWN, up.getState(other));
+
+        final BackendSnapshot down = alongside.next(null, null, -1, Collections.emptyMap(), mode);
+        assertEquals(3, down.getVersion());
+        assertEquals(Tunnel.State.DOWN, down.getState(primary));
+        assertEquals(-1, down.handleOf(primary));
+        assertNull(down.tunnelOf(-1));
+        assertNull(down.getConfig(primary));
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.config.InetEndpoint;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DdnsWatcherTest {
+    @Test
+    public void checks_follow_the_ttl_with_jitter() {
+        assertEquals(300_000, DdnsWatcher.nextDelayMillis(300_000, 0));
+        assertEquals(330_000, DdnsWatcher.nextDelayMillis(300_000, 1));
+        assertEquals(DdnsWatcher.MIN_INTERVAL_MILLIS, DdnsWatcher.nextDelayMillis(1_000, 0));
+        assertEquals(DdnsWatcher.RETRY_INTERVAL_MILLIS, DdnsWatcher.nextDelayMillis(-1, 0));
+    }
+
+    @Test
+    public void endpoints_compare_by_address() throws Exception {
+        final InetEndpoint v6 = InetEndpoint.parse("[2001:db8::1]:51820");
+        assertTrue(DdnsWatcher.isSameEndpoint("[2001:db8:0:0:0:0:0:1]:51820", v6));
+        assertFalse(DdnsWatcher.isSameEndpoint("[2001:db8::1]:51821", v6));
+        // A textual match on a prefix is not the same address.
+        assertFalse(DdnsWatcher.isSameEndpoint("192.0.2.10:51820", InetEndpoint.parse("192.0.2.1:51820")));
+        assertFalse(DdnsWatcher.isSameEndpoint("", v6));
+    }
+}
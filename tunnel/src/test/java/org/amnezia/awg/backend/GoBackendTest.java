@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.config.Config;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GoBackendTest {
+    private static final Tunnel TUNNEL = new Tunnel() {
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public void onStateChange(final State newState) {
+        }
+
+        @Override
+        public Boolean isIpv4ResolutionPreferred() {
+            return false;
+        }
+
+        @Override
+        public Boolean isMetered() {
+            return false;
+        }
+    };
+
+    private static Config config(final String privateKey, final String address, final String publicKey,
+                                 final String allowedIps) throws Exception {
+        return Config.parse(new BufferedReader(new StringReader("[Interface]\nPrivateKey = " + privateKey
+                + "\nAddress = " + address + "\nJc = 4\n[Peer]\nPublicKey = " + publicKey
+                + "\nAllowedIPs = " + allowedIps + "\nEndpoint = 192.0.2.1:51820\n")));
+    }
+
+    @Test
+    public void servers_with_the_same_interface_share_the_tun() throws Exception {
+        final Config a = config("TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=", "10.8.0.2/32",
+                "vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=", "0.0.0.0/0, ::/0");
+        // A different server and key, but the same addresses and routes.
+        final Config b = config("KPnAU1kqQbcgn8DZzhdpxCRz6Ue4SPPE7eC4hG6PHmk=", "10.8.0.2/32",
+                "gN65BkIKy1eCE9pP1wdc8ROUtkHLF2PfAqYdyYBz6EA=", "::/0, 0.0.0.0/0");
+        assertTrue(GoBackend.isTunCompatible(TUNNEL, a, TUNNEL, b));
+
+        final Config otherAddress = config("KPnAU1kqQbcgn8DZzhdpxCRz6Ue4SPPE7eC4hG6PHmk=", "10.9.0.2/32",
+                "gN65BkIKy1eCE9pP1wdc8ROUtkHLF2PfAqYdyYBz6EA=", "0.0.0.0/0, ::/0");
+        assertFalse(GoBackend.isTunCompatible(TUNNEL, a, TUNNEL, otherAddress));
+
+        final Config otherRoutes = config("KPnAU1kqQbcgn8DZzhdpxCRz6Ue4SPPE7eC4hG6PHmk=", "10.8.0.2/32",
+                "gN65BkIKy1eCE9pP1wdc8ROUtkHLF2PfAqYdyYBz6EA=", "0.0.0.0/0");
+        assertFalse(GoBackend.isTunCompatible(TUNNEL, a, TUNNEL, otherRoutes));
+    }
+}
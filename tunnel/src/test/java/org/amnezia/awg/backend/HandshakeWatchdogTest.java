@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HandshakeWatchdogTest {
+    private static final long STALE = HandshakeWatchdog.STALE_AFTER_MILLIS;
+    private static final long WAIT = HandshakeWatchdog.STEP_WAIT_MILLIS;
+
+    private static Key key(final int seed) throws KeyFormatException {
+        final byte[] raw = new byte[Key.Format.BINARY.getLength()];
+        Arrays.fill(raw, (byte) seed);
+        return Key.fromBytes(raw);
+    }
+
+    private static Statistics snapshot(final Key key, final long rx, final long tx, final long handshake) {
+        final Statistics stats = new Statistics(0);
+        stats.add(key, "", rx, tx, handshake);
+        return stats;
+    }
+
+    @Test
+    public void peers_are_stale_only_while_sending_without_answers() throws KeyFormatException {
+        final Key peer = key(1);
+        final HandshakeWatchdog.Tracker tracker = new HandshakeWatchdog.Tracker(0);
+        assertTrue(tracker.stalePeers(snapshot(peer, 100, 100, 1), STALE).isEmpty());
+        // Sending without answers, but the session is still young enough.
+        assertTrue(tracker.stalePeers(snapshot(peer, 100, 200, STALE), STALE + 1).isEmpty());
+        assertEquals(Collections.singletonList(peer), tracker.stalePeers(snapshot(peer, 100, 300, 1), STALE + 2));
+        // Idle tunnels are left alone.
+        assertTrue(tracker.stalePeers(snapshot(peer, 100, 300, 1), STALE + 3).isEmpty());
+        // Counters of a restarted device start over.
+        assertEquals(Collections.singletonList(peer), tracker.stalePeers(snapshot(peer, 0, 50, 0), STALE + 4));
+    }
+
+    @Test
+    public void steps_escalate_with_backoff_until_a_handshake() throws KeyFormatException {
+        final HandshakeWatchdog.Tracker tracker = new HandshakeWatchdog.Tracker(0);
+        long now = 1000;
+        assertEquals(HandshakeWatchdog.Step.RE_RESOLVE, tracker.nextStep(now));
+        assertNull(tracker.nextStep(now + WAIT - 1));
+        now += WAIT;
+        assertEquals(HandshakeWatchdog.Step.REBIND, tracker.nextStep(now));
+        now += WAIT;
+        assertEquals(HandshakeWatchdog.Step.RESTART, tracker.nextStep(now));
+        assertEquals(0, tracker.round());
+        // The next round waits twice as long after each step.
+        now += WAIT;
+        assertEquals(HandshakeWatchdog.Step.RE_RESOLVE, tracker.nextStep(now));
+        assertEquals(1, tracker.round());
+        assertNull(tracker.nextStep(now + 2 * WAIT - 1));
+        // A step that did not apply lets the next one be taken right away.
+        tracker.skip();
+        assertEquals(HandshakeWatchdog.Step.REBIND, tracker.nextStep(now));
+
+        final Key peer = key(1);
+        assertFalse(tracker.recovered(snapshot(peer, 0, 0, 999)));
+        assertTrue(tracker.recovered(snapshot(peer, 0, 0, now)));
+        assertEquals(HandshakeWatchdog.Step.RE_RESOLVE, tracker.nextStep(now));
+        assertEquals(HandshakeWatchdog.MAX_STEP_WAIT_MILLIS, HandshakeWatchdog.Tracker.waitMillis(30));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OperationQueueTest {
+    private enum Kind { STATE, PEERS }
+
+    private static final Set<Kind> STATE_SUPERSEDES = EnumSet.of(Kind.STATE, Kind.PEERS);
+
+    @Test
+    public void only_the_last_of_superseded_requests_runs() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final OperationQueue queue = new OperationQueue(executor);
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+            // Holds the worker so that the following requests pile up.
+            queue.submit(Kind.STATE, "other", STATE_SUPERSEDES, () -> release.await(5, TimeUnit.SECONDS));
+
+            final CompletableFuture<Boolean> peers = queue.submit(Kind.PEERS, "a", EnumSet.of(Kind.PEERS),
+                    () -> ran.add("peers"));
+            final CompletableFuture<String> up = queue.submit(Kind.STATE, "a", STATE_SUPERSEDES, () -> {
+                ran.add("up");
+                return "UP";
+            });
+            final CompletableFuture<String> down = queue.submit(Kind.STATE, "a", STATE_SUPERSEDES, () -> {
+                ran.add("down");
+                return "DOWN";
+            });
+            final CompletableFuture<String> otherTunnel = queue.submit(Kind.STATE, "b", STATE_SUPERSEDES, () -> {
+                ran.add("b");
+                return "UP";
+            });
+            final CompletableFuture<String> upAgain = queue.submit(Kind.STATE, "a", STATE_SUPERSEDES, () -> {
+                ran.add("up again");
+                return "UP";
+            });
+            release.countDown();
+
+            assertEquals("UP", upAgain.get(5, TimeUnit.SECONDS));
+            assertEquals("UP", up.get(5, TimeUnit.SECONDS));
+            assertEquals("UP", down.get(5, TimeUnit.SECONDS));
+            assertEquals("UP", otherTunnel.get(5, TimeUnit.SECONDS));
+            assertTrue(peers.isCancelled());
+            assertEquals(Arrays.asList("b", "up again"), ran);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelling_a_running_request_interrupts_it() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final OperationQueue queue = new OperationQueue(executor);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CompletableFuture<Boolean> interrupted = new CompletableFuture<>();
+            final CompletableFuture<String> stuck = queue.submit(Kind.STATE, "a", STATE_SUPERSEDES, () -> {
+                started.countDown();
+                try {
+                    Thread.sleep(10_000);
+                    interrupted.complete(false);
+                } catch (final InterruptedException e) {
+                    interrupted.complete(true);
+                    throw e;
+                }
+                return "UP";
+            });
+            final CompletableFuture<String> next = queue.submit(Kind.STATE, "b", STATE_SUPERSEDES,
+                    () -> Thread.currentThread().isInterrupted() ? "interrupted" : "DOWN");
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(stuck.cancel(true));
+            assertTrue(interrupted.get(5, TimeUnit.SECONDS));
+            // The interruption does not leak into the next request.
+            assertEquals("DOWN", next.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupPipelineTest {
+    @Test
+    public void independent_stages_overlap_and_dependents_see_their_results() throws Exception {
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        try (StartupPipeline pipeline = new StartupPipeline(phase -> TunnelStartupTrace.Section.NONE)) {
+            // Each stage only finishes once the other one has started.
+            final CompletableFuture<String> first = pipeline.stage("first", () -> {
+                bothRunning.countDown();
+                return bothRunning.await(5, TimeUnit.SECONDS) ? "a" : "timeout";
+            });
+            final CompletableFuture<String> second = pipeline.stage("second", () -> {
+                bothRunning.countDown();
+                return bothRunning.await(5, TimeUnit.SECONDS) ? "b" : "timeout";
+            });
+            final CompletableFuture<String> joined = pipeline.stage("joined",
+                    () -> first.join() + second.join(), first, second);
+            assertEquals("ab", pipeline.await(joined));
+            pipeline.commit();
+        }
+    }
+
+    @Test
+    public void failure_skips_later_stages_and_rolls_back_completed_ones() throws Exception {
+        final BackendException failure = new BackendException(BackendException.Reason.TUN_CREATION_ERROR);
+        final List<String> rolledBack = Collections.synchronizedList(new ArrayList<>());
+        final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch slowRunning = new CountDownLatch(1);
+        final CountDownLatch failed = new CountDownLatch(1);
+        final StartupPipeline pipeline = new StartupPipeline(phase -> TunnelStartupTrace.Section.NONE);
+        try {
+            pipeline.stage("opened", () -> {
+                pipeline.onRollback(() -> rolledBack.add("opened"));
+                return null;
+            }).join();
+            // Still running when the other stage fails, and rolled back once it is done, even
+            // though it does not give up when interrupted.
+            pipeline.stage("slow", () -> {
+                slowRunning.countDown();
+                awaitUninterruptibly(failed);
+                pipeline.onRollback(() -> rolledBack.add("slow"));
+                return null;
+            });
+            assertTrue(slowRunning.await(5, TimeUnit.SECONDS));
+            final CompletableFuture<Void> failing = pipeline.stage("failing", () -> {
+                throw failure;
+            });
+            failing.handle((result, e) -> null).join();
+            failed.countDown();
+            pipeline.stage("dependent", () -> {
+                ran.add("dependent");
+                return null;
+            }, failing);
+            final CompletableFuture<Void> later = pipeline.stage("later", () -> {
+                ran.add("later");
+                return null;
+            });
+            pipeline.await(later);
+            fail("The failure was not reported");
+        } catch (final BackendException e) {
+            assertSame(failure, e);
+        } finally {
+            pipeline.close();
+        }
+        assertTrue(ran.isEmpty());
+        assertEquals(Arrays.asList("slow", "opened"), rolledBack);
+    }
+
+    @Test
+    public void cancelling_the_operation_interrupts_a_blocked_stage() throws Exception {
+        final OperationQueue queue = new OperationQueue();
+        final CountDownLatch resolving = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final List<String> rolledBack = Collections.synchronizedList(new ArrayList<>());
+        final CompletableFuture<Void> operation = queue.submit("up", "tunnel", Collections.emptySet(), () -> {
+            try (StartupPipeline pipeline = new StartupPipeline(phase -> TunnelStartupTrace.Section.NONE)) {
+                pipeline.stage(TunnelStartupTrace.START_SERVICE, () -> {
+                    pipeline.onRollback(() -> rolledBack.add(TunnelStartupTrace.START_SERVICE));
+                    return null;
+                }).join();
+                // Stands in for a resolution that never answers.
+                final CompletableFuture<Void> resolved = pipeline.stage(TunnelStartupTrace.RESOLVE, () -> {
+                    resolving.countDown();
+                    try {
+                        new CompletableFuture<Void>().get();
+                    } catch (final InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                    return null;
+                });
+                pipeline.await(resolved);
+            }
+            return null;
+        });
+        assertTrue(resolving.await(5, TimeUnit.SECONDS));
+        final long cancelled = System.nanoTime();
+        assertTrue(operation.cancel(true));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        // The pipeline was closed, and rolled back, without waiting for the stage to time out.
+        final long deadline = cancelled + TimeUnit.SECONDS.toNanos(5);
+        while (rolledBack.isEmpty() && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(Collections.singletonList(TunnelStartupTrace.START_SERVICE), rolledBack);
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (latch.await(5, TimeUnit.SECONDS))
+                        return;
+                    fail("Timed out");
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
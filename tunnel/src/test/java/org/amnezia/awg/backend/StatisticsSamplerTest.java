@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatisticsSamplerTest {
+    private static final Tunnel TUNNEL = new Tunnel() {
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public void onStateChange(final State newState) {
+        }
+
+        @Override
+        public Boolean isIpv4ResolutionPreferred() {
+            return false;
+        }
+
+        @Override
+        public Boolean isMetered() {
+            return false;
+        }
+    };
+
+    @Test
+    public void concurrent_refreshes_share_one_sample() throws Exception {
+        final AtomicInteger samples = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final StatisticsSampler sampler = new StatisticsSampler((tunnel, periodic) -> {
+            samples.incrementAndGet();
+            release.await();
+            return new Statistics(0);
+        }, 1000, () -> 0);
+
+        final CompletableFuture<Statistics> first = sampler.refresh(TUNNEL);
+        final CompletableFuture<Statistics> second = sampler.refresh(TUNNEL);
+        assertSame(first, second);
+        release.countDown();
+        final Statistics statistics = first.get(5, TimeUnit.SECONDS);
+
+        // A snapshot taken within the interval is reused without sampling again.
+        assertSame(statistics, sampler.refresh(TUNNEL).get(5, TimeUnit.SECONDS));
+        assertEquals(1, samples.get());
+    }
+
+    @Test
+    public void samples_only_while_subscribed() throws Exception {
+        final AtomicInteger samples = new AtomicInteger();
+        final AtomicLong clock = new AtomicLong();
+        final StatisticsSampler sampler = new StatisticsSampler((tunnel, periodic) -> {
+            samples.incrementAndGet();
+            return new Statistics(0);
+        }, 10, clock::get);
+
+        final CountDownLatch delivered = new CountDownLatch(3);
+        final StatisticsSampler.Subscription first = sampler.subscribe(TUNNEL, (tunnel, statistics) -> delivered.countDown());
+        final StatisticsSampler.Subscription second = sampler.subscribe(TUNNEL, (tunnel, statistics) -> delivered.countDown());
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+        first.close();
+        second.close();
+        sampler.refresh(TUNNEL).get(5, TimeUnit.SECONDS);
+        final int stopped = samples.get();
+        Thread.sleep(100);
+        assertEquals(stopped, samples.get());
+    }
+
+    @Test
+    public void drops_tunnels_no_longer_needed() throws Exception {
+        final StatisticsSampler sampler = new StatisticsSampler((tunnel, periodic) -> new Statistics(0), 10, () -> 0);
+
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final StatisticsSampler.Subscription subscription = sampler.subscribe(TUNNEL,
+                (tunnel, statistics) -> delivered.countDown());
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        // A subscribed tunnel that went down is kept, but not its last snapshot.
+        sampler.forget(TUNNEL);
+        assertEquals(1, sampler.size());
+        subscription.close();
+        assertEquals(0, sampler.size());
+
+        sampler.refresh(TUNNEL).get(5, TimeUnit.SECONDS);
+        assertEquals(1, sampler.size());
+        sampler.forget(TUNNEL);
+        assertEquals(0, sampler.size());
+        assertNull(sampler.latest(TUNNEL));
+    }
+
+    @Test
+    public void only_scheduled_samples_are_periodic() throws Exception {
+        final AtomicInteger periodicSamples = new AtomicInteger();
+        final AtomicInteger refreshes = new AtomicInteger();
+        final StatisticsSampler sampler = new StatisticsSampler((tunnel, periodic) -> {
+            (periodic ? periodicSamples : refreshes).incrementAndGet();
+            return new Statistics(0);
+        }, 1000, () -> 0);
+
+        sampler.refresh(TUNNEL).get(5, TimeUnit.SECONDS);
+        assertEquals(1, refreshes.get());
+        assertEquals(0, periodicSamples.get());
+
+        final CountDownLatch delivered = new CountDownLatch(1);
+        try (StatisticsSampler.Subscription ignored = sampler.subscribe(TUNNEL,
+                (tunnel, statistics) -> delivered.countDown())) {
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, periodicSamples.get());
+        assertEquals(1, refreshes.get());
+    }
+}
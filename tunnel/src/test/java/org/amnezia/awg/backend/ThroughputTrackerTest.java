@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ThroughputTrackerTest {
+    private static Key key(final int seed) throws KeyFormatException {
+        final byte[] raw = new byte[Key.Format.BINARY.getLength()];
+        Arrays.fill(raw, (byte) seed);
+        return Key.fromBytes(raw);
+    }
+
+    private static Statistics snapshot(final Key key, final long time, final long rx, final long tx) {
+        final Statistics stats = new Statistics(time);
+        stats.add(key, "", rx, tx, 0);
+        return stats;
+    }
+
+    @Test
+    public void computes_instantaneous_average_and_peak_rates() throws KeyFormatException {
+        final Key peer = key(1);
+        final ThroughputTracker tracker = new ThroughputTracker();
+        tracker.record(snapshot(peer, 0, 0, 0), 0);
+        tracker.record(snapshot(peer, 1000, 4000, 1000), 1000);
+        final Statistics latest = snapshot(peer, 2000, 6000, 3000);
+        tracker.record(latest, 2000);
+
+        final ThroughputTracker.PeerRate rate = latest.rate(peer);
+        assertNotNull(rate);
+        assertEquals(2000, rate.rxBytesPerSecond());
+        assertEquals(2000, rate.txBytesPerSecond());
+        assertEquals(4000, rate.rxPeak());
+        assertEquals(2000, rate.txPeak());
+        // The average moves from the first interval towards the second one, but not all the way.
+        assertTrue(rate.rxAverage() < 4000 && rate.rxAverage() > 2000);
+        assertTrue(rate.txAverage() > 1000 && rate.txAverage() < 2000);
+        assertEquals(2000, latest.totalRxRate());
+        assertSame(tracker, latest.throughput());
+    }
+
+    @Test
+    public void history_is_bounded_by_ring_size() throws KeyFormatException {
+        final Key peer = key(2);
+        final ThroughputTracker tracker = new ThroughputTracker(4, 1000);
+        for (int i = 0; i <= 10; ++i)
+            tracker.record(snapshot(peer, i * 1000L, i * i * 1000L, 0), i * 1000L);
+
+        final long[] rx = new long[8];
+        final long[] tx = new long[8];
+        final long[] end = new long[8];
+        assertEquals(3, tracker.history(peer, rx, tx, end));
+        assertArrayEquals(new long[]{15000, 17000, 19000}, Arrays.copyOf(rx, 3));
+        assertArrayEquals(new long[]{8000, 9000, 10000}, Arrays.copyOf(end, 3));
+    }
+
+    @Test
+    public void counter_reset_and_removed_peers_start_over() throws KeyFormatException {
+        final Key peer = key(3);
+        final ThroughputTracker tracker = new ThroughputTracker();
+        tracker.record(snapshot(peer, 0, 5000, 0), 0);
+        tracker.record(snapshot(peer, 1000, 10000, 0), 1000);
+        tracker.record(snapshot(peer, 2000, 100, 0), 2000);
+        assertEquals(0, tracker.rate(peer).rxBytesPerSecond());
+        tracker.record(snapshot(peer, 3000, 1100, 0), 3000);
+        assertEquals(1000, tracker.rate(peer).rxBytesPerSecond());
+        // The peak of the counters before the reset is gone with them.
+        assertEquals(1000, tracker.rate(peer).rxPeak());
+
+        tracker.record(new Statistics(4000), 4000);
+        assertNull(tracker.rate(peer));
+    }
+
+    @Test
+    public void tunnels_polled_in_turn_keep_their_own_rates() throws KeyFormatException {
+        final Key primary = key(4);
+        final Key attached = key(5);
+        final ThroughputTrackers trackers = new ThroughputTrackers();
+        Statistics primaryStats = null;
+        Statistics attachedStats = null;
+        for (int i = 0; i < 3; ++i) {
+            final long now = i * 2000L;
+            primaryStats = snapshot(primary, now, i * 2000L, 0);
+            trackers.record(1, primaryStats, now);
+            attachedStats = snapshot(attached, now + 1000, i * 4000L, 0);
+            trackers.record(2, attachedStats, now + 1000);
+        }
+        assertEquals(1000, primaryStats.rate(primary).rxBytesPerSecond());
+        assertEquals(2000, attachedStats.rate(attached).rxBytesPerSecond());
+
+        trackers.remove(2);
+        final Statistics restarted = snapshot(attached, 6000, 0, 0);
+        trackers.record(2, restarted, 6000);
+        assertEquals(0, restarted.rate(attached).rxPeak());
+    }
+
+    @Test
+    public void attaching_rates_does_not_record_a_sample() throws KeyFormatException {
+        final Key peer = key(1);
+        final ThroughputTracker tracker = new ThroughputTracker();
+        tracker.record(snapshot(peer, 0, 0, 0), 0);
+        tracker.record(snapshot(peer, 1000, 1000, 1000), 1000);
+
+        // A read 10 ms later would otherwise count as a 10 ms interval with a huge peak.
+        final Statistics read = snapshot(peer, 1010, 2000, 2000);
+        tracker.attach(read);
+        assertEquals(tracker.rate(peer), read.rate(peer));
+        assertEquals(1000, read.rate(peer).rxPeak());
+        assertSame(tracker, read.throughput());
+
+        final Statistics next = snapshot(peer, 2000, 3000, 3000);
+        tracker.record(next, 2000);
+        assertEquals(2000, next.rate(peer).rxBytesPerSecond());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TunnelStartupTraceTest {
+    @Test
+    public void phases_are_timed_from_the_start_of_the_bring_up() {
+        final AtomicLong clock = new AtomicLong(1_000);
+        final TunnelStartupTrace.Recorder recorder = new TunnelStartupTrace.Recorder("test", false, clock::get);
+        clock.addAndGet(10);
+        try (TunnelStartupTrace.Section ignored = recorder.begin(TunnelStartupTrace.TURN_ON)) {
+            clock.addAndGet(100);
+        }
+        // The native side ran within turn_on and skipped wrapping a TUN descriptor.
+        recorder.addNative(new long[] { 0, 0, 1_020, 1_030, 1_030, 1_080, 1_080, 1_090, 1_090, 1_105 });
+        clock.addAndGet(5);
+        final TunnelStartupTrace trace = recorder.finish(true);
+
+        assertTrue(trace.isSuccessful());
+        assertEquals(115, trace.getTotalNanos());
+        assertEquals(new TunnelStartupTrace.Phase(TunnelStartupTrace.TURN_ON, 10, 100), trace.getPhases().get(0));
+        assertEquals(new TunnelStartupTrace.Phase(TunnelStartupTrace.NATIVE_IPC_SET, 30, 50),
+                trace.getPhase(TunnelStartupTrace.NATIVE_IPC_SET));
+        assertEquals(5, trace.getPhases().size());
+        assertNull(trace.getPhase(TunnelStartupTrace.NATIVE_TUN));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.backend;
+
+import org.amnezia.awg.crypto.Key;
+import org.amnezia.awg.crypto.KeyFormatException;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class UapiStatisticsParserTest {
+    private static final int PEERS = 1000;
+    private static final int ITERATIONS = 3;
+
+    private static String syntheticDump(final Key[] keys) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("private_key=").append("a".repeat(64)).append('\n');
+        sb.append("listen_port=51820\n");
+        sb.append("jc=4\njmin=40\njmax=70\n");
+        for (int i = 0; i < keys.length; ++i) {
+            sb.append("public_key=").append(keys[i].toHex()).append('\n');
+            sb.append("preshared_key=").append("0".repeat(64)).append('\n');
+            sb.append("protocol_version=1\n");
+            sb.append("endpoint=10.").append(i / 256).append('.').append(i % 256).append(".1:51820\n");
+            sb.append("last_handshake_time_sec=").append(1700000000L + i).append('\n');
+            sb.append("last_handshake_time_nsec=").append(i * 1000000L).append('\n');
+            sb.append("tx_bytes=").append(i * 1000L).append('\n');
+            sb.append("rx_bytes=").append(i * 2000L).append('\n');
+            sb.append("persistent_keepalive_interval=25\n");
+            sb.append("allowed_ip=10.0.0.").append(i % 256).append("/32\n");
+        }
+        sb.append("errno=0\n");
+        return sb.toString();
+    }
+
+    private static Key[] randomKeys() throws KeyFormatException {
+        final Random random = new Random(42);
+        final Key[] keys = new Key[PEERS];
+        for (int i = 0; i < keys.length; ++i) {
+            final byte[] raw = new byte[Key.Format.BINARY.getLength()];
+            random.nextBytes(raw);
+            keys[i] = Key.fromBytes(raw);
+        }
+        return keys;
+    }
+
+    @Test
+    public void parses_every_peer_of_a_synthetic_dump() throws KeyFormatException {
+        final Key[] keys = randomKeys();
+        final UapiStatisticsParser parser = new UapiStatisticsParser(new PeerKeyCache());
+        final Statistics stats = new Statistics(0);
+
+        assertEquals(PEERS, parser.parse(syntheticDump(keys), stats));
+        assertEquals(PEERS, stats.peers().length);
+        for (int i = 0; i < keys.length; ++i) {
+            final Statistics.PeerStats peer = stats.peer(keys[i]);
+            assertNotNull("Peer " + i + " must be present", peer);
+            assertEquals(i * 2000L, peer.rxBytes());
+            assertEquals(i * 1000L, peer.txBytes());
+            assertEquals((1700000000L + i) * 1000 + i, peer.latestHandshakeEpochMillis());
+            assertEquals("10." + i / 256 + '.' + i % 256 + ".1:51820", peer.resolvedEndpoint());
+        }
+    }
+
+    @Test
+    public void reuses_keys_and_endpoints_across_polls() throws KeyFormatException {
+        final Key[] keys = randomKeys();
+        final String dump = syntheticDump(keys);
+        final UapiStatisticsParser parser = new UapiStatisticsParser(new PeerKeyCache());
+        final Statistics first = new Statistics(0);
+        final Statistics second = new Statistics(0);
+        parser.parse(dump, first);
+        parser.parse(dump, second);
+
+        for (final Key key : second.peers()) {
+            Key match = null;
+            for (final Key candidate : first.peers()) {
+                if (candidate == key)
+                    match = candidate;
+            }
+            assertSame("Key instances must be interned across polls", key, match);
+            assertSame(first.peer(key).resolvedEndpoint(), second.peer(key).resolvedEndpoint());
+        }
+    }
+
+    @Test
+    public void thousand_peer_dump_parses_every_peer_on_each_poll() throws KeyFormatException {
+        final String dump = syntheticDump(randomKeys());
+        final UapiStatisticsParser parser = new UapiStatisticsParser(new PeerKeyCache());
+        long sink = 0;
+        for (int i = 0; i < ITERATIONS; ++i)
+            sink += parser.parse(dump, new Statistics(0));
+        assertEquals((long) ITERATIONS * PEERS, sink);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.amnezia.awg.crypto.Key;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigDiffTest {
+    private static final String INTERFACE = "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n";
+    private static final String KEY_A = "vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=";
+    private static final String KEY_B = "gN65BkIKy1eCE9pP1wdc8ROUtkHLF2PfAqYdyYBz6EA=";
+    private static final String KEY_C = "HIgo9xNzJMWLKASShiTqIybxZ0U3wGLiUeJ1PKf8ykw=";
+
+    private static Config config(final String peers) throws IOException, BadConfigException {
+        return Config.parse(new BufferedReader(new StringReader(INTERFACE + peers)));
+    }
+
+    private static String hex(final String base64) throws Exception {
+        return Key.fromBase64(base64).toHex();
+    }
+
+    @Test
+    public void identical_configs_have_no_changes() throws Exception {
+        final String peers = "[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24\n";
+        assertTrue(ConfigDiff.between(config(peers), config(peers)).isEmpty());
+    }
+
+    @Test
+    public void sends_only_changed_attributes_of_changed_peers() throws Exception {
+        final Config from = config("[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24\n"
+                + "[Peer]\nPublicKey = " + KEY_B + "\nAllowedIPs = 10.0.1.0/24\n"
+                + "[Peer]\nPublicKey = " + KEY_C + "\nAllowedIPs = 10.0.2.0/24, 10.0.3.0/24\n");
+        final Config to = config("[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24\n"
+                + "[Peer]\nPublicKey = " + KEY_C + "\nAllowedIPs = 10.0.2.0/24\nPersistentKeepalive = 25\n");
+
+        final ConfigDiff diff = ConfigDiff.between(from, to);
+        assertEquals("public_key=" + hex(KEY_B) + "\nremove=true\n"
+                + "public_key=" + hex(KEY_C) + "\nupdate_only=true\nreplace_allowed_ips=true\n"
+                + "allowed_ip=10.0.2.0/24\npersistent_keepalive_interval=25\n",
+                diff.toAwgUserspaceString(false, null));
+    }
+
+    @Test
+    public void added_allowed_ips_and_peers_do_not_replace() throws Exception {
+        final Config from = config("[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24\n");
+        final Config to = config("[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24, 10.0.9.0/24\n"
+                + "[Peer]\nPublicKey = " + KEY_B + "\nAllowedIPs = 10.0.1.0/24\n");
+
+        final ConfigDiff diff = ConfigDiff.between(from, to);
+        assertEquals(1, diff.getAddedPeers().size());
+        assertEquals("public_key=" + hex(KEY_A) + "\nupdate_only=true\nallowed_ip=10.0.9.0/24\n"
+                + "public_key=" + hex(KEY_B) + "\nallowed_ip=10.0.1.0/24\n",
+                diff.toAwgUserspaceString(false, null));
+    }
+
+    @Test
+    public void with_endpoints_resends_every_kept_endpoint() throws Exception {
+        final Config from = config("[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24\nEndpoint = 192.0.2.1:51820\n"
+                + "[Peer]\nPublicKey = " + KEY_B + "\nAllowedIPs = 10.0.1.0/24\nEndpoint = 192.0.2.2:51820\n");
+        final Config to = config("[Peer]\nPublicKey = " + KEY_A + "\nAllowedIPs = 10.0.0.0/24\nEndpoint = 192.0.2.1:51820\n"
+                + "[Peer]\nPublicKey = " + KEY_B + "\nAllowedIPs = 10.0.1.0/24\nEndpoint = 192.0.2.2:51820\n"
+                + "PersistentKeepalive = 25\n"
+                + "[Peer]\nPublicKey = " + KEY_C + "\nAllowedIPs = 10.0.2.0/24\nEndpoint = 192.0.2.3:51820\n");
+
+        final ConfigDiff diff = ConfigDiff.between(from, to);
+        assertEquals(Collections.singletonList(Key.fromBase64(KEY_B)), diff.getUpdatedPeers());
+        final ConfigDiff withEndpoints = diff.withEndpoints(to);
+        assertEquals(Arrays.asList(Key.fromBase64(KEY_A), Key.fromBase64(KEY_B)), withEndpoints.getUpdatedPeers());
+        assertEquals(diff.getAddedPeers(), withEndpoints.getAddedPeers());
+        assertEquals(diff.getRemovedPeers(), withEndpoints.getRemovedPeers());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DnsMessageTest {
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final long value) {
+        writeShort(out, (int) (value >>> 16));
+        writeShort(out, (int) value);
+    }
+
+    private static void writeRecordHeader(final ByteArrayOutputStream out, final int type, final long ttl,
+                                          final int length) {
+        writeShort(out, 0xc00c); // pointer to the question name
+        writeShort(out, type);
+        writeShort(out, 1);
+        writeInt(out, ttl);
+        writeShort(out, length);
+    }
+
+    private static ByteArrayOutputStream response(final int type, final int rcode, final int answers,
+                                                  final int authorities) throws IOException {
+        final byte[] query = DnsMessage.query(0, "vpn.example.", type);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, 0);
+        writeShort(out, 0x8180 | rcode);
+        writeShort(out, 1);
+        writeShort(out, answers);
+        writeShort(out, authorities);
+        writeShort(out, 0);
+        out.write(query, 12, query.length - 12);
+        return out;
+    }
+
+    @Test
+    public void reads_addresses_with_smallest_ttl_of_chain() throws Exception {
+        final ByteArrayOutputStream out = response(DnsMessage.TYPE_A, 0, 2, 0);
+        writeRecordHeader(out, 5, 120, 2); // CNAME
+        writeShort(out, 0xc00c);
+        writeRecordHeader(out, DnsMessage.TYPE_A, 60, 4);
+        out.write(new byte[] { (byte) 192, 0, 2, 7 });
+
+        final DnsMessage.Answer answer = DnsMessage.parse(out.toByteArray(), DnsMessage.TYPE_A);
+        assertEquals(List.of(InetAddress.getByName("192.0.2.7")), answer.addresses());
+        assertEquals(60, answer.ttlSeconds());
+    }
+
+    @Test
+    public void negative_answer_uses_soa_minimum() throws Exception {
+        final ByteArrayOutputStream out = response(DnsMessage.TYPE_AAAA, 3, 0, 1);
+        writeRecordHeader(out, 6, 900, 2 + 2 + 20);
+        writeShort(out, 0xc00c); // MNAME
+        writeShort(out, 0xc00c); // RNAME
+        writeInt(out, 1); // SERIAL
+        writeInt(out, 7200); // REFRESH
+        writeInt(out, 3600); // RETRY
+        writeInt(out, 86400); // EXPIRE
+        writeInt(out, 300); // MINIMUM
+
+        final DnsMessage.Answer answer = DnsMessage.parse(out.toByteArray(), DnsMessage.TYPE_AAAA);
+        assertTrue(answer.addresses().isEmpty());
+        assertEquals(300, answer.ttlSeconds());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejects_truncated_message() throws Exception {
+        final byte[] message = response(DnsMessage.TYPE_A, 0, 1, 0).toByteArray();
+        DnsMessage.parse(message, DnsMessage.TYPE_A);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InetEndpointTest {
+    @After
+    public void restoreResolver() {
+        InetEndpoint.setResolver(new InetEndpoint.SystemResolver());
+    }
+
+    @Test
+    public void concurrent_resolutions_share_one_lookup() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        InetEndpoint.setResolver(host -> {
+            lookups.incrementAndGet();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new InetAddress[] { InetAddress.getByName("192.0.2.1"), InetAddress.getByName("2001:db8::1") };
+        });
+
+        final InetEndpoint first = InetEndpoint.parse("single-flight.example:51820");
+        final InetEndpoint second = InetEndpoint.parse("single-flight.example:51821");
+        final CompletableFuture<Optional<InetEndpoint>> ipv4 = first.resolveAsync(true, null);
+        final CompletableFuture<Optional<InetEndpoint>> ipv6 = second.resolveAsync(false, null);
+        release.countDown();
+
+        assertEquals("192.0.2.1:51820", ipv4.get(5, TimeUnit.SECONDS).orElseThrow().toString());
+        final InetEndpoint resolved = ipv6.get(5, TimeUnit.SECONDS).orElseThrow();
+        assertEquals(InetAddress.getByName("2001:db8::1"), InetAddress.getByName(resolved.getHost()));
+        assertEquals(51821, resolved.getPort());
+        assertEquals(1, lookups.get());
+
+        // The answer is cached, so later resolutions complete without a lookup.
+        assertTrue(first.resolveAsync(true, null).isDone());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void interrupted_lookup_is_not_cached_as_a_failure() throws Exception {
+        final AtomicReference<Thread> lookupThread = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        InetEndpoint.setResolver(host -> {
+            lookupThread.set(Thread.currentThread());
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new UnknownHostException(host);
+        });
+
+        final InetEndpoint endpoint = InetEndpoint.parse("interrupted.example:51820");
+        final CompletableFuture<Optional<InetEndpoint>> abandoned = endpoint.resolveAsync(true, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        lookupThread.get().interrupt();
+        try {
+            abandoned.get(5, TimeUnit.SECONDS);
+            fail("The interrupted lookup completed normally");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof CancellationException);
+        }
+
+        // The host was not marked as failing, so the next resolution looks it up again.
+        InetEndpoint.setResolver(host -> new InetAddress[] { InetAddress.getByName("192.0.2.3") });
+        assertEquals("192.0.2.3:51820", endpoint.resolveAsync(true, null).get(5, TimeUnit.SECONDS)
+                .orElseThrow().toString());
+    }
+
+    @Test
+    public void racing_resolver_returns_first_answer_with_addresses() throws Exception {
+        final CountDownLatch hangingStarted = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final InetEndpoint.Resolver hanging = host -> {
+            hangingStarted.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (final InterruptedException e) {
+                cancelled.countDown();
+            }
+            throw new UnknownHostException(host);
+        };
+        // Only answers once the first strategy is underway, so it cannot win by starting first.
+        final InetEndpoint.Resolver answering = host -> {
+            try {
+                assertTrue(hangingStarted.await(5, TimeUnit.SECONDS));
+            } catch (final InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] { InetAddress.getByName("192.0.2.9") };
+        };
+
+        final InetAddress[] addresses = new InetEndpoint.RacingResolver(List.of(hanging, answering), 10)
+                .resolve("race.example");
+        assertEquals(InetAddress.getByName("192.0.2.9"), addresses[0]);
+        // The loser is cancelled rather than left running.
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void racing_resolver_starts_next_strategy_when_one_gives_up() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        final InetEndpoint.Resolver failing = host -> {
+            failures.incrementAndGet();
+            throw new UnknownHostException(host);
+        };
+        final InetEndpoint.Resolver answering = host -> new InetAddress[] { InetAddress.getByName("192.0.2.10") };
+
+        // With a stagger delay this long, an answer within the timeout means that each failure
+        // started the next strategy right away.
+        final CompletableFuture<InetAddress[]> race = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new InetEndpoint.RacingResolver(List.of(failing, failing, answering), 600_000)
+                        .resolve("race.example");
+            } catch (final UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(InetAddress.getByName("192.0.2.10"), race.get(30, TimeUnit.SECONDS)[0]);
+        assertEquals(2, failures.get());
+    }
+
+    @Test
+    public void negative_answers_are_cached_for_minutes_at_most() {
+        try {
+            InetEndpoint.setCacheTtlBounds(InetEndpoint.DEFAULT_MIN_TTL_SECONDS, 86_400);
+            assertEquals(TimeUnit.HOURS.toMillis(1), InetEndpoint.cacheTtlMillis(3600, 300));
+            assertEquals(TimeUnit.MINUTES.toMillis(5), InetEndpoint.negativeCacheTtlMillis(3600));
+            assertEquals(TimeUnit.SECONDS.toMillis(60), InetEndpoint.negativeCacheTtlMillis(60));
+            assertEquals(TimeUnit.SECONDS.toMillis(30),
+                    InetEndpoint.negativeCacheTtlMillis(InetEndpoint.Resolution.UNKNOWN_TTL));
+        } finally {
+            InetEndpoint.setCacheTtlBounds(InetEndpoint.DEFAULT_MIN_TTL_SECONDS, InetEndpoint.DEFAULT_MAX_TTL_SECONDS);
+        }
+    }
+}
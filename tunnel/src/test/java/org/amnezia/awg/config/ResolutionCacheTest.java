@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionCacheTest {
+    private static ResolutionCache.Addresses addresses(final String ipv4) throws Exception {
+        return new ResolutionCache.Addresses(InetAddress.getByName(ipv4), null);
+    }
+
+    @Test
+    public void entries_expire_and_failures_are_kept_apart() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final ResolutionCache cache = new ResolutionCache(8, clock::get);
+        cache.put("a.example", addresses("192.0.2.1"), 1000);
+        cache.putNegative("b.example", 100);
+
+        assertNotNull(cache.get("a.example"));
+        assertTrue(cache.isNegative("b.example"));
+        assertFalse(cache.isNegative("a.example"));
+
+        clock.set(100);
+        assertFalse(cache.isNegative("b.example"));
+        clock.set(1000);
+        assertNull(cache.get("a.example"));
+    }
+
+    @Test
+    public void evicts_least_recently_used_host() throws Exception {
+        final ResolutionCache cache = new ResolutionCache(2, () -> 0);
+        cache.put("a.example", addresses("192.0.2.1"), 1000);
+        cache.put("b.example", addresses("192.0.2.2"), 1000);
+        cache.get("a.example");
+        cache.put("c.example", addresses("192.0.2.3"), 1000);
+
+        assertNull(cache.get("b.example"));
+        assertEquals(InetAddress.getByName("192.0.2.1"), cache.get("a.example").select(false));
+        assertNotNull(cache.get("c.example"));
+    }
+
+    @Test
+    public void expired_addresses_stay_available_as_stale() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final ResolutionCache cache = new ResolutionCache(8, 5000, clock::get);
+        cache.put("a.example", addresses("192.0.2.1"), 1000);
+        assertNull(cache.getStale("a.example"));
+
+        clock.set(2000);
+        assertNull(cache.get("a.example"));
+        assertNotNull(cache.getStale("a.example"));
+        assertEquals(addresses("192.0.2.1"), cache.put("a.example", addresses("192.0.2.2"), 1000));
+
+        // Invalidated addresses are only a fallback for a failed lookup.
+        cache.invalidate("a.example");
+        assertNull(cache.get("a.example"));
+        assertNull(cache.getStale("a.example"));
+        assertNotNull(cache.getLastKnown("a.example"));
+
+        clock.set(8000);
+        assertNull(cache.getLastKnown("a.example"));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.amnezia.awg.config;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ResolutionStoreTest {
+    @Test
+    public void restored_entries_keep_their_age() throws Exception {
+        final AtomicLong clock = new AtomicLong(10_000);
+        final ResolutionCache saved = new ResolutionCache(8, clock::get);
+        final ResolutionCache.Addresses addresses = new ResolutionCache.Addresses(
+                InetAddress.getByName("192.0.2.1"), InetAddress.getByName("2001:db8::1"));
+        saved.put("a.example", addresses, 60_000);
+        clock.addAndGet(20_000);
+
+        final File file = File.createTempFile("resolutions", null);
+        try {
+            ResolutionStore.write(file, saved.snapshot(), 1_000_000);
+            // The process restarts five seconds later, with a new monotonic clock.
+            final List<ResolutionCache.Snapshot> snapshots = ResolutionStore.read(file, 1_005_000);
+            assertEquals(1, snapshots.size());
+            assertEquals(25_000, snapshots.get(0).ageMillis());
+
+            final AtomicLong restartedClock = new AtomicLong();
+            final ResolutionCache restored = new ResolutionCache(8, restartedClock::get);
+            restored.restore(snapshots.get(0));
+            assertEquals(addresses, restored.get("a.example"));
+            restartedClock.set(35_000);
+            assertNull(restored.get("a.example"));
+            assertNotNull(restored.getStale("a.example"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import (
 	"net"
 	"sync"
 	"syscall"
+	"unsafe"
 
 	"github.com/amnezia-vpn/amneziawg-android/shared"
 	"github.com/amnezia-vpn/amneziawg-android/util"
@@ -21,10 +22,12 @@ import (
 import "C"
 
 var (
-	ctx                  context.Context
-	cancelFunc           context.CancelFunc
-	tag                  string
-	virtualTunnelHandles map[int32]*wireproxyawg.VirtualTun
+	ctx                      context.Context
+	cancelFunc               context.CancelFunc
+	tag                      string
+	virtualTunnelHandles     map[int32]*wireproxyawg.VirtualTun
+	// Guards virtualTunnelHandles, which is read from the statistics and watchdog threads too.
+	virtualTunnelHandlesLock sync.RWMutex
 )
 
 func init() {
@@ -32,6 +35,13 @@ func init() {
 	virtualTunnelHandles = make(map[int32]*wireproxyawg.VirtualTun)
 }
 
+func lookupVirtualTunnel(tunnelHandle int32) (*wireproxyawg.VirtualTun, bool) {
+	virtualTunnelHandlesLock.RLock()
+	defer virtualTunnelHandlesLock.RUnlock()
+	handle, ok := virtualTunnelHandles[tunnelHandle]
+	return handle, ok
+}
+
 //export awgStartProxy
 func awgStartProxy(interfaceName string, config string, uapiPath string, bypass int32) int32 {
 
@@ -68,11 +78,9 @@ func awgStartProxy(interfaceName string, config string, uapiPath string, bypass
 		stdBind.SetControl(protectControlFunc)
 	}
 
-	statusCB := func(code device.StatusCode) {
-		// TODO add handshake callbacks for status codes
-	}
+	events := shared.NewEventSource()
 
-	dev := device.NewDevice(tun, stdBind, shared.NewLogger("Tun/"+interfaceName), conf.Device.DomainBlockingEnabled, statusCB)
+	dev := device.NewDevice(tun, stdBind, shared.NewLogger("Tun/"+interfaceName), conf.Device.DomainBlockingEnabled, events.Status)
 
 	err = dev.IpcSet(setting.IpcRequest)
 
@@ -125,7 +133,12 @@ func awgStartProxy(interfaceName string, config string, uapiPath string, bypass
 		PingRecordLock: new(sync.Mutex),
 	}
 
+	virtualTunnelHandlesLock.Lock()
 	handle, err2 := util.GenerateHandle(virtualTunnelHandles)
+	if err2 == nil {
+		virtualTunnelHandles[handle] = virtualTun
+	}
+	virtualTunnelHandlesLock.Unlock()
 	if err2 != nil {
 		shared.LogError(tag, "Error generating handle for tunnel: %v", err)
 		uapiFile.Close()
@@ -133,7 +146,8 @@ func awgStartProxy(interfaceName string, config string, uapiPath string, bypass
 		return -1
 	}
 
-	virtualTunnelHandles[handle] = virtualTun
+	events.SetHandle(handle)
+	events.Watch(dev)
 
 	// Create cancellable context
 	ctx, cancelFunc = context.WithCancel(context.Background())
@@ -154,7 +168,7 @@ func awgStartProxy(interfaceName string, config string, uapiPath string, bypass
 
 //export awgUpdateProxyTunnelPeers
 func awgUpdateProxyTunnelPeers(tunnelHandle int32, settings string) int32 {
-	handle, ok := virtualTunnelHandles[tunnelHandle]
+	handle, ok := lookupVirtualTunnel(tunnelHandle)
 	if !ok {
 		shared.LogError(tag, "Tunnel is not up")
 		return -1
@@ -182,9 +196,49 @@ func awgUpdateProxyTunnelPeers(tunnelHandle int32, settings string) int32 {
 	return 0
 }
 
+// awgSetProxyUapi applies a UAPI set operation to a running proxy tunnel as is.
+//
+//export awgSetProxyUapi
+func awgSetProxyUapi(tunnelHandle int32, settings string) int32 {
+	handle, ok := lookupVirtualTunnel(tunnelHandle)
+	if !ok {
+		shared.LogError(tag, "Tunnel is not up")
+		return -1
+	}
+
+	err := handle.Dev.IpcSet(settings)
+	if err != nil {
+		shared.LogError(tag, "IpcSet: %v", err)
+		return -1
+	}
+
+	shared.LogDebug(tag, "Configuration updated successfully")
+	return 0
+}
+
+// awgRebindProxy closes and reopens the sockets of a running proxy tunnel.
+//
+//export awgRebindProxy
+func awgRebindProxy(tunnelHandle int32) int32 {
+	handle, ok := lookupVirtualTunnel(tunnelHandle)
+	if !ok {
+		shared.LogError(tag, "Tunnel is not up")
+		return -1
+	}
+
+	err := handle.Dev.BindUpdate()
+	if err != nil {
+		shared.LogError(tag, "BindUpdate: %v", err)
+		return -1
+	}
+
+	shared.LogDebug(tag, "Sockets rebound")
+	return 0
+}
+
 //export awgGetProxyConfig
 func awgGetProxyConfig(tunnelHandle int32) *C.char {
-	handle, ok := virtualTunnelHandles[tunnelHandle]
+	handle, ok := lookupVirtualTunnel(tunnelHandle)
 	if !ok {
 		shared.LogError(tag, "Tunnel is not up")
 		return nil
@@ -197,6 +251,21 @@ func awgGetProxyConfig(tunnelHandle int32) *C.char {
 	return C.CString(settings)
 }
 
+//export awgGetProxyStats
+func awgGetProxyStats(tunnelHandle int32, out *C.longlong, length int32) int32 {
+	handle, ok := lookupVirtualTunnel(tunnelHandle)
+	if !ok {
+		shared.LogError(tag, "Tunnel is not up")
+		return -1
+	}
+	count, err := shared.CollectStats(handle.Dev, unsafe.Slice((*int64)(unsafe.Pointer(out)), length))
+	if err != nil {
+		shared.LogError(tag, "Failed to collect stats: %v", err)
+		return -1
+	}
+	return int32(count)
+}
+
 //export awgStopProxy
 func awgStopProxy() {
 	if cancelFunc != nil {
@@ -204,14 +273,18 @@ func awgStopProxy() {
 		cancelFunc()
 		cancelFunc = nil
 	}
+	virtualTunnelHandlesLock.RLock()
 	handles := make([]int32, 0, len(virtualTunnelHandles))
 	for h := range virtualTunnelHandles {
 		handles = append(handles, h)
 	}
+	virtualTunnelHandlesLock.RUnlock()
 	for _, handle := range handles {
 		awgTurnProxyTunnelOff(handle)
 	}
+	virtualTunnelHandlesLock.Lock()
 	virtualTunnelHandles = make(map[int32]*wireproxyawg.VirtualTun)
+	virtualTunnelHandlesLock.Unlock()
 	shared.LogDebug(tag, "Proxy fully reset: %d handles closed", len(handles))
 }
 
@@ -233,7 +306,10 @@ func protectControlFunc(network, address string, c syscall.RawConn) error {
 }
 
 func awgTurnProxyTunnelOff(virtualTunnelHandle int32) {
+	virtualTunnelHandlesLock.Lock()
 	virtualTun, ok := virtualTunnelHandles[virtualTunnelHandle]
+	delete(virtualTunnelHandles, virtualTunnelHandle)
+	virtualTunnelHandlesLock.Unlock()
 	if !ok {
 		shared.LogError(tag, "Tunnel handle %d not found", virtualTunnelHandle)
 		return
@@ -249,6 +325,5 @@ func awgTurnProxyTunnelOff(virtualTunnelHandle int32) {
 		virtualTun.Dev.Close()
 	}
 
-	delete(virtualTunnelHandles, virtualTunnelHandle)
 	shared.LogDebug(tag, "Tunnel %d fully closed (UAPI/Dev/Bind purged)", virtualTunnelHandle)
 }
@@ -12,7 +12,10 @@ struct go_string { const char *str; long n; };
 extern int awgStartProxy(struct go_string ifname, struct go_string settings, struct go_string uapipath, int bypass);
 extern void awgStopProxy();
 extern char *awgGetProxyConfig(int handle);
+extern int awgGetProxyStats(int handle, jlong *out, int len);
 extern int awgUpdateProxyTunnelPeers(int handle, struct go_string settings);
+extern int awgSetProxyUapi(int handle, struct go_string settings);
+extern int awgRebindProxy(int handle);
 
 static JavaVM *g_jvm = NULL;
 static jobject g_protector = NULL;
@@ -76,6 +79,17 @@ JNIEXPORT jstring JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgGetProxyConfig(
     return ret;
 }
 
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgGetProxyStats(JNIEnv *env, jclass c, jint handle, jlongArray out)
+{
+    jsize len = (*env)->GetArrayLength(env, out);
+    jlong *stats = (*env)->GetLongArrayElements(env, out, NULL);
+    if (!stats)
+        return -1;
+    int ret = awgGetProxyStats(handle, stats, len);
+    (*env)->ReleaseLongArrayElements(env, out, stats, 0);
+    return ret;
+}
+
 JNIEXPORT void JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgSetSocketProtector(JNIEnv *env, jclass c, jobject protector) {
     (*env)->GetJavaVM(env, &g_jvm);
     if (g_jvm == NULL) {
@@ -212,3 +226,19 @@ JNIEXPORT jint JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgUpdateProxyTunnelP
     return ret;
 }
 
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgSetProxyUapi(JNIEnv *env, jclass c, jint handle, jstring settings)
+{
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	int ret = awgSetProxyUapi(handle, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	});
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgRebindProxy(JNIEnv *env, jclass c, jint handle)
+{
+	return awgRebindProxy(handle);
+}
@@ -0,0 +1,153 @@
+package shared
+
+// #include <stdlib.h>
+// extern void post_tunnel_event(int handle, int type, const char *peer, const char *detail);
+import "C"
+import (
+	"encoding/base64"
+	"encoding/binary"
+	"fmt"
+	"sync/atomic"
+	"time"
+	"unsafe"
+
+	"github.com/amnezia-vpn/amneziawg-go/device"
+)
+
+// Event types posted to Java.
+// Must be kept in sync with org.amnezia.awg.backend.TunnelEvent.Type.
+const (
+	EventStatus            = 0
+	EventHandshakeComplete = 1
+	EventHandshakeFailed   = 2
+	EventPeerStale         = 3
+)
+
+// EventSource posts the status codes and handshake transitions of a single device to Java.
+type EventSource struct {
+	handle atomic.Int32
+}
+
+func NewEventSource() *EventSource {
+	source := &EventSource{}
+	source.handle.Store(-1)
+	return source
+}
+
+// SetHandle sets the tunnel handle events are posted for, which is only known once the device is up.
+func (s *EventSource) SetHandle(handle int32) {
+	s.handle.Store(handle)
+}
+
+// Status is the status callback of the device.
+func (s *EventSource) Status(code device.StatusCode) {
+	s.post(EventStatus, "", fmt.Sprint(code))
+}
+
+// How often Watch samples the peers of a device.
+const eventPollInterval = time.Second
+
+// peerProgress is what Watch last saw of a peer.
+type peerProgress struct {
+	handshake    int64
+	rx           int64
+	tx           int64
+	sendingSince time.Time // when data started going out without anything coming back, or zero
+	stale        bool
+	failed       bool
+}
+
+// Watch posts the handshake transitions of the peers of dev until it is closed. The transitions
+// are derived from the handshake times and transfer counters of the peers, the same way the
+// device's own timers decide to retry a handshake.
+func (s *EventSource) Watch(dev *device.Device) {
+	go func() {
+		ticker := time.NewTicker(eventPollInterval)
+		defer ticker.Stop()
+		records := make([]int64, StatsStride*4)
+		peers := make(map[[4]int64]*peerProgress)
+		for {
+			select {
+			case <-dev.Wait():
+				return
+			case now := <-ticker.C:
+				count, err := CollectStats(dev, records)
+				if err != nil {
+					continue
+				}
+				if count*StatsStride > len(records) {
+					records = make([]int64, count*StatsStride*2)
+					if count, err = CollectStats(dev, records); err != nil {
+						continue
+					}
+					count = min(count, len(records)/StatsStride)
+				}
+				s.update(peers, records[:count*StatsStride], now)
+			}
+		}
+	}()
+}
+
+func (s *EventSource) update(peers map[[4]int64]*peerProgress, records []int64, now time.Time) {
+	seen := make(map[[4]int64]struct{}, len(records)/StatsStride)
+	for offset := 0; offset < len(records); offset += StatsStride {
+		record := records[offset : offset+StatsStride]
+		var key [4]int64
+		copy(key[:], record[StatsSlotPublicKey:StatsSlotPublicKey+4])
+		seen[key] = struct{}{}
+		handshake, rx, tx := record[StatsSlotHandshake], record[StatsSlotRxBytes], record[StatsSlotTxBytes]
+		last, ok := peers[key]
+		if !ok {
+			peers[key] = &peerProgress{handshake: handshake, rx: rx, tx: tx}
+			continue
+		}
+		name := peerName(key)
+		switch {
+		case handshake > last.handshake:
+			s.post(EventHandshakeComplete, name, name+": Received handshake response")
+			last.sendingSince, last.stale, last.failed = time.Time{}, false, false
+		case rx > last.rx:
+			last.sendingSince, last.stale, last.failed = time.Time{}, false, false
+		case tx > last.tx && last.sendingSince.IsZero():
+			last.sendingSince = now
+		}
+		if !last.sendingSince.IsZero() {
+			silent := now.Sub(last.sendingSince)
+			if !last.stale && silent >= device.KeepaliveTimeout+device.RekeyTimeout {
+				last.stale = true
+				s.post(EventPeerStale, name, fmt.Sprintf("%s: Retrying handshake because we stopped hearing back after %d seconds",
+					name, int((device.KeepaliveTimeout+device.RekeyTimeout)/time.Second)))
+			}
+			if !last.failed && silent >= device.KeepaliveTimeout+device.RekeyTimeout+device.RekeyAttemptTime {
+				last.failed = true
+				s.post(EventHandshakeFailed, name, fmt.Sprintf("%s: Handshake did not complete after %d seconds",
+					name, int(device.RekeyAttemptTime/time.Second)))
+			}
+		}
+		last.handshake, last.rx, last.tx = handshake, rx, tx
+	}
+	for key := range peers {
+		if _, ok := seen[key]; !ok {
+			delete(peers, key)
+		}
+	}
+}
+
+// peerName formats a public key the way the device logs peers, as "peer(abcd…wxyz)".
+// Must be kept in sync with org.amnezia.awg.backend.TunnelEvent.abbreviate.
+func peerName(key [4]int64) string {
+	var raw [32]byte
+	for i, slot := range key {
+		binary.BigEndian.PutUint64(raw[i*8:], uint64(slot))
+	}
+	encoded := base64.StdEncoding.EncodeToString(raw[:])
+	return "peer(" + encoded[0:4] + "…" + encoded[39:43] + ")"
+}
+
+func (s *EventSource) post(kind int, peer string, detail string) {
+	cPeer := C.CString(peer)
+	cDetail := C.CString(detail)
+	C.post_tunnel_event(C.int(s.handle.Load()), C.int(kind), cPeer, cDetail)
+	C.free(unsafe.Pointer(cPeer))
+	C.free(unsafe.Pointer(cDetail))
+}
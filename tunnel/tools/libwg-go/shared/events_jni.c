@@ -0,0 +1,94 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2023 WireGuard LLC. All Rights Reserved.
+ */
+
+#include <jni.h>
+#include <pthread.h>
+#include <android/log.h>
+
+#define LOG_TAG "AmneziaWG/TunnelEvents"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+static pthread_mutex_t events_lock = PTHREAD_MUTEX_INITIALIZER;
+static JavaVM *events_jvm = NULL;
+static jobject events_sink = NULL;
+static jmethodID events_method = NULL;
+
+static void set_event_sink(JNIEnv *env, jobject sink)
+{
+	pthread_mutex_lock(&events_lock);
+	if (events_sink != NULL) {
+		(*env)->DeleteGlobalRef(env, events_sink);
+		events_sink = NULL;
+		events_method = NULL;
+	}
+	if (sink != NULL) {
+		(*env)->GetJavaVM(env, &events_jvm);
+		events_sink = (*env)->NewGlobalRef(env, sink);
+		jclass sink_class = (*env)->GetObjectClass(env, sink);
+		events_method = (*env)->GetMethodID(env, sink_class, "onEvent", "(IILjava/lang/String;Ljava/lang/String;)V");
+		if (events_method == NULL)
+			LOGE("Failed to get onEvent method ID");
+	}
+	pthread_mutex_unlock(&events_lock);
+}
+
+void post_tunnel_event(int handle, int type, const char *peer, const char *detail)
+{
+	JNIEnv *env = NULL;
+	int attached = 0;
+
+	pthread_mutex_lock(&events_lock);
+	JavaVM *jvm = events_jvm;
+	int ready = events_sink != NULL && events_method != NULL;
+	pthread_mutex_unlock(&events_lock);
+	if (jvm == NULL || !ready)
+		return;
+
+	jint rs = (*jvm)->GetEnv(jvm, (void **)&env, JNI_VERSION_1_6);
+	if (rs == JNI_EDETACHED) {
+		if ((*jvm)->AttachCurrentThread(jvm, &env, NULL) != JNI_OK) {
+			LOGE("AttachCurrentThread failed");
+			return;
+		}
+		attached = 1;
+	} else if (rs != JNI_OK) {
+		LOGE("GetEnv failed with %d", rs);
+		return;
+	}
+
+	/* The sink may be replaced meanwhile, so call a local reference to the one set now. The
+	 * upcall runs without the lock, so that the sink can reenter set_event_sink. */
+	pthread_mutex_lock(&events_lock);
+	jobject sink = events_sink != NULL ? (*env)->NewLocalRef(env, events_sink) : NULL;
+	jmethodID method = events_method;
+	pthread_mutex_unlock(&events_lock);
+
+	if (sink != NULL && method != NULL) {
+		jstring peer_str = (*env)->NewStringUTF(env, peer);
+		jstring detail_str = (*env)->NewStringUTF(env, detail);
+		(*env)->CallVoidMethod(env, sink, method, handle, type, peer_str, detail_str);
+		if ((*env)->ExceptionCheck(env)) {
+			(*env)->ExceptionDescribe(env);
+			(*env)->ExceptionClear(env);
+		}
+		(*env)->DeleteLocalRef(env, peer_str);
+		(*env)->DeleteLocalRef(env, detail_str);
+	}
+	if (sink != NULL)
+		(*env)->DeleteLocalRef(env, sink);
+
+	if (attached)
+		(*jvm)->DetachCurrentThread(jvm);
+}
+
+JNIEXPORT void JNICALL Java_org_amnezia_awg_GoBackend_awgSetEventSink(JNIEnv *env, jclass c, jobject sink)
+{
+	set_event_sink(env, sink);
+}
+
+JNIEXPORT void JNICALL Java_org_amnezia_awg_ProxyGoBackend_awgSetEventSink(JNIEnv *env, jclass c, jobject sink)
+{
+	set_event_sink(env, sink);
+}
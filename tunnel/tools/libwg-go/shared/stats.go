@@ -0,0 +1,109 @@
+package shared
+
+import (
+	"bytes"
+	"encoding/binary"
+	"encoding/hex"
+	"net/netip"
+	"strconv"
+
+	"github.com/amnezia-vpn/amneziawg-go/device"
+)
+
+// Per-peer record layout written by CollectStats, in int64 slots.
+// Must be kept in sync with org.amnezia.awg.backend.Statistics.
+const (
+	StatsSlotPublicKey    = 0 // 4 slots, big-endian
+	StatsSlotRxBytes      = 4
+	StatsSlotTxBytes      = 5
+	StatsSlotHandshake    = 6 // epoch milliseconds, 0 if no handshake yet
+	StatsSlotEndpointAddr = 7 // 2 slots, 16-byte address, big-endian
+	StatsSlotEndpointMeta = 9 // address family (4 or 6, 0 if unset) << 16 | port
+	StatsStride           = 10
+)
+
+// CollectStats writes one fixed-size record per peer of dev into out and returns the number of
+// peers on the device. If out is too small, only the records that fit are written and the caller
+// is expected to retry with at least count * StatsStride slots.
+func CollectStats(dev *device.Device, out []int64) (int, error) {
+	var buf bytes.Buffer
+	if err := dev.IpcGetOperation(&buf); err != nil {
+		return 0, err
+	}
+	count := 0
+	var record []int64
+	var handshakeSec, handshakeNsec int64
+	flush := func() {
+		if record != nil {
+			record[StatsSlotHandshake] = handshakeSec*1000 + handshakeNsec/1000000
+		}
+		handshakeSec, handshakeNsec = 0, 0
+	}
+	data := buf.Bytes()
+	for len(data) > 0 {
+		line := data
+		if i := bytes.IndexByte(data, '\n'); i >= 0 {
+			line, data = data[:i], data[i+1:]
+		} else {
+			data = nil
+		}
+		eq := bytes.IndexByte(line, '=')
+		if eq < 0 {
+			continue
+		}
+		key, value := line[:eq], line[eq+1:]
+		if string(key) == "public_key" {
+			flush()
+			record = nil
+			if end := (count + 1) * StatsStride; end <= len(out) {
+				record = out[count*StatsStride : end]
+				clear(record)
+				var pk [32]byte
+				if n, err := hex.Decode(pk[:], value); err == nil && n == len(pk) {
+					for i := 0; i < 4; i++ {
+						record[StatsSlotPublicKey+i] = int64(binary.BigEndian.Uint64(pk[i*8:]))
+					}
+				}
+			}
+			count++
+			continue
+		}
+		if record == nil {
+			continue
+		}
+		switch string(key) {
+		case "rx_bytes":
+			record[StatsSlotRxBytes] = parseInt(value)
+		case "tx_bytes":
+			record[StatsSlotTxBytes] = parseInt(value)
+		case "last_handshake_time_sec":
+			handshakeSec = parseInt(value)
+		case "last_handshake_time_nsec":
+			handshakeNsec = parseInt(value)
+		case "endpoint":
+			addrPort, err := netip.ParseAddrPort(string(value))
+			if err != nil {
+				continue
+			}
+			addr := addrPort.Addr().Unmap()
+			raw := addr.As16()
+			record[StatsSlotEndpointAddr] = int64(binary.BigEndian.Uint64(raw[:8]))
+			record[StatsSlotEndpointAddr+1] = int64(binary.BigEndian.Uint64(raw[8:]))
+			family := int64(6)
+			if addr.Is4() {
+				family = 4
+			}
+			record[StatsSlotEndpointMeta] = family<<16 | int64(addrPort.Port())
+		}
+	}
+	flush()
+	return count, nil
+}
+
+func parseInt(value []byte) int64 {
+	v, err := strconv.ParseInt(string(value), 10, 64)
+	if err != nil {
+		return 0
+	}
+	return v
+}
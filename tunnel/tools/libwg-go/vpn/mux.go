@@ -0,0 +1,237 @@
+/* SPDX-License-Identifier: Apache-2.0
+ *
+ * Copyright © 2017-2022 Jason A. Donenfeld <Jason@zx2c4.com>. All Rights Reserved.
+ */
+
+package vpn
+
+import (
+	"errors"
+	"net/netip"
+	"os"
+	"sort"
+	"sync"
+	"sync/atomic"
+
+	"github.com/amnezia-vpn/amneziawg-go/tun"
+)
+
+const muxQueueLength = 1024
+
+// tunMux shares one TUN interface between several devices. The first device reads the interface
+// itself and hands packets whose destination is routed to another device over to that device's
+// queue, so a single tunnel pays nothing for the sharing. The interface underneath can be
+// replaced while the devices run, which is how routes are added for a new tunnel on Android.
+type tunMux struct {
+	real    atomic.Pointer[tun.Device]
+	routes  atomic.Pointer[[]muxRoute]
+	mu      sync.Mutex
+	primary *muxTun
+	pool    sync.Pool
+}
+
+type muxRoute struct {
+	prefix netip.Prefix
+	tun    *muxTun
+}
+
+// muxTun is the tun.Device a device attached to a tunMux reads from and writes to.
+type muxTun struct {
+	mux    *tunMux
+	name   string
+	queue  chan []byte
+	events chan tun.Event
+	closed chan struct{}
+	once   sync.Once
+}
+
+func newTunMux(real tun.Device, name string) *tunMux {
+	mux := &tunMux{}
+	mux.real.Store(&real)
+	mux.routes.Store(&[]muxRoute{})
+	mux.pool.New = func() any { return make([]byte, 0, 1<<16) }
+	mux.primary = mux.newTun(name)
+	return mux
+}
+
+func (mux *tunMux) newTun(name string) *muxTun {
+	return &muxTun{
+		mux:    mux,
+		name:   name,
+		queue:  make(chan []byte, muxQueueLength),
+		events: make(chan tun.Event, 1),
+		closed: make(chan struct{}),
+	}
+}
+
+// attach creates the tun.Device of a device that receives the packets sent to prefixes.
+func (mux *tunMux) attach(name string, prefixes []netip.Prefix) *muxTun {
+	child := mux.newTun(name)
+	mux.mu.Lock()
+	defer mux.mu.Unlock()
+	routes := append([]muxRoute{}, *mux.routes.Load()...)
+	for _, prefix := range prefixes {
+		routes = append(routes, muxRoute{prefix: prefix.Masked(), tun: child})
+	}
+	// Longest prefix first, so the first match is the most specific one.
+	sort.SliceStable(routes, func(i, j int) bool { return routes[i].prefix.Bits() > routes[j].prefix.Bits() })
+	mux.routes.Store(&routes)
+	return child
+}
+
+func (mux *tunMux) detach(child *muxTun) {
+	mux.mu.Lock()
+	defer mux.mu.Unlock()
+	routes := make([]muxRoute, 0, len(*mux.routes.Load()))
+	for _, route := range *mux.routes.Load() {
+		if route.tun != child {
+			routes = append(routes, route)
+		}
+	}
+	mux.routes.Store(&routes)
+}
+
+// replace moves all devices over to a new interface and closes the old one.
+func (mux *tunMux) replace(real tun.Device) {
+	old := mux.real.Swap(&real)
+	(*old).Close()
+}
+
+func (mux *tunMux) route(packet []byte) *muxTun {
+	routes := *mux.routes.Load()
+	if len(routes) == 0 || len(packet) < 1 {
+		return nil
+	}
+	var dst netip.Addr
+	switch packet[0] >> 4 {
+	case 4:
+		if len(packet) < 20 {
+			return nil
+		}
+		dst = netip.AddrFrom4([4]byte(packet[16:20]))
+	case 6:
+		if len(packet) < 40 {
+			return nil
+		}
+		dst = netip.AddrFrom16([16]byte(packet[24:40]))
+	default:
+		return nil
+	}
+	for _, route := range routes {
+		if route.prefix.Contains(dst) {
+			return route.tun
+		}
+	}
+	return nil
+}
+
+func (t *muxTun) File() *os.File {
+	return (*t.mux.real.Load()).File()
+}
+
+func (t *muxTun) Read(bufs [][]byte, sizes []int, offset int) (int, error) {
+	if t != t.mux.primary {
+		return t.readQueue(bufs, sizes, offset)
+	}
+	for {
+		real := *t.mux.real.Load()
+		n, err := real.Read(bufs, sizes, offset)
+		if err != nil {
+			if real != *t.mux.real.Load() {
+				// The interface was replaced under this read.
+				continue
+			}
+			return n, err
+		}
+		kept := 0
+		for i := 0; i < n; i++ {
+			packet := bufs[i][offset : offset+sizes[i]]
+			if child := t.mux.route(packet); child != nil {
+				child.enqueue(append(t.mux.pool.Get().([]byte)[:0], packet...))
+				continue
+			}
+			if kept != i {
+				copy(bufs[kept][offset:], packet)
+				sizes[kept] = sizes[i]
+			}
+			kept++
+		}
+		if kept > 0 {
+			return kept, nil
+		}
+	}
+}
+
+func (t *muxTun) enqueue(packet []byte) {
+	select {
+	case t.queue <- packet:
+	default:
+		// The device is not keeping up; drop the packet as a congested link would.
+		t.mux.pool.Put(packet)
+	}
+}
+
+func (t *muxTun) readQueue(bufs [][]byte, sizes []int, offset int) (int, error) {
+	var packet []byte
+	select {
+	case packet = <-t.queue:
+	case <-t.closed:
+		return 0, os.ErrClosed
+	}
+	n := 0
+	for {
+		sizes[n] = copy(bufs[n][offset:], packet)
+		t.mux.pool.Put(packet)
+		n++
+		if n == len(bufs) {
+			return n, nil
+		}
+		select {
+		case packet = <-t.queue:
+		default:
+			return n, nil
+		}
+	}
+}
+
+func (t *muxTun) Write(bufs [][]byte, offset int) (int, error) {
+	for {
+		real := *t.mux.real.Load()
+		n, err := real.Write(bufs, offset)
+		if err != nil && errors.Is(err, os.ErrClosed) && real != *t.mux.real.Load() {
+			continue
+		}
+		return n, err
+	}
+}
+
+func (t *muxTun) MTU() (int, error) {
+	return (*t.mux.real.Load()).MTU()
+}
+
+func (t *muxTun) Name() (string, error) {
+	return t.name, nil
+}
+
+func (t *muxTun) Events() <-chan tun.Event {
+	return t.events
+}
+
+func (t *muxTun) BatchSize() int {
+	return (*t.mux.real.Load()).BatchSize()
+}
+
+// Close detaches an attached device, or closes the interface when called for the first device.
+func (t *muxTun) Close() error {
+	var err error
+	t.once.Do(func() {
+		close(t.closed)
+		close(t.events)
+		if t == t.mux.primary {
+			err = (*t.mux.real.Load()).Close()
+		} else {
+			t.mux.detach(t)
+		}
+	})
+	return err
+}
@@ -8,8 +8,11 @@ package vpn
 import "C"
 import (
 	"net"
+	"net/netip"
 	"runtime/debug"
 	"strings"
+	"sync"
+	"unsafe"
 
 	"github.com/amnezia-vpn/amneziawg-android/shared"
 	"github.com/amnezia-vpn/amneziawg-android/util"
@@ -24,11 +27,46 @@ import (
 type TunnelHandle struct {
 	device *device.Device
 	uapi   net.Listener
+	// mux is set on tunnels that own their TUN interface, so that others can be attached to it.
+	mux *tunMux
+	// startup holds when each phase of bringing the device up began and ended.
+	startup startupTimes
+}
+
+// The phases of bringing a device up, in the order of their times in startupTimes.
+const (
+	phaseTun = iota
+	phaseDeviceCreate
+	phaseIpcSet
+	phaseUapi
+	phaseDeviceUp
+	phaseCount
+)
+
+type startupTimes [phaseCount * 2]int64
+
+func (times *startupTimes) begin(phase int) {
+	times[phase*2] = monotonicNanos()
+}
+
+func (times *startupTimes) end(phase int) {
+	times[phase*2+1] = monotonicNanos()
+}
+
+// monotonicNanos reads CLOCK_MONOTONIC, the clock behind System.nanoTime on Android, so that
+// the times can be lined up with those taken in Java.
+func monotonicNanos() int64 {
+	var ts unix.Timespec
+	_ = unix.ClockGettime(unix.CLOCK_MONOTONIC, &ts)
+	return ts.Nano()
 }
 
 var (
-	tag           string
-	tunnelHandles map[int32]TunnelHandle
+	tag               string
+	tunnelHandles     map[int32]TunnelHandle
+	// Guards tunnelHandles, which the statistics sampler, the watchdog and DDNS read from their
+	// own threads while tunnels are started and stopped.
+	tunnelHandlesLock sync.RWMutex
 )
 
 func init() {
@@ -36,44 +74,128 @@ func init() {
 	tunnelHandles = make(map[int32]TunnelHandle)
 }
 
+func lookupTunnel(tunnelHandle int32) (TunnelHandle, bool) {
+	tunnelHandlesLock.RLock()
+	defer tunnelHandlesLock.RUnlock()
+	handle, ok := tunnelHandles[tunnelHandle]
+	return handle, ok
+}
+
 //export awgTurnOn
 func awgTurnOn(interfaceName string, tunFd int32, settings string, uapiPath string) int32 {
-	tunnel, name, err := tun.CreateUnmonitoredTUNFromFD(int(tunFd))
+	conf, err := wireproxyawg.ParseConfigString(settings)
+	if err != nil {
+		shared.LogError(tag, "Invalid config file", err)
+		unix.Close(int(tunFd))
+		return -1
+	}
 
+	ipcRequest, err := wireproxyawg.CreateIPCRequest(conf.Device, false)
 	if err != nil {
+		shared.LogError(tag, "CreateIPCRequest: %v", err)
 		unix.Close(int(tunFd))
-		shared.LogError(tag, "CreateUnmonitoredTUNFromFD: %v", err)
 		return -1
 	}
 
-	conf, err := wireproxyawg.ParseConfigString(settings)
+	return turnOn(interfaceName, tunFd, ipcRequest.IpcRequest, conf.Device.DomainBlockingEnabled, uapiPath)
+}
+
+// awgTurnOnUapi is awgTurnOn for a configuration that is already in UAPI format,
+// which is handed to the device as is.
+//
+//export awgTurnOnUapi
+func awgTurnOnUapi(interfaceName string, tunFd int32, settings string, domainBlocking int32, uapiPath string) int32 {
+	return turnOn(interfaceName, tunFd, settings, domainBlocking != 0, uapiPath)
+}
+
+func turnOn(interfaceName string, tunFd int32, ipcRequest string, domainBlocking bool, uapiPath string) int32 {
+	var times startupTimes
+	times.begin(phaseTun)
+	tunnel, name, err := tun.CreateUnmonitoredTUNFromFD(int(tunFd))
+	times.end(phaseTun)
+
 	if err != nil {
-		shared.LogError(tag, "Invalid config file", err)
 		unix.Close(int(tunFd))
-		if tunnel != nil {
-			tunnel.Close()
-		}
+		shared.LogError(tag, "CreateUnmonitoredTUNFromFD: %v", err)
 		return -1
 	}
 
-	shared.LogDebug(tag, "Creating device with domain blocking enabled: %v", conf.Device.DomainBlockingEnabled)
+	mux := newTunMux(tunnel, name)
+	return startDevice(interfaceName, mux.primary, name, ipcRequest, domainBlocking, uapiPath, mux, &times)
+}
 
-	statusCB := func(code device.StatusCode) {
-		// TODO add handshake callbacks for status codes
+// awgAttachTunnel starts a tunnel on the TUN interface of a running one, receiving the packets
+// sent to routes, a comma-separated list of prefixes. The interface must already route them,
+// see awgReplaceTun.
+//
+//export awgAttachTunnel
+func awgAttachTunnel(ownerHandle int32, interfaceName string, settings string, domainBlocking int32, uapiPath string, routes string) int32 {
+	owner, ok := lookupTunnel(ownerHandle)
+	if !ok || owner.mux == nil {
+		shared.LogError(tag, "Tunnel is not up")
+		return -1
 	}
 
-	tunDevice := device.NewDevice(tunnel, conn.NewStdNetBind(), shared.NewLogger("Tun/"+interfaceName), conf.Device.DomainBlockingEnabled, statusCB)
+	var prefixes []netip.Prefix
+	for _, route := range strings.Split(routes, ",") {
+		if route = strings.TrimSpace(route); route == "" {
+			continue
+		}
+		prefix, err := netip.ParsePrefix(route)
+		if err != nil {
+			shared.LogError(tag, "Invalid route: %v", err)
+			return -1
+		}
+		prefixes = append(prefixes, prefix)
+	}
 
-	ipcRequest, err := wireproxyawg.CreateIPCRequest(conf.Device, false)
-	if err != nil {
-		shared.LogError(tag, "CreateIPCRequest: %v", err)
+	tunnel := owner.mux.attach(interfaceName, prefixes)
+	var times startupTimes
+	handle := startDevice(interfaceName, tunnel, interfaceName, settings, domainBlocking != 0, uapiPath, nil, &times)
+	if handle < 0 {
+		tunnel.Close()
+	}
+	return handle
+}
+
+// awgReplaceTun moves a running tunnel, and those attached to it, to a new TUN interface and
+// closes the old one.
+//
+//export awgReplaceTun
+func awgReplaceTun(tunnelHandle int32, tunFd int32) int32 {
+	handle, ok := lookupTunnel(tunnelHandle)
+	if !ok || handle.mux == nil {
 		unix.Close(int(tunFd))
+		shared.LogError(tag, "Tunnel is not up")
 		return -1
 	}
 
-	err = tunDevice.IpcSet(ipcRequest.IpcRequest)
+	tunnel, _, err := tun.CreateUnmonitoredTUNFromFD(int(tunFd))
 	if err != nil {
 		unix.Close(int(tunFd))
+		shared.LogError(tag, "CreateUnmonitoredTUNFromFD: %v", err)
+		return -1
+	}
+
+	handle.mux.replace(tunnel)
+	shared.LogDebug(tag, "TUN interface replaced")
+	return 0
+}
+
+func startDevice(interfaceName string, tunnel tun.Device, name string, ipcRequest string, domainBlocking bool, uapiPath string, mux *tunMux, times *startupTimes) int32 {
+	shared.LogDebug(tag, "Creating device with domain blocking enabled: %v", domainBlocking)
+
+	events := shared.NewEventSource()
+
+	times.begin(phaseDeviceCreate)
+	tunDevice := device.NewDevice(tunnel, conn.NewStdNetBind(), shared.NewLogger("Tun/"+interfaceName), domainBlocking, events.Status)
+	times.end(phaseDeviceCreate)
+
+	times.begin(phaseIpcSet)
+	err := tunDevice.IpcSet(ipcRequest)
+	times.end(phaseIpcSet)
+	if err != nil {
+		tunDevice.Close()
 		shared.LogError(tag, "IpcSet: %v", err)
 		return -1
 	}
@@ -81,6 +203,7 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string, uapiPath stri
 
 	var uapi net.Listener
 
+	times.begin(phaseUapi)
 	uapiFile, err := ipc.UAPIOpen(uapiPath, name)
 
 	if err != nil {
@@ -103,7 +226,11 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string, uapiPath stri
 		}
 	}
 
+	times.end(phaseUapi)
+
+	times.begin(phaseDeviceUp)
 	err = tunDevice.Up()
+	times.end(phaseDeviceUp)
 	if err != nil {
 		shared.LogError(tag, "Unable to bring up device: %v", err)
 		uapiFile.Close()
@@ -112,7 +239,12 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string, uapiPath stri
 	}
 	shared.LogDebug(tag, "Device started")
 
+	tunnelHandlesLock.Lock()
 	handle, err2 := util.GenerateHandle(tunnelHandles)
+	if err2 == nil {
+		tunnelHandles[handle] = TunnelHandle{device: tunDevice, uapi: uapi, mux: mux, startup: *times}
+	}
+	tunnelHandlesLock.Unlock()
 
 	if err2 != nil {
 		shared.LogError(tag, "Unable to find empty handle", err2)
@@ -121,14 +253,15 @@ func awgTurnOn(interfaceName string, tunFd int32, settings string, uapiPath stri
 		return -1
 	}
 
-	tunnelHandles[handle] = TunnelHandle{device: tunDevice, uapi: uapi}
+	events.SetHandle(handle)
+	events.Watch(tunDevice)
 
 	return handle
 }
 
 //export awgUpdateTunnelPeers
 func awgUpdateTunnelPeers(tunnelHandle int32, settings string) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := lookupTunnel(tunnelHandle)
 	if !ok {
 		shared.LogError(tag, "Tunnel is not up")
 		return -1
@@ -156,14 +289,57 @@ func awgUpdateTunnelPeers(tunnelHandle int32, settings string) int32 {
 	return 0
 }
 
+// awgSetTunnelUapi applies a UAPI set operation to a running tunnel as is.
+//
+//export awgSetTunnelUapi
+func awgSetTunnelUapi(tunnelHandle int32, settings string) int32 {
+	handle, ok := lookupTunnel(tunnelHandle)
+	if !ok {
+		shared.LogError(tag, "Tunnel is not up")
+		return -1
+	}
+
+	err := handle.device.IpcSet(settings)
+	if err != nil {
+		shared.LogError(tag, "IpcSet: %v", err)
+		return -1
+	}
+
+	shared.LogDebug(tag, "Configuration updated successfully")
+	return 0
+}
+
+// awgRebindTunnel closes and reopens the sockets of a running tunnel, which gets it a new NAT
+// mapping and moves it to the current network.
+//
+//export awgRebindTunnel
+func awgRebindTunnel(tunnelHandle int32) int32 {
+	handle, ok := lookupTunnel(tunnelHandle)
+	if !ok {
+		shared.LogError(tag, "Tunnel is not up")
+		return -1
+	}
+
+	err := handle.device.BindUpdate()
+	if err != nil {
+		shared.LogError(tag, "BindUpdate: %v", err)
+		return -1
+	}
+
+	shared.LogDebug(tag, "Sockets rebound")
+	return 0
+}
+
 //export awgTurnOff
 func awgTurnOff(tunnelHandle int32) {
+	tunnelHandlesLock.Lock()
 	handle, ok := tunnelHandles[tunnelHandle]
+	delete(tunnelHandles, tunnelHandle)
+	tunnelHandlesLock.Unlock()
 	if !ok {
 		shared.LogError(tag, "Tunnel is not up")
 		return
 	}
-	delete(tunnelHandles, tunnelHandle)
 	if handle.uapi != nil {
 		handle.uapi.Close()
 	}
@@ -172,7 +348,7 @@ func awgTurnOff(tunnelHandle int32) {
 
 //export awgGetSocketV4
 func awgGetSocketV4(tunnelHandle int32) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := lookupTunnel(tunnelHandle)
 	if !ok {
 		return -1
 	}
@@ -189,7 +365,7 @@ func awgGetSocketV4(tunnelHandle int32) int32 {
 
 //export awgGetSocketV6
 func awgGetSocketV6(tunnelHandle int32) int32 {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := lookupTunnel(tunnelHandle)
 	if !ok {
 		return -1
 	}
@@ -206,7 +382,7 @@ func awgGetSocketV6(tunnelHandle int32) int32 {
 
 //export awgGetConfig
 func awgGetConfig(tunnelHandle int32) *C.char {
-	handle, ok := tunnelHandles[tunnelHandle]
+	handle, ok := lookupTunnel(tunnelHandle)
 	if !ok {
 		return nil
 	}
@@ -217,6 +393,32 @@ func awgGetConfig(tunnelHandle int32) *C.char {
 	return C.CString(settings)
 }
 
+//export awgGetStats
+func awgGetStats(tunnelHandle int32, out *C.longlong, length int32) int32 {
+	handle, ok := lookupTunnel(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	count, err := shared.CollectStats(handle.device, unsafe.Slice((*int64)(unsafe.Pointer(out)), length))
+	if err != nil {
+		shared.LogError(tag, "Failed to collect stats: %v", err)
+		return -1
+	}
+	return int32(count)
+}
+
+// awgGetStartupTimes writes the CLOCK_MONOTONIC start and end times of each phase of bringing a
+// tunnel up, zero for phases it skipped, and returns how many values were written.
+//
+//export awgGetStartupTimes
+func awgGetStartupTimes(tunnelHandle int32, out *C.longlong, length int32) int32 {
+	handle, ok := lookupTunnel(tunnelHandle)
+	if !ok {
+		return -1
+	}
+	return int32(copy(unsafe.Slice((*int64)(unsafe.Pointer(out)), length), handle.startup[:]))
+}
+
 //export awgVersion
 func awgVersion() *C.char {
 	info, ok := debug.ReadBuildInfo()
@@ -13,8 +13,15 @@ extern void awgTurnOff(int handle);
 extern int awgGetSocketV4(int handle);
 extern int awgGetSocketV6(int handle);
 extern char *awgGetConfig(int handle);
+extern int awgGetStats(int handle, jlong *out, int len);
 extern char *awgVersion();
 extern int awgUpdateTunnelPeers(int handle, struct go_string settings);
+extern int awgTurnOnUapi(struct go_string ifname, int tun_fd, struct go_string settings, int domain_blocking, struct go_string uapipath);
+extern int awgSetTunnelUapi(int handle, struct go_string settings);
+extern int awgRebindTunnel(int handle);
+extern int awgAttachTunnel(int owner_handle, struct go_string ifname, struct go_string settings, int domain_blocking, struct go_string uapipath, struct go_string routes);
+extern int awgReplaceTun(int handle, int tun_fd);
+extern int awgGetStartupTimes(int handle, jlong *out, int len);
 
 JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgTurnOn(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jstring settings, jstring uapipath)
 {
@@ -66,6 +73,17 @@ JNIEXPORT jstring JNICALL Java_org_amnezia_awg_GoBackend_awgGetConfig(JNIEnv *en
 	return ret;
 }
 
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgGetStats(JNIEnv *env, jclass c, jint handle, jlongArray out)
+{
+	jsize len = (*env)->GetArrayLength(env, out);
+	jlong *stats = (*env)->GetLongArrayElements(env, out, NULL);
+	if (!stats)
+		return -1;
+	int ret = awgGetStats(handle, stats, len);
+	(*env)->ReleaseLongArrayElements(env, out, stats, 0);
+	return ret;
+}
+
 JNIEXPORT jstring JNICALL Java_org_amnezia_awg_GoBackend_awgVersion(JNIEnv *env, jclass c)
 {
 	jstring ret;
@@ -88,3 +106,90 @@ JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgUpdateTunnelPeers(JNIEn
     (*env)->ReleaseStringUTFChars(env, settings, settings_str);
     return ret;
 }
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgTurnOnUapi(JNIEnv *env, jclass c, jstring ifname, jint tun_fd, jstring settings, jboolean domain_blocking, jstring uapipath)
+{
+	const char *ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
+	size_t ifname_len = (*env)->GetStringUTFLength(env, ifname);
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	const char *uapipath_str = (*env)->GetStringUTFChars(env, uapipath, 0);
+	size_t uapipath_len = (*env)->GetStringUTFLength(env, uapipath);
+	int ret = awgTurnOnUapi((struct go_string){
+		.str = ifname_str,
+		.n = ifname_len
+	}, tun_fd, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	}, domain_blocking ? 1 : 0, (struct go_string){
+		.str = uapipath_str,
+		.n = uapipath_len
+	});
+	(*env)->ReleaseStringUTFChars(env, ifname, ifname_str);
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	(*env)->ReleaseStringUTFChars(env, uapipath, uapipath_str);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgSetTunnelUapi(JNIEnv *env, jclass c, jint handle, jstring settings)
+{
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	int ret = awgSetTunnelUapi(handle, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	});
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgRebindTunnel(JNIEnv *env, jclass c, jint handle)
+{
+	return awgRebindTunnel(handle);
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgAttachTunnel(JNIEnv *env, jclass c, jint owner_handle, jstring ifname, jstring settings, jboolean domain_blocking, jstring uapipath, jstring routes)
+{
+	const char *ifname_str = (*env)->GetStringUTFChars(env, ifname, 0);
+	size_t ifname_len = (*env)->GetStringUTFLength(env, ifname);
+	const char *settings_str = (*env)->GetStringUTFChars(env, settings, 0);
+	size_t settings_len = (*env)->GetStringUTFLength(env, settings);
+	const char *uapipath_str = (*env)->GetStringUTFChars(env, uapipath, 0);
+	size_t uapipath_len = (*env)->GetStringUTFLength(env, uapipath);
+	const char *routes_str = (*env)->GetStringUTFChars(env, routes, 0);
+	size_t routes_len = (*env)->GetStringUTFLength(env, routes);
+	int ret = awgAttachTunnel(owner_handle, (struct go_string){
+		.str = ifname_str,
+		.n = ifname_len
+	}, (struct go_string){
+		.str = settings_str,
+		.n = settings_len
+	}, domain_blocking ? 1 : 0, (struct go_string){
+		.str = uapipath_str,
+		.n = uapipath_len
+	}, (struct go_string){
+		.str = routes_str,
+		.n = routes_len
+	});
+	(*env)->ReleaseStringUTFChars(env, ifname, ifname_str);
+	(*env)->ReleaseStringUTFChars(env, settings, settings_str);
+	(*env)->ReleaseStringUTFChars(env, uapipath, uapipath_str);
+	(*env)->ReleaseStringUTFChars(env, routes, routes_str);
+	return ret;
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgReplaceTun(JNIEnv *env, jclass c, jint handle, jint tun_fd)
+{
+	return awgReplaceTun(handle, tun_fd);
+}
+
+JNIEXPORT jint JNICALL Java_org_amnezia_awg_GoBackend_awgGetStartupTimes(JNIEnv *env, jclass c, jint handle, jlongArray out)
+{
+	jsize len = (*env)->GetArrayLength(env, out);
+	jlong *times = (*env)->GetLongArrayElements(env, out, NULL);
+	if (!times)
+		return -1;
+	int ret = awgGetStartupTimes(handle, times, len);
+	(*env)->ReleaseLongArrayElements(env, out, times, 0);
+	return ret;
+}
@@ -30,7 +30,9 @@ import androidx.databinding.DataBindingUtil
 import androidx.databinding.Observable
 import androidx.databinding.ObservableBoolean
 import androidx.databinding.ObservableField
+import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
+import androidx.lifecycle.repeatOnLifecycle
 import androidx.recyclerview.widget.GridLayoutManager
 import androidx.recyclerview.widget.GridLayoutManager.SpanSizeLookup
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
@@ -51,7 +53,6 @@ import org.amnezia.awg.util.TunnelImporter
 import org.amnezia.awg.util.UserKnobs
 import org.amnezia.awg.util.applicationScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
@@ -243,9 +244,8 @@ class TvMainActivity : AppCompatActivity() {
         setContentView(binding.root)
 
         lifecycleScope.launch {
-            while (true) {
-                updateStats()
-                delay(1000)
+            repeatOnLifecycle(Lifecycle.State.STARTED) {
+                Application.getTunnelManager().lastUsedTunnelStatistics().collect { updateStats() }
             }
         }
     }
@@ -354,7 +354,7 @@ class TvMainActivity : AppCompatActivity() {
         }
     }
 
-    private suspend fun updateStats() {
+    private fun updateStats() {
         binding.tunnelList.forEach { viewItem ->
             val listItem = DataBindingUtil.findBinding<TvTunnelListItemBinding>(viewItem)
                 ?: return@forEach
@@ -363,7 +363,7 @@ class TvMainActivity : AppCompatActivity() {
                 if (tunnel.state != Tunnel.State.UP || isDeleting.get()) {
                     throw Exception()
                 }
-                val statistics = tunnel.getStatisticsAsync()
+                val statistics = tunnel.statistics ?: throw Exception()
                 val rx = statistics.totalRx()
                 val tx = statistics.totalTx()
                 listItem.tunnelTransfer.text = getString(R.string.transfer_rx_tx, QuantityFormatter.formatBytes(rx), QuantityFormatter.formatBytes(tx))
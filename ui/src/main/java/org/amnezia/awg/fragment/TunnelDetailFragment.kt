@@ -15,13 +15,15 @@ import androidx.core.view.MenuProvider
 import androidx.databinding.DataBindingUtil
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
+import org.amnezia.awg.Application.Companion.getTunnelManager
 import org.amnezia.awg.R
+import org.amnezia.awg.backend.Statistics
 import org.amnezia.awg.backend.Tunnel
 import org.amnezia.awg.databinding.TunnelDetailFragmentBinding
 import org.amnezia.awg.databinding.TunnelDetailPeerBinding
 import org.amnezia.awg.model.ObservableTunnel
 import org.amnezia.awg.util.QuantityFormatter
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 
 /**
@@ -30,7 +32,7 @@ import kotlinx.coroutines.launch
 class TunnelDetailFragment : BaseFragment(), MenuProvider {
     private var binding: TunnelDetailFragmentBinding? = null
     private var lastState = Tunnel.State.TOGGLE
-    private var timerActive = true
+    private var statisticsJob: Job? = null
 
     override fun onMenuItemSelected(menuItem: MenuItem): Boolean {
         return false
@@ -62,12 +64,15 @@ class TunnelDetailFragment : BaseFragment(), MenuProvider {
 
     override fun onResume() {
         super.onResume()
-        timerActive = true
-        lifecycleScope.launch {
-            while (timerActive) {
-                updateStats()
-                delay(1000)
-            }
+        observeStats()
+    }
+
+    private fun observeStats() {
+        statisticsJob?.cancel()
+        val tunnel = binding?.tunnel ?: return
+        if (!isResumed) return
+        statisticsJob = lifecycleScope.launch {
+            getTunnelManager().tunnelStatistics(tunnel).collect { updateStats(it) }
         }
     }
 
@@ -86,12 +91,13 @@ class TunnelDetailFragment : BaseFragment(), MenuProvider {
             }
         }
         lastState = Tunnel.State.TOGGLE
-        lifecycleScope.launch { updateStats() }
+        observeStats()
     }
 
-    override fun onStop() {
-        timerActive = false
-        super.onStop()
+    override fun onPause() {
+        statisticsJob?.cancel()
+        statisticsJob = null
+        super.onPause()
     }
 
     override fun onViewStateRestored(savedInstanceState: Bundle?) {
@@ -101,7 +107,7 @@ class TunnelDetailFragment : BaseFragment(), MenuProvider {
         super.onViewStateRestored(savedInstanceState)
     }
 
-    private suspend fun updateStats() {
+    private fun updateStats(statistics: Statistics) {
         val binding = binding ?: return
         val tunnel = binding.tunnel ?: return
         if (!isResumed) return
@@ -109,7 +115,6 @@ class TunnelDetailFragment : BaseFragment(), MenuProvider {
         if (state != Tunnel.State.UP && lastState == state) return
         lastState = state
         try {
-            val statistics = tunnel.getStatisticsAsync()
             for (i in 0 until binding.peersLayout.childCount) {
                 val peer: TunnelDetailPeerBinding = DataBindingUtil.getBinding(binding.peersLayout.getChildAt(i))
                     ?: continue
@@ -105,20 +105,12 @@ class ObservableTunnel internal constructor(
     }
 
 
+    /**
+     * The latest statistics delivered by [TunnelManager.tunnelStatistics], which drives them for
+     * as long as a screen shows them.
+     */
     @get:Bindable
     var statistics: Statistics? = null
-        get() {
-            if (field == null || field?.isStale != false)
-            // Opportunistically fetch this if we don't have a cached one, and rely on data bindings to update it eventually
-                applicationScope.launch {
-                    try {
-                        manager.getTunnelStatistics(this@ObservableTunnel)
-                    } catch (e: Throwable) {
-                        Log.e(TAG, Log.getStackTraceString(e))
-                    }
-                }
-            return field
-        }
         private set
 
     suspend fun getStatisticsAsync(): Statistics = withContext(Dispatchers.Main.immediate) {
@@ -12,6 +12,7 @@ import android.util.Log
 import android.widget.Toast
 import androidx.databinding.BaseObservable
 import androidx.databinding.Bindable
+import androidx.databinding.Observable
 import org.amnezia.awg.Application.Companion.get
 import org.amnezia.awg.Application.Companion.getBackend
 import org.amnezia.awg.Application.Companion.getTunnelManager
@@ -27,10 +28,20 @@ import org.amnezia.awg.util.applicationScope
 import org.amnezia.awg.config.Config
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.emptyFlow
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.future.await
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 
@@ -66,6 +77,7 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
         if (wasLastUsed)
             lastUsedTunnel = null
         tunnelMap.remove(tunnel)
+        getBackend().statisticsSampler.forget(tunnel)
         try {
             if (originalState == Tunnel.State.UP)
                 withContext(Dispatchers.IO) { getBackend().setState(tunnel, Tunnel.State.DOWN, null) }
@@ -246,9 +258,33 @@ class TunnelManager(private val configStore: ConfigStore) : BaseObservable() {
     }
 
     suspend fun getTunnelStatistics(tunnel: ObservableTunnel): Statistics = withContext(Dispatchers.Main.immediate) {
-        tunnel.onStatisticsChanged(withContext(Dispatchers.IO) { getBackend().getStatistics(tunnel) })!!
+        tunnel.onStatisticsChanged(getBackend().statisticsSampler.refresh(tunnel).await())!!
     }
 
+    /**
+     * Statistics of a tunnel, sampled by the backend for as long as the flow is collected.
+     */
+    fun tunnelStatistics(tunnel: ObservableTunnel): Flow<Statistics> = callbackFlow {
+        val subscription = getBackend().statisticsSampler.subscribe(tunnel) { _, statistics -> trySend(statistics) }
+        awaitClose { subscription.close() }
+    }.conflate().onEach { tunnel.onStatisticsChanged(it) }
+
+    /**
+     * Statistics of the last used tunnel, which is the only one that can be running.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    fun lastUsedTunnelStatistics(): Flow<Statistics> = callbackFlow {
+        val callback = object : OnPropertyChangedCallback() {
+            override fun onPropertyChanged(sender: Observable?, propertyId: Int) {
+                if (propertyId == BR.lastUsedTunnel)
+                    trySend(lastUsedTunnel)
+            }
+        }
+        addOnPropertyChangedCallback(callback)
+        trySend(lastUsedTunnel)
+        awaitClose { removeOnPropertyChangedCallback(callback) }
+    }.flowOn(Dispatchers.Main.immediate).flatMapLatest { tunnel -> tunnel?.let { tunnelStatistics(it) } ?: emptyFlow() }
+
     companion object {
         private const val TAG = "AmneziaWG/TunnelManager"
     }